@@ -0,0 +1,606 @@
+
+/**
+ * BakedTexture.java - a decoded image with its whole mip chain, stored in a
+ * file that can be uploaded without decoding.
+ *
+ * The first time an image file is decoded, bake() writes a KTX-style
+ * container next to the other baked files (directory "baked", or
+ * -Dp2.bakeDir=...). Later runs open() it with a memory map and upload()
+ * every level straight from the mapped pages: no JPEG decode, no
+ * glGenerateMipmap. The rows are stored bottom row first, as
+ * stbi_set_flip_vertically_on_load( true ) delivers them.
+ *
+ * Layout, little endian:
+ *
+ *    0  byte[8]  magic  'P' '2' 'T' 'X' \r \n 0x1a \n
+ *    8  int      version
+ *   12  int      0x04030201, to detect the byte order
+ *   16  int      GL internal format
+ *   20  int      GL format of the pixels, 0 if compressed
+ *   24  int      GL type of the pixels, 0 if compressed
+ *   28  int      width of level 0
+ *   32  int      height of level 0
+ *   36  int      number of levels
+ *   40  long     modification time of the source file
+ *   48  byte[64] SHA-256 of the source file, as hex (TextureCache.contentHash)
+ *  112  int      0 if the levels are stored as they are, 1 if deflated
+ *  116  int      bytes of the deflated levels, 0 if stored as they are
+ *  120  int      how the levels were made: MipBuilder filter ordinal,
+ *                | 0x100 if gamma correct, | BlockCompressor preset
+ *                ordinal + 1 << 16 if compressed
+ *  124  int[2]   offset and size of each level
+ *   ..  levels, tightly packed rows or compressed blocks, each starting
+ *       on a multiple of 4
+ *
+ * With -Dp2.bakeDeflate=true the levels, laid out as the table says, are
+ * written as one java.util.zip deflate stream instead, starting where the
+ * first level would. Such files take less disk but are inflated into
+ * memory when opened rather than uploaded from the mapping.
+ *
+ * Images keep their own number of channels, and with -Dp2.compress RGB
+ * levels are stored as BlockCompressor blocks. A baked file is fresh if it
+ * is stored in the format textures are currently made in
+ * (Texture.storageFormat) with the current -Dp2.mipFilter, -Dp2.mipGamma
+ * and -Dp2.compress preset, and it records the source's modification time
+ * or else the source's content hash; in the latter case the new time is
+ * written into the header. Stale or damaged files are ignored and
+ * written again. Only real files are baked, not class path resources.
+ *
+ * The directory is a cache of at most -Dp2.bakeCacheMB megabytes (default
+ * 512, 0 for no limit). open() stamps the files it uses with the current
+ * time, and prune(), run after every bake, deletes the least recently used
+ * files until the rest fit. printStats() reports the directory and the
+ * hits and misses of open().
+ *
+ * open() and bake() may be called from any thread, upload() only on the GL
+ * thread.
+ */
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_BYTE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class BakedTexture {
+	// ------------------ class variables ------------------------------
+	static final String BAKE_DIR = System.getProperty("p2.bakeDir", "baked");
+	static final String SUFFIX = ".p2tex";
+
+	private static final byte[] MAGIC = { 'P', '2', 'T', 'X', '\r', '\n', 0x1a, '\n' };
+	private static final int VERSION = 3;
+	private static final int ENDIAN = 0x04030201;
+	private static final int HASH_LENGTH = 64;
+	private static final int HEADER_SIZE = 60 + HASH_LENGTH;
+	private static final boolean DEFLATE = Boolean.getBoolean("p2.bakeDeflate");
+	private static final long CACHE_BYTES = Long.getLong("p2.bakeCacheMB", 512) << 20;
+
+	// open() runs on the TextureLoader I/O pool
+	private static final AtomicInteger hits = new AtomicInteger();
+	private static final AtomicInteger misses = new AtomicInteger();
+	private static final AtomicInteger bakes = new AtomicInteger();
+
+	// ---------------------- instance variables ------------------------------
+	private final ByteBuffer data; // the mapped file, or its levels inflated
+	private final String sourceHash;
+	private final int internalFormat, format;
+	private final int width, height, levels;
+
+	// ------------------ Constructors ----------------------------------
+	// check the header of a mapped file and inflate its levels if they are
+	// deflated; RuntimeException if it is damaged
+	private BakedTexture(MappedByteBuffer file) {
+		file.order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < MAGIC.length; i++)
+			if (file.get(i) != MAGIC[i])
+				throw new RuntimeException("BakedTexture: not a baked texture");
+		if (file.getInt(8) != VERSION || file.getInt(12) != ENDIAN)
+			throw new RuntimeException("BakedTexture: unknown version or byte order");
+		if (file.getInt(112) == 1)
+			data = inflate(file);
+		else if (file.getInt(112) == 0)
+			data = file;
+		else
+			throw new RuntimeException("BakedTexture: unknown compression " + file.getInt(112));
+		internalFormat = data.getInt(16);
+		format = data.getInt(20);
+		width = data.getInt(28);
+		height = data.getInt(32);
+		levels = data.getInt(36);
+		byte[] hash = new byte[HASH_LENGTH];
+		for (int i = 0; i < HASH_LENGTH; i++)
+			hash[i] = data.get(48 + i);
+		sourceHash = new String(hash, StandardCharsets.US_ASCII);
+		for (int level = 0; level < levels; level++)
+			if ((long) levelOffset(level) + levelSize(level) > data.capacity())
+				throw new RuntimeException("BakedTexture: truncated");
+	}
+
+	// ------------------------ open ----------------------------
+	/**
+	 * Map the baked file of an image file if there is a fresh one.
+	 *
+	 * @param imageFile
+	 *            String source image file
+	 * @param compressor
+	 *            BlockCompressor the file must have been compressed with, or
+	 *            null if it must be uncompressed
+	 * @return BakedTexture or null if there is none or it is stale or damaged
+	 */
+	public static BakedTexture open(String imageFile, BlockCompressor compressor) {
+		File source = new File(imageFile);
+		File baked = bakedFile(imageFile);
+		if (baked == null)
+			return null;
+		if (!baked.isFile()) {
+			misses.incrementAndGet();
+			return null;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(baked, "r"); FileChannel fc = raf.getChannel()) {
+			// the mapping stays valid after the channel is closed
+			BakedTexture texture = new BakedTexture(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+			int components = Texture.componentsOf(texture.format);
+			if (texture.internalFormat != Texture.storageFormat(components, compressor)
+					|| texture.data.getInt(120) != recipe(texture.format == 0 ? compressor : null)) {
+				misses.incrementAndGet();
+				return null;
+			}
+			if (texture.data.getLong(40) != source.lastModified()) {
+				ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(source.toPath()));
+				if (!TextureCache.contentHash(bytes).equals(texture.sourceHash)) {
+					misses.incrementAndGet();
+					return null;
+				}
+				// same contents, e.g. after a checkout: record the new time so
+				// later runs don't hash the source again
+				restamp(baked, source.lastModified());
+			}
+			baked.setLastModified(System.currentTimeMillis()); // recently used
+			hits.incrementAndGet();
+			return texture;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("BakedTexture: ignoring " + baked + ": " + e.getMessage());
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	// write the source modification time into a baked file's header
+	private static void restamp(File baked, long lastModified) {
+		ByteBuffer time = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0, lastModified);
+		try (FileChannel fc = FileChannel.open(baked.toPath(), StandardOpenOption.WRITE)) {
+			fc.write(time, 40);
+		} catch (IOException iox) {
+			System.err.println("BakedTexture: unable to update " + baked + ": " + iox);
+		}
+	}
+
+	// ------------------------ upload ----------------------------
+	/**
+	 * Make a texture of the stored levels, with the parameters of
+	 * Texture.loadTexture( String ).
+	 *
+	 * @param mipmaps
+	 *            boolean false to upload level 0 only
+	 * @return Texture
+	 */
+	public Texture upload(boolean mipmaps) {
+		UtilsLWJGL.glError("--->BakedTexture.upload");
+		int n = mipmaps ? levels : 1;
+		Texture texture = Texture.allocate(width, height, n, internalFormat, Texture.componentsOf(format));
+		for (int level = 0; level < n; level++)
+			texture.uploadLevel(level, format, getLevel(level));
+		UtilsLWJGL.glError("<---BakedTexture.upload");
+		return texture;
+	}
+
+	// ------------------------ bake ----------------------------
+	/**
+	 * Write the baked file of an image file from the mip chain of its decoded
+	 * pixels, as built by MipBuilder, or from its compressed blocks. The file
+	 * is written to a temporary name and then renamed, so a reader never sees
+	 * half of it. Failures are reported and otherwise ignored; the image is
+	 * just decoded again next time.
+	 *
+	 * @param imageFile
+	 *            String source image file
+	 * @param sourceHash
+	 *            String TextureCache.contentHash of the source file
+	 * @param width
+	 *            int width of level 0
+	 * @param height
+	 *            int height of level 0
+	 * @param levels
+	 *            ByteBuffer[] levels or their blocks, bottom row first;
+	 *            not modified
+	 * @param internalFormat
+	 *            int Texture.storageFormat of the image
+	 * @param format
+	 *            int Texture.pixelFormat of the levels, 0 if compressed
+	 * @param compressor
+	 *            BlockCompressor that encoded the levels, or null
+	 */
+	public static void bake(String imageFile, String sourceHash, int width, int height, ByteBuffer[] levels,
+			int internalFormat, int format, BlockCompressor compressor) {
+		int[] sizes = new int[levels.length];
+		for (int level = 0; level < levels.length; level++)
+			sizes[level] = levels[level].remaining();
+		Baker baker = Baker.start(imageFile, sourceHash, width, height, sizes, internalFormat, format, compressor);
+		if (baker == null)
+			return;
+		for (ByteBuffer level : levels)
+			baker.level(level);
+		baker.finish();
+	}
+
+	// how levels are made now: the MipBuilder and BlockCompressor settings
+	// that a baked file must have been made with to be fresh
+	private static int recipe(BlockCompressor compressor) {
+		int recipe = MipBuilder.DEFAULT.getFilter().ordinal() | (MipBuilder.DEFAULT.isGammaCorrect() ? 0x100 : 0);
+		if (compressor != null)
+			recipe |= compressor.getPreset().ordinal() + 1 << 16;
+		return recipe;
+	}
+
+	// a copy of a mapped file whose levels are deflated, with the levels
+	// inflated to where the level table says
+	private static ByteBuffer inflate(MappedByteBuffer file) {
+		int levels = file.getInt(36);
+		int table = HEADER_SIZE + 8 * levels, start = align4(table), stored = file.getInt(116);
+		if (levels <= 0 || (long) start + stored > file.capacity())
+			throw new RuntimeException("BakedTexture: truncated");
+		int end = start;
+		for (int level = 0; level < levels; level++)
+			end = Math.max(end, file.getInt(HEADER_SIZE + 8 * level) + file.getInt(HEADER_SIZE + 8 * level + 4));
+		ByteBuffer data = ByteBuffer.allocateDirect(end).order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer header = file.duplicate();
+		header.position(0).limit(table);
+		data.put(header).position(start);
+		ByteBuffer in = file.duplicate();
+		in.position(start).limit(start + stored);
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(in);
+			while (data.hasRemaining() && !inflater.finished())
+				if (inflater.inflate(data) == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new RuntimeException("BakedTexture: truncated");
+		} catch (DataFormatException e) {
+			throw new RuntimeException("BakedTexture: damaged levels");
+		} finally {
+			inflater.end();
+		}
+		if (data.hasRemaining())
+			throw new RuntimeException("BakedTexture: truncated");
+		data.clear();
+		return data;
+	}
+
+	// ------------------------ prune ----------------------------
+	/**
+	 * Delete the least recently used baked files until the directory holds
+	 * no more than -Dp2.bakeCacheMB. Files still mapped stay usable where
+	 * the OS allows deleting them, and are skipped where it doesn't.
+	 */
+	public static synchronized void prune() {
+		File[] files = new File(BAKE_DIR).listFiles((dir, name) -> name.endsWith(SUFFIX));
+		if (CACHE_BYTES <= 0 || files == null)
+			return;
+		long total = 0;
+		for (File f : files)
+			total += f.length();
+		if (total <= CACHE_BYTES)
+			return;
+		long[] used = new long[files.length]; // lastModified changes while sorting
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			used[i] = files[i].lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(used[a], used[b]));
+		int n = 0;
+		long freed = 0;
+		for (int i = 0; i < order.length && total > CACHE_BYTES; i++) {
+			File f = files[order[i]];
+			long length = f.length();
+			if (f.delete()) {
+				total -= length;
+				freed += length;
+				n++;
+			}
+		}
+		System.err.printf("BakedTexture: pruned %d files, %d KB; %d of %d KB left\n", n, freed >> 10, total >> 10,
+				CACHE_BYTES >> 10);
+	}
+
+	// ------------------------ printStats ----------------------------
+	/**
+	 * Report the files in the bake directory and the hits and misses of
+	 * open() so far.
+	 */
+	public static void printStats() {
+		File[] files = new File(BAKE_DIR).listFiles((dir, name) -> name.endsWith(SUFFIX));
+		long total = 0;
+		for (int i = 0; files != null && i < files.length; i++)
+			total += files[i].length();
+		System.err.printf("BakedTexture: %s holds %d files, %d KB of %s; %d hits, %d misses, %d baked\n", BAKE_DIR,
+				files == null ? 0 : files.length, total >> 10,
+				CACHE_BYTES > 0 ? (CACHE_BYTES >> 10) + " KB" : "no limit", hits.get(), misses.get(), bakes.get());
+	}
+
+	// ------------------------ bakedFile ----------------------------
+	/**
+	 * Return where the baked file of an image file goes. The name includes a
+	 * hash of the canonical path, so same-named images in different
+	 * directories don't collide. It is keyed by path rather than by content
+	 * so a fresh file is found from the source's modification time without
+	 * reading the source; copies of one image under other names are shared
+	 * in memory by TextureCache.lookupContent instead.
+	 *
+	 * @param imageFile
+	 *            String source image file
+	 * @return File or null if the image is not a file
+	 */
+	public static File bakedFile(String imageFile) {
+		File source = new File(imageFile);
+		if (!source.isFile())
+			return null;
+		try {
+			String path = source.getCanonicalPath();
+			return new File(BAKE_DIR, source.getName() + "." + Integer.toHexString(path.hashCode()) + SUFFIX);
+		} catch (IOException iox) {
+			return null;
+		}
+	}
+
+	// ------------------------ getters ----------------------------
+	/**
+	 * Return the content hash of the source file the texture was baked from.
+	 *
+	 * @return String
+	 */
+	public String getSourceHash() {
+		return sourceHash;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getLevelCount() {
+		return levels;
+	}
+
+	public int getInternalFormat() {
+		return internalFormat;
+	}
+
+	/**
+	 * Return the stored pixels or blocks of a level. The buffer is a view of
+	 * the mapped file.
+	 *
+	 * @param level
+	 *            int from 0 to getLevelCount() - 1
+	 * @return ByteBuffer
+	 */
+	public ByteBuffer getLevel(int level) {
+		ByteBuffer pixels = data.duplicate();
+		pixels.position(levelOffset(level)).limit(levelOffset(level) + levelSize(level));
+		return pixels;
+	}
+
+	// ------------------------ helpers ----------------------------
+	private int levelOffset(int level) {
+		return data.getInt(HEADER_SIZE + 8 * level);
+	}
+
+	private int levelSize(int level) {
+		return data.getInt(HEADER_SIZE + 8 * level + 4);
+	}
+
+	private static int align4(int n) {
+		return (n + 3) & ~3;
+	}
+
+	// ========================= Baker ==================================
+	/**
+	 * Writes a baked file one level at a time, for a chain that is never in
+	 * client memory as a whole, e.g. one MipBuilder writes straight into a
+	 * PixelUploadRing slot. Give it every level in order, then finish(). The
+	 * file is written as by bake(): to a temporary name, renamed when done.
+	 * A failure is reported once and the rest of the calls do nothing.
+	 */
+	public static class Baker {
+		private static final ByteBuffer PADDING = ByteBuffer.allocateDirect(3).asReadOnlyBuffer();
+
+		private final String imageFile;
+		private final File baked, tmp;
+		private final ByteBuffer header;
+		private final int[] offsets, sizes;
+		private final int start;
+		private FileChannel fc;
+		private Deflater deflater = null; // with -Dp2.bakeDeflate
+		private ByteBuffer out = null; // deflated bytes waiting to be written
+		private int level = 0; // the next one expected
+
+		private Baker(String imageFile, File baked, ByteBuffer header, int[] sizes) throws IOException {
+			this.imageFile = imageFile;
+			this.baked = baked;
+			this.header = header;
+			this.sizes = sizes;
+			tmp = new File(baked.getPath() + ".tmp");
+			start = align4(header.capacity());
+			offsets = new int[sizes.length];
+			int offset = start;
+			for (int l = 0; l < sizes.length; l++) {
+				offsets[l] = offset;
+				offset = align4(offset + sizes[l]);
+			}
+			baked.getParentFile().mkdirs();
+			fc = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			fc.position(start);
+			if (DEFLATE) {
+				deflater = new Deflater(Deflater.BEST_SPEED);
+				out = ByteBuffer.allocateDirect(64 * 1024);
+			}
+		}
+
+		/**
+		 * Start the baked file of an image file; see bake() for the
+		 * parameters.
+		 *
+		 * @param levelSizes
+		 *            int[] bytes of each level that will be given
+		 * @return Baker or null if the image is not a file or the file can't
+		 *         be created
+		 */
+		public static Baker start(String imageFile, String sourceHash, int width, int height, int[] levelSizes,
+				int internalFormat, int format, BlockCompressor compressor) {
+			File baked = bakedFile(imageFile);
+			if (baked == null)
+				return null;
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 8 * levelSizes.length).order(ByteOrder.LITTLE_ENDIAN);
+			header.put(MAGIC).putInt(VERSION).putInt(ENDIAN);
+			header.putInt(internalFormat).putInt(format).putInt(format == 0 ? 0 : GL_UNSIGNED_BYTE);
+			header.putInt(width).putInt(height).putInt(levelSizes.length);
+			header.putLong(new File(imageFile).lastModified());
+			header.put(sourceHash.getBytes(StandardCharsets.US_ASCII), 0, HASH_LENGTH);
+			header.putInt(DEFLATE ? 1 : 0).putInt(0); // deflated size, by finish()
+			header.putInt(recipe(format == 0 ? compressor : null));
+			try {
+				return new Baker(imageFile, baked, header, levelSizes.clone());
+			} catch (IOException iox) {
+				System.err.println("BakedTexture: unable to bake " + imageFile + ": " + iox);
+				new File(baked.getPath() + ".tmp").delete();
+				return null;
+			}
+		}
+
+		/**
+		 * Write the next level. The buffer may be reused once this returns.
+		 *
+		 * @param pixels
+		 *            ByteBuffer the level's pixels or blocks from its
+		 *            position; not modified
+		 */
+		public void level(ByteBuffer pixels) {
+			if (fc == null)
+				return;
+			try {
+				if (level >= sizes.length || pixels.remaining() != sizes[level])
+					throw new IOException("level " + level + " of " + pixels.remaining() + " bytes is unexpected");
+				int pad = (level + 1 < sizes.length ? offsets[level + 1] : align4(offsets[level] + sizes[level]))
+						- offsets[level] - sizes[level];
+				if (deflater != null) {
+					// laid out as the offsets say, zeros between levels
+					deflate(pixels.duplicate());
+					ByteBuffer zeros = PADDING.duplicate();
+					zeros.limit(pad);
+					deflate(zeros);
+				} else {
+					ByteBuffer src = pixels.duplicate();
+					while (src.hasRemaining())
+						fc.write(src);
+					fc.position(fc.position() + pad);
+				}
+				level++;
+			} catch (IOException iox) {
+				fail(iox);
+			}
+		}
+
+		// feed the deflater until it has taken all of input
+		private void deflate(ByteBuffer input) throws IOException {
+			deflater.setInput(input);
+			while (!deflater.needsInput())
+				drain(deflater.deflate(out));
+		}
+
+		// write out the deflated bytes once the buffer is full or the
+		// deflater had nothing to add
+		private void drain(int n) throws IOException {
+			if (out.hasRemaining() && n > 0)
+				return;
+			out.flip();
+			while (out.hasRemaining())
+				fc.write(out);
+			out.clear();
+		}
+
+		/**
+		 * Write the header and move the file into place, then prune the
+		 * directory.
+		 */
+		public void finish() {
+			if (fc == null)
+				return;
+			try {
+				if (level != sizes.length)
+					throw new IOException("only " + level + " of " + sizes.length + " levels given");
+				if (deflater != null) {
+					deflater.finish();
+					while (!deflater.finished())
+						drain(deflater.deflate(out));
+					drain(0);
+					header.putInt(116, (int) (fc.position() - start));
+					deflater.end();
+					deflater = null;
+				}
+				for (int l = 0; l < sizes.length; l++)
+					header.putInt(HEADER_SIZE + 8 * l, offsets[l]).putInt(HEADER_SIZE + 8 * l + 4, sizes[l]);
+				header.clear();
+				fc.write(header, 0);
+				fc.close();
+				fc = null;
+				Files.move(tmp.toPath(), baked.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException iox) {
+				fail(iox);
+				return;
+			}
+			bakes.incrementAndGet();
+			System.err.printf("BakedTexture: %s -> %s, %d levels, %d KB\n", imageFile, baked, sizes.length,
+					baked.length() >> 10);
+			prune();
+		}
+
+		/**
+		 * Give up the file, e.g. when the chain could not be made.
+		 */
+		public void abort() {
+			if (fc != null)
+				fail(null);
+		}
+
+		private void fail(IOException iox) {
+			if (iox != null)
+				System.err.println("BakedTexture: unable to bake " + imageFile + ": " + iox);
+			if (deflater != null)
+				deflater.end();
+			deflater = null;
+			try {
+				if (fc != null)
+					fc.close();
+			} catch (IOException ignored) {
+			}
+			fc = null;
+			tmp.delete();
+		}
+	}
+}
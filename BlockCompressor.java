@@ -0,0 +1,380 @@
+
+/**
+ * BlockCompressor.java - encodes RGB8 mip chains as BC1 (DXT1) blocks.
+ *
+ * An uncompressed texture takes 4 bytes per texel in GL_RGBA; BC1 stores a
+ * 4x4 block in 8 bytes, half a byte per texel, so the images take an eighth
+ * of the memory and bandwidth. Each block keeps two RGB565 end colors and a
+ * 2 bit index per texel into the end colors and the two colors between them.
+ * The images are opaque, so BC1 is enough; BC3 would only add an alpha block
+ * that is always 255.
+ *
+ * The presets trade encoding time for fidelity in how the end colors are
+ * picked:
+ *
+ *   FAST   the corners of the block's bounding box, inset a little
+ *   NORMAL the extremes of the texels along the principal axis of the block
+ *   HIGH   NORMAL, then the end colors are refitted by least squares to the
+ *          chosen indices while that lowers the error
+ *
+ * compress() works on any thread; the block rows of each level run in
+ * parallel on the common fork-join pool. It reports the PSNR of level 0 and
+ * the time it took.
+ *
+ * Compression is off unless -Dp2.compress=fast|normal|high is set and the
+ * context has GL_EXT_texture_compression_s3tc, see forContext(). With
+ * -Dp2.srgb the blocks are stored as sRGB BC1, like the uncompressed
+ * textures, which also needs GL_EXT_texture_sRGB.
+ */
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.GL_COMPRESSED_RGB_S3TC_DXT1_EXT;
+import static org.lwjgl.opengl.EXTTextureSRGB.GL_COMPRESSED_SRGB_S3TC_DXT1_EXT;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.stream.IntStream;
+
+import org.lwjgl.opengl.GL;
+
+public class BlockCompressor {
+	// ------------------ class variables ------------------------------
+	/** Bytes of a 4x4 BC1 block. */
+	public static final int BLOCK_BYTES = 8;
+	/** Texels across a block. */
+	public static final int BLOCK_SIZE = 4;
+
+	private static final String PRESET = System.getProperty("p2.compress", "off");
+	private static final boolean SRGB = Boolean.getBoolean("p2.srgb"); // as Texture
+
+	// ========================= Preset ==================================
+	public enum Preset {
+		FAST, NORMAL, HIGH
+	}
+
+	// ========================= Encoded ==================================
+	/**
+	 * A compressed mip chain.
+	 */
+	public static class Encoded {
+		/** The levels' blocks, in rows of blocks from the bottom row. */
+		public final ByteBuffer[] levels;
+		/** PSNR of level 0 in dB; infinite if it is exact. */
+		public final double psnr;
+
+		Encoded(ByteBuffer[] levels, double psnr) {
+			this.levels = levels;
+			this.psnr = psnr;
+		}
+	}
+
+	// ---------------------- instance variables ------------------------------
+	private final Preset preset;
+
+	// ------------------ Constructors ----------------------------------
+	/**
+	 * Make an encoder.
+	 *
+	 * @param preset
+	 *            Preset speed and quality
+	 */
+	public BlockCompressor(Preset preset) {
+		this.preset = preset;
+	}
+
+	// ------------------------ forContext ----------------------------
+	/**
+	 * Return the encoder chosen with -Dp2.compress if the current context can
+	 * sample BC1. Must be called on the GL thread.
+	 *
+	 * @return BlockCompressor or null to keep textures uncompressed
+	 */
+	public static BlockCompressor forContext() {
+		if (PRESET.equalsIgnoreCase("off") || !GL.getCapabilities().GL_EXT_texture_compression_s3tc
+				|| (SRGB && !GL.getCapabilities().GL_EXT_texture_sRGB))
+			return null;
+		return new BlockCompressor(Preset.valueOf(PRESET.toUpperCase()));
+	}
+
+	/**
+	 * Return the speed and quality the end colors are picked with.
+	 *
+	 * @return Preset
+	 */
+	public Preset getPreset() {
+		return preset;
+	}
+
+	/**
+	 * Return the GL internal format of the blocks.
+	 *
+	 * @return int GL_COMPRESSED_SRGB_S3TC_DXT1_EXT with -Dp2.srgb, else
+	 *         GL_COMPRESSED_RGB_S3TC_DXT1_EXT
+	 */
+	public int getInternalFormat() {
+		return SRGB ? GL_COMPRESSED_SRGB_S3TC_DXT1_EXT : GL_COMPRESSED_RGB_S3TC_DXT1_EXT;
+	}
+
+	// ------------------------ compress ----------------------------
+	/**
+	 * Encode a mip chain.
+	 *
+	 * @param levels
+	 *            ByteBuffer[] RGB8 levels as built by MipBuilder
+	 * @param width
+	 *            int width of level 0
+	 * @param height
+	 *            int height of level 0
+	 * @param name
+	 *            String image name for the report
+	 * @return Encoded blocks of each level, direct buffers
+	 */
+	public Encoded compress(ByteBuffer[] levels, int width, int height, String name) {
+		long start = System.nanoTime();
+		ByteBuffer[] blocks = new ByteBuffer[levels.length];
+		double error0 = 0;
+		for (int l = 0; l < levels.length; l++) {
+			int w = MipBuilder.levelSize(width, l), h = MipBuilder.levelSize(height, l);
+			double error = compressLevel(levels[l].slice(), w, h, blocks[l] = allocate(w, h));
+			if (l == 0)
+				error0 = error;
+		}
+		double mse = error0 / (width * height * 3.0);
+		double psnr = 10 * Math.log10(255.0 * 255.0 / mse);
+		System.err.printf("BlockCompressor: %s BC1 %s, %.2f dB, %.1f ms\n", name, preset, psnr,
+				(System.nanoTime() - start) / 1e6);
+		return new Encoded(blocks, psnr);
+	}
+
+	/**
+	 * Return the bytes of a level's blocks; partial blocks at the right and
+	 * top edges count whole.
+	 *
+	 * @param width
+	 *            int level width
+	 * @param height
+	 *            int level height
+	 * @return int
+	 */
+	public static int levelBytes(int width, int height) {
+		return ((width + 3) / 4) * ((height + 3) / 4) * BLOCK_BYTES;
+	}
+
+	private static ByteBuffer allocate(int width, int height) {
+		return ByteBuffer.allocateDirect(levelBytes(width, height)).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	// encode one level; returns its summed squared error
+	private double compressLevel(ByteBuffer src, int width, int height, ByteBuffer dst) {
+		int blocksX = (width + 3) / 4, blocksY = (height + 3) / 4;
+		double[] rowError = new double[blocksY];
+		IntStream.range(0, blocksY).parallel().forEach(by -> {
+			int[] texels = new int[16 * 3];
+			for (int bx = 0; bx < blocksX; bx++) {
+				// gather the block; past an edge the edge texel repeats
+				for (int i = 0; i < 16; i++) {
+					int x = Math.min(bx * 4 + (i & 3), width - 1);
+					int y = Math.min(by * 4 + (i >> 2), height - 1);
+					for (int c = 0; c < 3; c++)
+						texels[i * 3 + c] = src.get((y * width + x) * 3 + c) & 0xff;
+				}
+				rowError[by] += encodeBlock(texels, dst, (by * blocksX + bx) * BLOCK_BYTES,
+						Math.min(4, width - bx * 4), Math.min(4, height - by * 4));
+			}
+		});
+		double error = 0;
+		for (double e : rowError)
+			error += e;
+		return error;
+	}
+
+	// ------------------------ block encoding ----------------------------
+	// encode 16 RGB texels at dst[offset]; returns the squared error of the
+	// insideW x insideH texels that are in the image
+	private double encodeBlock(int[] texels, ByteBuffer dst, int offset, int insideW, int insideH) {
+		float[] ends = preset == Preset.FAST ? boundingBoxEnds(texels) : principalAxisEnds(texels);
+		int c0 = to565(ends[0], ends[1], ends[2]), c1 = to565(ends[3], ends[4], ends[5]);
+		int[] indices = new int[16];
+		long error = pickIndices(texels, c0, c1, indices);
+
+		if (preset == Preset.HIGH)
+			for (int pass = 0; pass < 2; pass++) {
+				float[] refit = leastSquaresEnds(texels, indices, c0 < c1);
+				if (refit == null)
+					break;
+				int r0 = to565(refit[0], refit[1], refit[2]), r1 = to565(refit[3], refit[4], refit[5]);
+				int[] refitIndices = new int[16];
+				long refitError = pickIndices(texels, r0, r1, refitIndices);
+				if (refitError >= error)
+					break;
+				c0 = r0;
+				c1 = r1;
+				error = refitError;
+				indices = refitIndices;
+			}
+
+		// the larger end goes first, which selects the four color mode; equal
+		// ends decode index 0 the same in either mode
+		int bits = 0;
+		for (int i = 0; i < 16; i++)
+			bits |= indices[i] << (2 * i);
+		dst.putShort(offset, (short) Math.max(c0, c1));
+		dst.putShort(offset + 2, (short) Math.min(c0, c1));
+		dst.putInt(offset + 4, bits);
+
+		if (insideW == 4 && insideH == 4)
+			return error;
+		// partial block: count the texels inside the image only
+		int[] palette = palette(Math.max(c0, c1), Math.min(c0, c1));
+		long inside = 0;
+		for (int i = 0; i < 16; i++)
+			if ((i & 3) < insideW && (i >> 2) < insideH)
+				inside += distance(texels, i, palette, indices[i]);
+		return inside;
+	}
+
+	// corners of the bounding box, inset by 1/16 of its size as most
+	// encoders do, since the ends are rarely used by themselves
+	private static float[] boundingBoxEnds(int[] texels) {
+		float[] ends = new float[6];
+		for (int c = 0; c < 3; c++) {
+			int min = 255, max = 0;
+			for (int i = 0; i < 16; i++) {
+				min = Math.min(min, texels[i * 3 + c]);
+				max = Math.max(max, texels[i * 3 + c]);
+			}
+			float inset = (max - min) / 16f;
+			ends[c] = max - inset;
+			ends[3 + c] = min + inset;
+		}
+		return ends;
+	}
+
+	// extremes of the texels' projections on the principal axis, found by
+	// power iteration on the color covariance
+	private static float[] principalAxisEnds(int[] texels) {
+		float[] mean = new float[3];
+		for (int i = 0; i < 16; i++)
+			for (int c = 0; c < 3; c++)
+				mean[c] += texels[i * 3 + c] / 16f;
+		float[] cov = new float[6]; // rr rg rb gg gb bb
+		for (int i = 0; i < 16; i++) {
+			float r = texels[i * 3] - mean[0], g = texels[i * 3 + 1] - mean[1], b = texels[i * 3 + 2] - mean[2];
+			cov[0] += r * r;
+			cov[1] += r * g;
+			cov[2] += r * b;
+			cov[3] += g * g;
+			cov[4] += g * b;
+			cov[5] += b * b;
+		}
+		float ax = 1, ay = 1, az = 1;
+		for (int iter = 0; iter < 8; iter++) {
+			float x = cov[0] * ax + cov[1] * ay + cov[2] * az;
+			float y = cov[1] * ax + cov[3] * ay + cov[4] * az;
+			float z = cov[2] * ax + cov[4] * ay + cov[5] * az;
+			float len = Math.max(Math.abs(x), Math.max(Math.abs(y), Math.abs(z)));
+			if (len < 1e-6f)
+				break; // flat block: any axis will do
+			ax = x / len;
+			ay = y / len;
+			az = z / len;
+		}
+		float lo = Float.MAX_VALUE, hi = -Float.MAX_VALUE;
+		int loI = 0, hiI = 0;
+		for (int i = 0; i < 16; i++) {
+			float d = texels[i * 3] * ax + texels[i * 3 + 1] * ay + texels[i * 3 + 2] * az;
+			if (d < lo) {
+				lo = d;
+				loI = i;
+			}
+			if (d > hi) {
+				hi = d;
+				hiI = i;
+			}
+		}
+		return new float[] { texels[hiI * 3], texels[hiI * 3 + 1], texels[hiI * 3 + 2], texels[loI * 3],
+				texels[loI * 3 + 1], texels[loI * 3 + 2] };
+	}
+
+	// end colors that minimize the squared error for fixed indices, each
+	// texel being a*e0 + b*e1 with (a, b) from its index; null if singular.
+	// The indices refer to the larger end first, so swapped says c0 < c1.
+	private static float[] leastSquaresEnds(int[] texels, int[] indices, boolean swapped) {
+		final float[] A = { 1, 0, 2 / 3f, 1 / 3f };
+		float aa = 0, ab = 0, bb = 0;
+		float[] ax = new float[3], bx = new float[3];
+		for (int i = 0; i < 16; i++) {
+			float a = A[indices[i]], b = 1 - a;
+			aa += a * a;
+			ab += a * b;
+			bb += b * b;
+			for (int c = 0; c < 3; c++) {
+				ax[c] += a * texels[i * 3 + c];
+				bx[c] += b * texels[i * 3 + c];
+			}
+		}
+		float det = aa * bb - ab * ab;
+		if (Math.abs(det) < 1e-6f)
+			return null;
+		float[] ends = new float[6];
+		int first = swapped ? 3 : 0;
+		for (int c = 0; c < 3; c++) {
+			ends[first + c] = (ax[c] * bb - bx[c] * ab) / det;
+			ends[3 - first + c] = (bx[c] * aa - ax[c] * ab) / det;
+		}
+		return ends;
+	}
+
+	// nearest palette entry of each texel, with the indices referring to
+	// the larger end first as the block is written; returns the squared
+	// error
+	private static long pickIndices(int[] texels, int c0, int c1, int[] indices) {
+		int[] palette = palette(Math.max(c0, c1), Math.min(c0, c1));
+		long error = 0;
+		for (int i = 0; i < 16; i++) {
+			int best = 0;
+			int bestD = Integer.MAX_VALUE;
+			for (int p = 0; p < 4; p++) {
+				int d = distance(texels, i, palette, p);
+				if (d < bestD) {
+					bestD = d;
+					best = p;
+				}
+			}
+			indices[i] = best;
+			error += bestD;
+		}
+		return error;
+	}
+
+	// the four colors of a block with c0 > c1, as R G B triples
+	private static int[] palette(int c0, int c1) {
+		int[] p = new int[12];
+		expand(c0, p, 0);
+		expand(c1, p, 3);
+		for (int c = 0; c < 3; c++) {
+			p[6 + c] = (2 * p[c] + p[3 + c]) / 3;
+			p[9 + c] = (p[c] + 2 * p[3 + c]) / 3;
+		}
+		return p;
+	}
+
+	private static int distance(int[] texels, int i, int[] palette, int p) {
+		int dr = texels[i * 3] - palette[p * 3];
+		int dg = texels[i * 3 + 1] - palette[p * 3 + 1];
+		int db = texels[i * 3 + 2] - palette[p * 3 + 2];
+		return dr * dr + dg * dg + db * db;
+	}
+
+	private static int to565(float r, float g, float b) {
+		int r5 = Math.round(Math.min(Math.max(r, 0), 255) * 31 / 255f);
+		int g6 = Math.round(Math.min(Math.max(g, 0), 255) * 63 / 255f);
+		int b5 = Math.round(Math.min(Math.max(b, 0), 255) * 31 / 255f);
+		return (r5 << 11) | (g6 << 5) | b5;
+	}
+
+	private static void expand(int c, int[] rgb, int at) {
+		int r5 = (c >> 11) & 31, g6 = (c >> 5) & 63, b5 = c & 31;
+		rgb[at] = (r5 << 3) | (r5 >> 2);
+		rgb[at + 1] = (g6 << 2) | (g6 >> 4);
+		rgb[at + 2] = (b5 << 3) | (b5 >> 2);
+	}
+}
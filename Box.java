@@ -58,7 +58,7 @@ public class Box extends Shape3D {
 	 * Construct the data for this box object.
 	 */
 	public Box() {
-		setCoordData(verts, 3);
+		setCoordData(verts, 3, true); // indexed: 36 corners weld to 20
 		setNormalData(verts, 3); // Normals are same as vertices!
 		setTextureCoordData(boxTexCoords, 2);
 	}
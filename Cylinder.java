@@ -148,7 +148,7 @@ public class Cylinder extends Shape3D {
 
 		verts = vert3;
 
-		setCoordData(verts, 3);
+		setCoordData(verts, 3, true); // indexed: rims and caps share vertices
 		setNormalData(verts, 3); // Normals are same as vertices!
 		setTextureCoordData(vertText, 2);
 
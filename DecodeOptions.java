@@ -0,0 +1,327 @@
+
+/**
+ * DecodeOptions.java - decode part of an image, or the image at a smaller
+ * size, without first decoding all of it at full resolution.
+ *
+ * A shape drawn small, or a texture that is going to be size limited, only
+ * needs a reduced image: withMaxSize() limits the larger side, withMipLevel()
+ * asks for the size of a mip level. The image is reduced by a power of two.
+ * withRegion() decodes one rectangle of a very large image, e.g. a tile.
+ *
+ * Images ImageIO can read (JPEG, PNG, GIF, BMP) are decoded with a source
+ * region and source subsampling, so the reader only keeps the rows and
+ * columns it needs and the full image is never in memory. ImageIO's JPEG
+ * reader has no DCT scaling; it decodes a whole row of blocks at a time, so
+ * a reduced decode saves most of the memory but less of the time. It is
+ * subsampled to twice the size asked for and the last halving is done by
+ * MipBuilder, which filters instead of dropping texels. Other formats are
+ * decoded by stb at full size and then cropped and halved.
+ *
+ * Region coordinates are texels of the image as it is stored, from its top
+ * left corner, as image editors show them. The result has its bottom row
+ * first, like stbi_set_flip_vertically_on_load( true ).
+ *
+ * DecodeOptions are immutable. decode() needs no GL context.
+ */
+import static org.lwjgl.stb.STBImage.*;
+
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.lwjgl.BufferUtils;
+
+public class DecodeOptions {
+	// ------------------ class variables ------------------------------
+	/** The whole image at full size. */
+	public static final DecodeOptions FULL = new DecodeOptions(0, 0, null);
+
+	// ---------------------- instance variables ------------------------------
+	private final int maxSize; // 0: no limit
+	private final int mipLevel;
+	private final Rectangle region; // or null for the whole image
+
+	// ------------------ Constructors ----------------------------------
+	private DecodeOptions(int maxSize, int mipLevel, Rectangle region) {
+		this.maxSize = maxSize;
+		this.mipLevel = mipLevel;
+		this.region = region;
+	}
+
+	// ------------------------- with... ----------------------------
+	/**
+	 * Return a copy that halves the image until neither side is larger than
+	 * maxSize.
+	 *
+	 * @param maxSize
+	 *            int largest width or height wanted; 0 for no limit
+	 * @return DecodeOptions
+	 */
+	public DecodeOptions withMaxSize(int maxSize) {
+		if (maxSize < 0)
+			throw new RuntimeException("DecodeOptions: invalid size " + maxSize);
+		return new DecodeOptions(maxSize, mipLevel, region);
+	}
+
+	/**
+	 * Return a copy that halves the image at least level times, giving the
+	 * size of that mip level.
+	 *
+	 * @param level
+	 *            int mip level, 0 for full size
+	 * @return DecodeOptions
+	 */
+	public DecodeOptions withMipLevel(int level) {
+		if (level < 0 || level > 30)
+			throw new RuntimeException("DecodeOptions: invalid mip level " + level);
+		return new DecodeOptions(maxSize, level, region);
+	}
+
+	/**
+	 * Return a copy that decodes a rectangle of the image only. Any
+	 * reduction applies to the rectangle.
+	 *
+	 * @param x
+	 *            int left column
+	 * @param y
+	 *            int top row
+	 * @param width
+	 *            int columns
+	 * @param height
+	 *            int rows
+	 * @return DecodeOptions
+	 */
+	public DecodeOptions withRegion(int x, int y, int width, int height) {
+		if (x < 0 || y < 0 || width <= 0 || height <= 0)
+			throw new RuntimeException("DecodeOptions: invalid region " + x + "," + y + " " + width + "x" + height);
+		return new DecodeOptions(maxSize, mipLevel, new Rectangle(x, y, width, height));
+	}
+
+	/**
+	 * Return true if these options decode the whole image at full size.
+	 *
+	 * @return boolean
+	 */
+	public boolean isFull() {
+		return maxSize == 0 && mipLevel == 0 && region == null;
+	}
+
+	// ------------------------- decode ----------------------------
+	/**
+	 * Decode image file data with these options, keeping the image's own
+	 * channels as stb would.
+	 *
+	 * @param fileData
+	 *            ByteBuffer raw contents of the image file; not modified
+	 * @param name
+	 *            String for reporting
+	 * @return Image bottom row first
+	 * @throws IOException
+	 *             if the data can't be decoded
+	 */
+	public Image decode(ByteBuffer fileData, String name) throws IOException {
+		ImageInputStream input = ImageIO.createImageInputStream(new BufferInputStream(fileData.duplicate()));
+		Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+		if (readers == null || !readers.hasNext()) {
+			if (input != null)
+				input.close();
+			return decodeStb(fileData, name);
+		}
+		ImageReader reader = readers.next();
+		BufferedImage decoded;
+		int factor;
+		try {
+			reader.setInput(input, true, true);
+			Rectangle r = clip(reader.getWidth(0), reader.getHeight(0), name);
+			factor = factor(r.width, r.height);
+			// subsample to twice the size, the last halving is filtered
+			int step = Math.max(1, factor / 2);
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceRegion(r);
+			param.setSourceSubsampling(step, step, 0, 0);
+			decoded = reader.read(0, param);
+		} catch (IOException e) {
+			// e.g. a CMYK JPEG; stb may still read it
+			System.err.printf("DecodeOptions: %s: %s, decoding with stb\n", name, e);
+			return decodeStb(fileData, name);
+		} finally {
+			reader.dispose();
+			input.close();
+		}
+		Image image = pixelsOf(decoded);
+		return factor > 1 ? image.halve() : image;
+	}
+
+	// decode all of the image with stb, then crop and halve it
+	private Image decodeStb(ByteBuffer fileData, String name) throws IOException {
+		IntBuffer w = BufferUtils.createIntBuffer(1);
+		IntBuffer h = BufferUtils.createIntBuffer(1);
+		IntBuffer comp = BufferUtils.createIntBuffer(1);
+		stbi_set_flip_vertically_on_load(true);
+		ByteBuffer pixels = stbi_load_from_memory(fileData, w, h, comp, 0);
+		if (pixels == null)
+			throw new IOException(name + ": " + stbi_failure_reason());
+		int width = w.get(0), height = h.get(0), components = comp.get(0);
+		Image image;
+		try {
+			Rectangle r = clip(width, height, name);
+			ByteBuffer cropped = BufferUtils.createByteBuffer(r.width * r.height * components);
+			int rowBytes = r.width * components;
+			for (int row = 0; row < r.height; row++) {
+				// rows are bottom first; the region's bottom row is
+				// r.y + r.height - 1 from the top
+				int src = ((height - r.y - r.height + row) * width + r.x) * components;
+				ByteBuffer line = pixels.duplicate();
+				line.limit(src + rowBytes).position(src);
+				cropped.put(line);
+			}
+			cropped.flip();
+			image = new Image(cropped, r.width, r.height, components);
+		} finally {
+			stbi_image_free(pixels);
+		}
+		for (int factor = factor(image.width, image.height); factor > 1; factor /= 2)
+			image = image.halve();
+		return image;
+	}
+
+	// the region within an image of the size
+	private Rectangle clip(int width, int height, String name) {
+		Rectangle whole = new Rectangle(0, 0, width, height);
+		if (region == null)
+			return whole;
+		if (!whole.contains(region))
+			throw new RuntimeException("DecodeOptions: " + name + " " + width + "x" + height + " does not contain "
+					+ region.x + "," + region.y + " " + region.width + "x" + region.height);
+		return region;
+	}
+
+	// power of two the decoded size is divided by
+	private int factor(int width, int height) {
+		int factor = 1 << mipLevel;
+		if (maxSize > 0)
+			while (Math.max(width, height) / factor > maxSize)
+				factor *= 2;
+		return factor;
+	}
+
+	// the texels of an ImageIO image, bottom row first; 8 bit grey and RGB(A)
+	// images keep their channels, others are converted to RGB or RGBA
+	private static Image pixelsOf(BufferedImage decoded) {
+		int width = decoded.getWidth(), height = decoded.getHeight();
+		Raster raster = decoded.getRaster();
+		ColorModel cm = decoded.getColorModel();
+		int space = cm.getColorSpace().getType();
+		boolean direct = cm instanceof ComponentColorModel && raster.getTransferType() == DataBuffer.TYPE_BYTE
+				&& !cm.isAlphaPremultiplied() && (cm.getColorSpace().isCS_sRGB() || space == ColorSpace.TYPE_GRAY);
+		int components = direct ? raster.getNumBands() : cm.hasAlpha() ? 4 : 3;
+		ByteBuffer pixels = BufferUtils.createByteBuffer(width * height * components);
+		int[] row = new int[width * components];
+		for (int y = height - 1; y >= 0; y--) {
+			if (direct) {
+				raster.getPixels(0, y, width, 1, row);
+				for (int i = 0; i < row.length; i++)
+					pixels.put((byte) row[i]);
+			} else {
+				decoded.getRGB(0, y, width, 1, row, 0, width);
+				for (int x = 0; x < width; x++) {
+					int argb = row[x];
+					pixels.put((byte) (argb >> 16)).put((byte) (argb >> 8)).put((byte) argb);
+					if (components == 4)
+						pixels.put((byte) (argb >>> 24));
+				}
+			}
+		}
+		pixels.flip();
+		return new Image(pixels, width, height, components);
+	}
+
+	// ------------------------- equals/hashCode ----------------------------
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof DecodeOptions))
+			return false;
+		DecodeOptions d = (DecodeOptions) o;
+		return maxSize == d.maxSize && mipLevel == d.mipLevel
+				&& (region == null ? d.region == null : region.equals(d.region));
+	}
+
+	@Override
+	public int hashCode() {
+		return (maxSize * 31 + mipLevel) * 31 + (region == null ? 0 : region.hashCode());
+	}
+
+	@Override
+	public String toString() {
+		String s = "max " + maxSize + " level " + mipLevel;
+		return region == null ? s : s + " region " + region.x + "," + region.y + " " + region.width + "x" + region.height;
+	}
+
+	// ========================= Image ==================================
+	/**
+	 * Decoded texels, tightly packed, bottom row first. The buffer is
+	 * garbage collected.
+	 */
+	public static class Image {
+		public final ByteBuffer pixels;
+		public final int width, height, components;
+
+		Image(ByteBuffer pixels, int width, int height, int components) {
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+			this.components = components;
+		}
+
+		// the image filtered to half size by MipBuilder
+		Image halve() {
+			ByteBuffer half = MipBuilder.DEFAULT.downsample(pixels, width, height, components);
+			return new Image(half, MipBuilder.levelSize(width, 1), MipBuilder.levelSize(height, 1), components);
+		}
+	}
+
+	// ========================= BufferInputStream ==================================
+	// the bytes of a buffer as a stream, for ImageIO
+	private static class BufferInputStream extends InputStream {
+		private final ByteBuffer data;
+
+		BufferInputStream(ByteBuffer data) {
+			this.data = data;
+		}
+
+		@Override
+		public int read() {
+			return data.hasRemaining() ? data.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!data.hasRemaining())
+				return -1;
+			len = Math.min(len, data.remaining());
+			data.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return data.remaining();
+		}
+	}
+}
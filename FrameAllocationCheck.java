@@ -0,0 +1,104 @@
+/**
+ * FrameAllocationCheck.java - checks that the render loop allocates nothing
+ * on the heap once it is warm.
+ *
+ * Steps through every scene of the SceneManager, with plain and with
+ * instanced drawing, and runs the frame P2.renderLoop runs -- texture
+ * uploads, a rotation as from a held key, clear, redraw, swap, events --
+ * in a window that is never shown. Each scene is first drawn until its
+ * textures have loaded and the warm up frames have passed, then the heap
+ * bytes the GL thread allocates over the measured frames are read from
+ * com.sun.management.ThreadMXBean.getThreadAllocatedBytes.
+ *
+ * Prints the bytes per frame of every scene and mode, and exits with
+ * status 1 if any of them allocated at all. Needs a display.
+ *
+ * usage: java FrameAllocationCheck [frames [warmFrames]]
+ */
+import static org.lwjgl.glfw.GLFW.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL20.glUseProgram;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+public class FrameAllocationCheck {
+	// ------------------ class variables ------------------------------
+	private static final long UPLOAD_BUDGET = 4000000; // as P2
+
+	// ------------------------ main ----------------------------
+	/**
+	 * Run the check.
+	 *
+	 * @param args
+	 *            String[]
+	 * @throws IOException
+	 *             if the shaders can't be read
+	 */
+	public static void main(String[] args) throws IOException {
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+		int warmFrames = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+
+		com.sun.management.ThreadMXBean probe = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+
+		long windowId = UtilsLWJGL.openWindow("FrameAllocationCheck", 780, 800);
+		glfwHideWindow(windowId);
+		LWJGL.windowId = windowId;
+		LWJGL.shaderProgram = UtilsLWJGL.makeShaderProgram("texture.vsh", "texture.fsh");
+		glUseProgram(LWJGL.shaderProgram);
+
+		SceneManager sceneManager = new SceneManager();
+		glEnable(GL_DEPTH_TEST);
+		glEnable(GL_CULL_FACE);
+		glClearColor(0.0f, 0.0f, 0.0f, 1.0f);
+		glClearDepth(1.0f);
+		glEnable(GL_BLEND);
+		glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+
+		boolean failed = false;
+		System.out.printf("FrameAllocationCheck: %d frames after %d warm up frames\n", frames, warmFrames);
+		System.out.printf("%-6s %-10s %14s\n", "scene", "drawing", "bytes/frame");
+		for (int scene = 0; scene < sceneManager.getSceneCount(); scene++) {
+			for (boolean instanced : new boolean[] { false, true }) {
+				for (int f = 0; f < warmFrames || !TextureLoader.isIdle(); f++)
+					frame(windowId, sceneManager);
+				long before = probe.getThreadAllocatedBytes(threadId);
+				for (int f = 0; f < frames; f++)
+					frame(windowId, sceneManager);
+				long bytes = probe.getThreadAllocatedBytes(threadId) - before;
+				System.out.printf("%-6d %-10s %14.1f\n", scene, instanced ? "instanced" : "plain",
+						bytes / (double) frames);
+				failed |= bytes > 0;
+				key(windowId, sceneManager, GLFW_KEY_N); // toggle instancing
+			}
+			key(windowId, sceneManager, GLFW_KEY_PERIOD); // next scene
+		}
+		System.out.println(failed ? "FrameAllocationCheck: FAILED" : "FrameAllocationCheck: passed");
+
+		TextureLoader.shutdown();
+		sceneManager.close();
+		GLResources.drain();
+		glfwDestroyWindow(windowId);
+		glfwTerminate();
+		System.exit(failed ? 1 : 0);
+	}
+
+	// ------------------------ helpers ----------------------------
+	// one pass of P2.renderLoop, with the scene rotated as if x were held
+	private static void frame(long windowId, SceneManager sceneManager) {
+		TextureLoader.processUploads(UPLOAD_BUDGET);
+		sceneManager.keyHandler(windowId, GLFW_KEY_X, 0, GLFW_REPEAT, 0);
+		glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
+		sceneManager.redraw();
+		glfwSwapBuffers(windowId);
+		glfwPollEvents();
+	}
+
+	// a key pressed and released, as SceneManager acts on the release
+	private static void key(long windowId, SceneManager sceneManager, int key) {
+		sceneManager.keyHandler(windowId, key, 0, GLFW_PRESS, 0);
+		sceneManager.keyHandler(windowId, key, 0, GLFW_RELEASE, 0);
+	}
+}
@@ -0,0 +1,164 @@
+
+/**
+ * GLResources.java - deferred deletion of GL objects and native buffers.
+ *
+ * GL objects can only be deleted on the thread that owns the context, but
+ * close() may be called from anywhere and leaked objects are found by the
+ * garbage collector on its own thread. So every release goes through a queue
+ * that the render loop drains once per frame on the GL thread.
+ *
+ * Objects owning GL or MemoryUtil memory register themselves with register()
+ * and get back a Handle. Closing the Handle queues the release. If the owner
+ * becomes unreachable without being closed, a Cleaner queues the release
+ * anyway and the leak is reported. With -Dgl.leakSites=true the report
+ * includes the stack of the allocation, so the missing close() can be
+ * found; capturing it costs a stack trace per object, so it is off by
+ * default.
+ *
+ * The release actions must not refer to their owner, or it would never become
+ * unreachable.
+ */
+import java.lang.ref.Cleaner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class GLResources {
+	// ------------------ class variables ------------------------------
+	private static final boolean LEAK_SITES = Boolean.getBoolean("gl.leakSites");
+	private static final Cleaner cleaner = Cleaner.create();
+	private static final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+
+	private static final AtomicInteger live = new AtomicInteger(); // open
+	private static final AtomicInteger leaks = new AtomicInteger(); // found
+	private static int released = 0; // releases run by drain
+
+	// ------------------------ register ----------------------------
+	/**
+	 * Track a resource owner; the release action runs on the GL thread once
+	 * the returned Handle is closed or the owner is garbage collected.
+	 *
+	 * @param owner
+	 *            Object whose reachability is watched
+	 * @param what
+	 *            String description for the leak report
+	 * @param release
+	 *            Runnable freeing the owner's resources; must not refer to
+	 *            the owner
+	 * @return Handle to close when the owner is done
+	 */
+	public static Handle register(Object owner, String what, Runnable release) {
+		Handle handle = new Handle(what, release);
+		handle.cleanable = cleaner.register(owner, handle);
+		live.incrementAndGet();
+		return handle;
+	}
+
+	// ------------------------ deleteLater ----------------------------
+	/**
+	 * Queue an action for the next drain on the GL thread.
+	 *
+	 * @param action
+	 *            Runnable making GL or MemoryUtil calls
+	 */
+	public static void deleteLater(Runnable action) {
+		pending.add(action);
+	}
+
+	// ------------------------ drain ----------------------------
+	/**
+	 * Run the queued releases. Must be called on the GL thread; the render
+	 * loop calls it once per frame and once more before the context goes.
+	 *
+	 * @return int number of releases run
+	 */
+	public static int drain() {
+		int n = 0;
+		Runnable action;
+		while ((action = pending.poll()) != null) {
+			action.run();
+			n++;
+		}
+		released += n;
+		return n;
+	}
+
+	// ------------------------ getters ----------------------------
+	/**
+	 * Return the number of registered resources not yet closed or collected.
+	 *
+	 * @return int
+	 */
+	public static int getLiveCount() {
+		return live.get();
+	}
+
+	/**
+	 * Return the number of resources that were collected without close().
+	 *
+	 * @return int
+	 */
+	public static int getLeakCount() {
+		return leaks.get();
+	}
+
+	/**
+	 * Return the number of releases run so far.
+	 *
+	 * @return int
+	 */
+	public static int getReleasedCount() {
+		return released;
+	}
+
+	// ========================= Handle ==================================
+	/**
+	 * Registration of one resource owner. Also the Cleaner action, so it
+	 * holds everything the release needs but not the owner.
+	 */
+	public static class Handle implements Runnable {
+		private final String what;
+		private final Throwable site; // allocation stack, or null
+		private final Runnable release;
+		private volatile boolean closed = false;
+		private Cleaner.Cleanable cleanable;
+
+		Handle(String what, Runnable release) {
+			this.what = what;
+			this.release = release;
+			site = LEAK_SITES ? new Throwable("allocated here") : null;
+		}
+
+		/**
+		 * Queue the release; later calls do nothing.
+		 */
+		public void close() {
+			closed = true;
+			cleanable.clean(); // runs run() at most once
+		}
+
+		/**
+		 * Return true once close() was called.
+		 *
+		 * @return boolean
+		 */
+		public boolean isClosed() {
+			return closed;
+		}
+
+		// called once, by close() or by the Cleaner thread
+		@Override
+		public void run() {
+			live.decrementAndGet();
+			if (!closed) {
+				leaks.incrementAndGet();
+				if (site != null) {
+					System.err.printf("GLResources: %s was not closed\n", what);
+					site.printStackTrace();
+				} else
+					System.err.printf("GLResources: %s was not closed (-Dgl.leakSites=true shows where it was made)\n",
+							what);
+			}
+			pending.add(release);
+		}
+	}
+}
@@ -0,0 +1,109 @@
+
+/**
+ * GeometryRegistry.java - content-addressed store of shared Meshes.
+ *
+ * Shapes hand their interleaved vertex data to acquire() and get back a Mesh.
+ * The data is hashed, so all shapes with identical vertex data and layout
+ * share a single VAO and VBO, no matter which class or instance produced it.
+ * Meshes are reference counted; release() deletes a Mesh once its last user
+ * is gone.
+ *
+ * All methods must be called on the thread owning the GL context.
+ */
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class GeometryRegistry {
+	// ------------------ class variables ------------------------------
+	private static HashMap<Key, Mesh> meshes = new HashMap<Key, Mesh>();
+	private static HashMap<Mesh, Key> keys = new HashMap<Mesh, Key>();
+
+	// ------------------------ acquire ----------------------------
+	/**
+	 * Return the shared Mesh for the specified vertex data, creating and
+	 * downloading it the first time the data is seen. Each call must be
+	 * balanced by a call to release().
+	 *
+	 * @param vertexData
+	 *            float[] interleaved vertex data
+	 * @param layout
+	 *            VertexLayout of one vertex
+	 * @param indexed
+	 *            boolean true to weld the vertices and draw indexed
+	 * @param name
+	 *            String name for reporting, usually the shape class
+	 * @return Mesh shared mesh
+	 */
+	public static Mesh acquire(float[] vertexData, VertexLayout layout, boolean indexed, String name) {
+		Key key = new Key(vertexData, layout, indexed);
+		Mesh mesh = meshes.get(key);
+		if (mesh == null) {
+			// keep a private copy so later edits to the caller's array
+			// can't corrupt the key
+			key = new Key(vertexData.clone(), layout, indexed);
+			mesh = new Mesh(vertexData, layout, indexed, name);
+			meshes.put(key, mesh);
+			keys.put(mesh, key);
+		}
+		mesh.retain();
+		return mesh;
+	}
+
+	// ------------------------ release ----------------------------
+	/**
+	 * Give up one reference to the mesh; the mesh is deleted when no shape
+	 * uses it any more.
+	 *
+	 * @param mesh
+	 *            Mesh returned by acquire
+	 */
+	public static void release(Mesh mesh) {
+		if (mesh == null || !mesh.releaseRef())
+			return;
+		Key key = keys.remove(mesh);
+		if (key != null)
+			meshes.remove(key);
+		mesh.delete();
+	}
+
+	// ------------------------ getMeshCount ----------------------------
+	/**
+	 * Return the number of distinct meshes currently on the GPU.
+	 *
+	 * @return int
+	 */
+	public static int getMeshCount() {
+		return meshes.size();
+	}
+
+	// ========================= Key ==================================
+	/**
+	 * Hash key built from the contents of the vertex data and its layout.
+	 */
+	private static class Key {
+		private final float[] data;
+		private final VertexLayout layout;
+		private final boolean indexed;
+		private final int hash;
+
+		Key(float[] data, VertexLayout layout, boolean indexed) {
+			this.data = data;
+			this.layout = layout;
+			this.indexed = indexed;
+			hash = (Arrays.hashCode(data) * 31 + layout.hashCode()) * 2 + (indexed ? 1 : 0);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return hash == k.hash && indexed == k.indexed && layout.equals(k.layout) && Arrays.equals(data, k.data);
+		}
+	}
+}
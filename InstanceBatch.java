@@ -0,0 +1,251 @@
+
+/**
+ * InstanceBatch.java - a group of Shape3D objects that share a mesh and a
+ * texture, drawn with a single instanced draw call.
+ *
+ * The per-object state that Shape3D.redraw normally sends as uniform variables
+ * (model matrix, color, texture weight and TextureArray layer) is packed
+ * into an instance VBO instead, and the vertex shader reads it through the
+ * instanced attributes iModel, iColor, iTexWt and iLayer. Shapes showing
+ * different layers of one TextureArray share a batch. The batch draws
+ * through the shared Mesh of its first shape; since several batches (one
+ * per texture) can use the same Mesh, the instance attributes of its VAO
+ * are pointed at this batch's instance buffer on every draw, and disabled
+ * again after it, so the shared VAO never sources them from a buffer that
+ * has since been deleted.
+ */
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL33.glVertexAttribDivisor;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+import org.joml.FrustumIntersection;
+import org.lwjgl.system.MemoryUtil;
+
+public class InstanceBatch {
+	// ------------------ class variables ------------------------------
+	// per instance: mat4 model, vec4 color, float texture weight, float layer
+	static final int FLOATS_PER_INSTANCE = 16 + 4 + 1 + 1;
+	static final int INSTANCE_STRIDE = FLOATS_PER_INSTANCE * 4; // bytes
+
+	private static int shaderPgm = -1;
+	private static int iModel = -1; // first of 4 attrib ids for mat4
+	private static int iColor = -1;
+	private static int iTexWt = -1;
+	private static int iLayer = -1;
+	private static int unifInstanced = -1;
+	private static int unifHasTexture = -1;
+
+	// ---------------------- instance variables ------------------------------
+	private ArrayList<Shape3D> shapes = new ArrayList<Shape3D>();
+	private ArrayList<Object> meshKeys = new ArrayList<Object>(); // as grouped
+	private Texture texture = null;
+
+	private FloatBuffer instanceBuf = null;
+	private int instanceVBO = -1;
+
+	// ------------------ Constructors ----------------------------------
+	/**
+	 * Create an empty batch for shapes that use the specified texture.
+	 *
+	 * @param texture
+	 *            Texture shared by all shapes of the batch, or null
+	 */
+	public InstanceBatch(Texture texture) {
+		this.texture = texture;
+		if (shaderPgm != LWJGL.shaderProgram)
+			findShaderVariables();
+		instanceVBO = glGenBuffers();
+	}
+
+	// ------------------------- findShaderVariables -----------------------
+	/**
+	 * Look up the instanced attributes and the uniform variables needed to
+	 * switch the shader into instanced mode.
+	 */
+	private static void findShaderVariables() {
+		shaderPgm = LWJGL.shaderProgram;
+		iModel = glGetAttribLocation(shaderPgm, "iModel");
+		iColor = glGetAttribLocation(shaderPgm, "iColor");
+		iTexWt = glGetAttribLocation(shaderPgm, "iTexWt");
+		iLayer = glGetAttribLocation(shaderPgm, "iLayer");
+		unifInstanced = glGetUniformLocation(shaderPgm, "uInstanced");
+		unifHasTexture = glGetUniformLocation(shaderPgm, "uHasTexture");
+	}
+
+	// ------------------------- add ----------------------------
+	/**
+	 * Add a shape to the batch.
+	 *
+	 * @param shape
+	 *            Shape3D with the same mesh and texture as the batch
+	 */
+	public void add(Shape3D shape) {
+		shapes.add(shape);
+		meshKeys.add(shape.getMeshKey());
+	}
+
+	// ------------------------- isValid ----------------------------
+	/**
+	 * A batch is only valid while all its shapes still use its texture and
+	 * the mesh they had when they were added, since every shape is drawn
+	 * through the mesh of the first. setTexture may have been called after
+	 * the batch was built, switching the texture or TextureArray the layers
+	 * come from, or selecting an atlas region, which remaps the texture
+	 * coordinates into a new Mesh; so may setCoordData and the other calls
+	 * that change the vertex data or its layout. The layer itself is read
+	 * on every draw.
+	 *
+	 * @return boolean
+	 */
+	public boolean isValid() {
+		for (int i = 0; i < shapes.size(); i++) {
+			Shape3D shape = shapes.get(i);
+			if (shape.getTexture() != texture || shape.getMeshKey() != meshKeys.get(i))
+				return false;
+		}
+		return true;
+	}
+
+	// ------------------------- delete ----------------------------
+	/**
+	 * Release the instance buffers.
+	 */
+	public void delete() {
+		glDeleteBuffers(instanceVBO);
+		MemoryUtil.memFree(instanceBuf);
+		instanceBuf = null;
+		instanceVBO = -1;
+	}
+
+	// ------------------------- redraw ----------------------------
+	/**
+	 * Stream the per-instance data of every visible shape to the GPU and
+	 * draw all of them with one instanced draw call.
+	 * 
+	 * @param frustum
+	 *            FrustumIntersection to cull against, or null to draw all
+	 * @return int number of shapes drawn
+	 */
+	public int redraw(FrustumIntersection frustum) {
+		if (shapes.size() == 0)
+			return 0;
+		Shape3D first = shapes.get(0);
+
+		int nShapes = fillInstanceBuffer(frustum);
+		if (nShapes == 0 || !first.bindMesh())
+			return 0;
+
+		glBindBuffer(GL_ARRAY_BUFFER, instanceVBO);
+		glBufferData(GL_ARRAY_BUFFER, instanceBuf, GL_STREAM_DRAW);
+		setupInstanceAttributes();
+
+		glUniform1i(unifInstanced, 1);
+		glUniform1i(unifHasTexture, texture != null ? 1 : 0);
+		if (texture != null)
+			RenderState.bindTexture(texture); // stays on its unit
+
+		first.getMesh().drawInstanced(nShapes);
+		clearInstanceAttributes();
+
+		glUniform1i(unifInstanced, 0);
+		RenderState.unbindVertexArray();
+		return nShapes;
+	}
+
+	// ------------------------- fillInstanceBuffer ----------------------------
+	/**
+	 * Pack model matrix, color, texture weight and layer of every visible
+	 * shape into the instance buffer, growing it if the batch has grown.
+	 * 
+	 * @return int number of shapes packed
+	 */
+	private int fillInstanceBuffer(FrustumIntersection frustum) {
+		int nFloats = shapes.size() * FLOATS_PER_INSTANCE;
+		if (instanceBuf == null || instanceBuf.capacity() < nFloats)
+			instanceBuf = MemoryUtil.memRealloc(instanceBuf, nFloats);
+		instanceBuf.clear();
+
+		int n = 0;
+		for (int i = 0; i < shapes.size(); i++) {
+			Shape3D shape = shapes.get(i);
+			if (frustum != null && !shape.isVisible(frustum))
+				continue;
+			n++;
+			shape.getModelMatrix().get(instanceBuf);
+			instanceBuf.position(instanceBuf.position() + 16);
+
+			Color c = shape.getColor();
+			instanceBuf.put(c.r()).put(c.g()).put(c.b()).put(c.a());
+			instanceBuf.put(shape.getTextureWeight()).put(shape.getTextureLayer());
+		}
+		instanceBuf.flip();
+		return n;
+	}
+
+	// ------------------------- setupInstanceAttributes ----------------------
+	/**
+	 * Describe the instance buffer layout in the current VAO. A mat4
+	 * attribute occupies 4 consecutive attribute locations, one per column.
+	 * Assumes the VAO and the instance VBO are currently bound.
+	 */
+	private void setupInstanceAttributes() {
+		for (int col = 0; col < 4; col++) {
+			glEnableVertexAttribArray(iModel + col);
+			glVertexAttribPointer(iModel + col, 4, GL_FLOAT, false, INSTANCE_STRIDE, col * 16L);
+			glVertexAttribDivisor(iModel + col, 1);
+		}
+		glEnableVertexAttribArray(iColor);
+		glVertexAttribPointer(iColor, 4, GL_FLOAT, false, INSTANCE_STRIDE, 64L);
+		glVertexAttribDivisor(iColor, 1);
+
+		glEnableVertexAttribArray(iTexWt);
+		glVertexAttribPointer(iTexWt, 1, GL_FLOAT, false, INSTANCE_STRIDE, 80L);
+		glVertexAttribDivisor(iTexWt, 1);
+
+		glEnableVertexAttribArray(iLayer);
+		glVertexAttribPointer(iLayer, 1, GL_FLOAT, false, INSTANCE_STRIDE, 84L);
+		glVertexAttribDivisor(iLayer, 1);
+	}
+
+	// ------------------------- clearInstanceAttributes ----------------------
+	/**
+	 * Disable the instanced attributes of the current VAO again and reset
+	 * their divisors, leaving the shared mesh VAO as Mesh made it.
+	 */
+	private static void clearInstanceAttributes() {
+		for (int col = 0; col < 4; col++) {
+			glDisableVertexAttribArray(iModel + col);
+			glVertexAttribDivisor(iModel + col, 0);
+		}
+		glDisableVertexAttribArray(iColor);
+		glVertexAttribDivisor(iColor, 0);
+		glDisableVertexAttribArray(iTexWt);
+		glVertexAttribDivisor(iTexWt, 0);
+		glDisableVertexAttribArray(iLayer);
+		glVertexAttribDivisor(iLayer, 0);
+	}
+
+	// ------------------------- getters ----------------------------
+	/**
+	 * Return the texture shared by the batch.
+	 *
+	 * @return Texture
+	 */
+	public Texture getTexture() {
+		return texture;
+	}
+
+	/**
+	 * Return the number of shapes in the batch.
+	 *
+	 * @return int
+	 */
+	public int size() {
+		return shapes.size();
+	}
+}
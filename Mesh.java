@@ -0,0 +1,245 @@
+
+/**
+ * Mesh.java - the GPU side of a shape's vertex data: one VAO and a single
+ * interleaved VBO holding every vertex attribute, laid out as described by a
+ * VertexLayout.
+ *
+ * An indexed Mesh welds identical vertices with a VertexWelder and draws
+ * with glDrawElements from an element buffer; 16 bit indices are used when
+ * the welded mesh has few enough vertices, 32 bit ones otherwise.
+ *
+ * Meshes are created and shared by the GeometryRegistry; every Shape3D whose
+ * vertex arrays are identical draws through the same Mesh. A Mesh is
+ * reference counted and its GL objects are deleted when the last shape
+ * using it releases it.
+ */
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.glDrawArraysInstanced;
+import static org.lwjgl.opengl.GL31.glDrawElementsInstanced;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+import org.lwjgl.system.MemoryUtil;
+
+public class Mesh {
+	// ---------------------- instance variables ------------------------------
+	private int vaoId = -1;
+	private int vertexVBO = -1; // interleaved buffer for all attributes
+	private int indexVBO = -1; // element buffer; -1 if not indexed
+	private int indexType = GL_UNSIGNED_SHORT; // or GL_UNSIGNED_INT
+	private VertexLayout layout = null;
+
+	private int nVertices = 0; // #vertices drawn (3*nTriangles)
+	private int nStoredVertices = 0; // #vertices in the VBO
+	private int refCount = 0; // # shapes using this mesh
+
+	// ------------------ Constructors ----------------------------------
+	/**
+	 * Create the VAO and the interleaved VBO for the vertex data and download
+	 * it to the GPU. Setting up the VAO is one buffer bind no matter how many
+	 * attributes the layout has.
+	 *
+	 * @param vertexData
+	 *            float[] interleaved vertex data
+	 * @param layout
+	 *            VertexLayout describing one vertex of vertexData
+	 * @param indexed
+	 *            boolean true to weld identical vertices and draw indexed
+	 * @param name
+	 *            String name used when reporting the vertex reduction
+	 */
+	Mesh(float[] vertexData, VertexLayout layout, boolean indexed, String name) {
+		UtilsLWJGL.glError("--->Mesh"); // clean out any old errors
+		this.layout = layout;
+		nVertices = vertexData.length / layout.getStride();
+		nStoredVertices = nVertices;
+
+		VertexWelder welder = null;
+		if (indexed) {
+			welder = new VertexWelder(vertexData, layout.getStride());
+			vertexData = welder.getVertices();
+			nStoredVertices = welder.getUniqueVertexCount();
+			System.err.printf("Mesh: %s %d -> %d vertices (%.2f)\n", name, nVertices, nStoredVertices,
+					getReductionRatio());
+		}
+
+		vaoId = glGenVertexArrays();
+		bind();
+
+		vertexVBO = glGenBuffers();
+		glBindBuffer(GL_ARRAY_BUFFER, vertexVBO);
+
+		// The data only needs to live in native memory until glBufferData
+		// returns.
+		FloatBuffer buf = MemoryUtil.memAllocFloat(vertexData.length);
+		buf.put(vertexData).flip();
+		glBufferData(GL_ARRAY_BUFFER, buf, GL_STATIC_DRAW);
+		MemoryUtil.memFree(buf);
+
+		// describe where each attribute is found in the buffer
+		layout.enable();
+
+		// the element buffer binding is part of the VAO state
+		if (welder != null)
+			loadIndices(welder.getIndices());
+
+		RenderState.unbindVertexArray();
+		UtilsLWJGL.glError("<---Mesh"); // report error since enter
+	}
+
+	// ---------------------- loadIndices --------------------------
+	/**
+	 * Build the element buffer, choosing 16 bit indices if every index fits.
+	 * Assume the VAO is currently bound!
+	 */
+	private void loadIndices(int[] indices) {
+		indexVBO = glGenBuffers();
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexVBO);
+		if (nStoredVertices <= 0x10000) {
+			indexType = GL_UNSIGNED_SHORT;
+			ShortBuffer buf = MemoryUtil.memAllocShort(indices.length);
+			for (int i = 0; i < indices.length; i++)
+				buf.put((short) indices[i]);
+			buf.flip();
+			glBufferData(GL_ELEMENT_ARRAY_BUFFER, buf, GL_STATIC_DRAW);
+			MemoryUtil.memFree(buf);
+		} else {
+			indexType = GL_UNSIGNED_INT;
+			IntBuffer buf = MemoryUtil.memAllocInt(indices.length);
+			buf.put(indices).flip();
+			glBufferData(GL_ELEMENT_ARRAY_BUFFER, buf, GL_STATIC_DRAW);
+			MemoryUtil.memFree(buf);
+		}
+	}
+
+	// ---------------------- bind/draw --------------------------
+	/**
+	 * Make this mesh's VAO the current one.
+	 */
+	public void bind() {
+		glBindVertexArray(vaoId);
+		RenderState.vertexArrayBound(vaoId);
+	}
+
+	/**
+	 * Draw the triangles of the mesh. Assumes the mesh is bound.
+	 */
+	public void draw() {
+		if (indexVBO != -1)
+			glDrawElements(GL_TRIANGLES, nVertices, indexType, 0L);
+		else
+			glDrawArrays(GL_TRIANGLES, 0, nVertices);
+	}
+
+	/**
+	 * Draw nInstances copies of the mesh. Assumes the mesh is bound.
+	 *
+	 * @param nInstances
+	 *            int number of instances
+	 */
+	public void drawInstanced(int nInstances) {
+		if (indexVBO != -1)
+			glDrawElementsInstanced(GL_TRIANGLES, nVertices, indexType, 0L, nInstances);
+		else
+			glDrawArraysInstanced(GL_TRIANGLES, 0, nVertices, nInstances);
+	}
+
+	// ---------------------- reference counting --------------------------
+	/**
+	 * Record one more shape using this mesh.
+	 */
+	void retain() {
+		refCount++;
+	}
+
+	/**
+	 * Record one less shape using this mesh.
+	 *
+	 * @return boolean true if no shape uses the mesh any more
+	 */
+	boolean releaseRef() {
+		return --refCount <= 0;
+	}
+
+	/**
+	 * Delete the GL objects of this mesh.
+	 */
+	void delete() {
+		glDeleteBuffers(vertexVBO);
+		if (indexVBO != -1)
+			glDeleteBuffers(indexVBO);
+		glDeleteVertexArrays(vaoId);
+		vaoId = vertexVBO = indexVBO = -1;
+	}
+
+	// ---------------------- getters --------------------------
+	/**
+	 * Return the VAO id.
+	 *
+	 * @return int
+	 */
+	public int getVaoId() {
+		return vaoId;
+	}
+
+	/**
+	 * Return the layout of the vertex buffer.
+	 *
+	 * @return VertexLayout
+	 */
+	public VertexLayout getLayout() {
+		return layout;
+	}
+
+	/**
+	 * Return the number of vertices drawn.
+	 *
+	 * @return int
+	 */
+	public int getVertexCount() {
+		return nVertices;
+	}
+
+	/**
+	 * Return the number of vertices stored in the VBO; smaller than the
+	 * number drawn if the mesh is indexed.
+	 *
+	 * @return int
+	 */
+	public int getStoredVertexCount() {
+		return nStoredVertices;
+	}
+
+	/**
+	 * Return stored vertices / drawn vertices: 1 for a non-indexed mesh,
+	 * 0.56 for a Box welded from 36 to 20 vertices.
+	 *
+	 * @return float
+	 */
+	public float getReductionRatio() {
+		return nVertices == 0 ? 1 : (float) nStoredVertices / nVertices;
+	}
+
+	/**
+	 * Return true if the mesh is drawn from an element buffer.
+	 *
+	 * @return boolean
+	 */
+	public boolean isIndexed() {
+		return indexVBO != -1;
+	}
+
+	/**
+	 * Return the number of shapes currently sharing this mesh.
+	 *
+	 * @return int
+	 */
+	public int getRefCount() {
+		return refCount;
+	}
+}
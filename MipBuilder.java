@@ -0,0 +1,470 @@
+
+/**
+ * MipBuilder.java - builds the mip chain of an 8 bit image on the CPU.
+ *
+ * glGenerateMipmap runs on the GL thread, its filter is up to the driver and
+ * its result can't be kept. MipBuilder makes the chain anywhere, for instance
+ * on a TextureLoader decode worker, so it can be baked (BakedTexture) and
+ * uploaded level by level (Texture.fromMipChain). It needs no GL context.
+ *
+ * Each level is filtered from the previous one with a separable kernel:
+ *
+ *   BOX      2x2 average, what glGenerateMipmap usually does
+ *   TRIANGLE tent over 4x4 texels, a little softer
+ *   LANCZOS  Lanczos 3, sharp, may ring at hard edges
+ *   KAISER   Kaiser windowed sinc (alpha 4, radius 3), sharp with less ringing
+ *
+ * With gamma correction the texels are averaged as linear light -- sRGB is
+ * decoded through a table before filtering and encoded again after -- so
+ * distant levels don't darken. Alpha, the last channel of 2 and 4 channel
+ * images, is coverage rather than light and is always averaged linearly.
+ * Odd sizes are handled by scaling the kernel to the exact ratio; texels
+ * past an edge repeat the edge.
+ *
+ * Output rows are split into bands that run on a ForkJoinPool. Within a row
+ * the vertical pass is a multiply-add over contiguous float arrays, which
+ * the JIT can vectorize; the horizontal pass gathers through precomputed
+ * tap tables.
+ *
+ * The defaults come from -Dp2.mipFilter=box|triangle|lanczos|kaiser and
+ * -Dp2.mipGamma=true|false. main() benchmarks the filters on a random image.
+ */
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+public class MipBuilder {
+	// ------------------ class variables ------------------------------
+	/** The builder used when loading textures. */
+	public static final MipBuilder DEFAULT = new MipBuilder(
+			Filter.valueOf(System.getProperty("p2.mipFilter", "box").toUpperCase()),
+			Boolean.parseBoolean(System.getProperty("p2.mipGamma", "true")));
+
+	private static final int BAND_TEXELS = 64 * 1024; // work per fork-join task
+	private static final int ENCODE_STEPS = 4096; // resolution of the encode table
+
+	private static final float[] SRGB_TO_LINEAR = new float[256];
+	private static final byte[] LINEAR_TO_SRGB = new byte[ENCODE_STEPS + 1];
+	private static final float[] UNORM_TO_FLOAT = new float[256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			float c = i / 255f;
+			SRGB_TO_LINEAR[i] = c <= 0.04045f ? c / 12.92f : (float) Math.pow((c + 0.055f) / 1.055f, 2.4);
+			UNORM_TO_FLOAT[i] = c;
+		}
+		for (int i = 0; i <= ENCODE_STEPS; i++) {
+			double l = i / (double) ENCODE_STEPS;
+			double c = l <= 0.0031308 ? l * 12.92 : 1.055 * Math.pow(l, 1 / 2.4) - 0.055;
+			LINEAR_TO_SRGB[i] = (byte) Math.round(c * 255);
+		}
+	}
+
+	// ========================= Filter ==================================
+	/**
+	 * Reconstruction kernels, with their radius in texels of the smaller
+	 * level.
+	 */
+	public enum Filter {
+		BOX(0.5f), TRIANGLE(1f), LANCZOS(3f), KAISER(3f);
+
+		private static final float KAISER_ALPHA = 4f;
+
+		final float radius;
+
+		Filter(float radius) {
+			this.radius = radius;
+		}
+
+		// kernel value at distance t; weights are normalized afterwards
+		float weight(float t) {
+			t = Math.abs(t);
+			if (t >= radius)
+				return 0;
+			switch (this) {
+			case BOX:
+				return 1;
+			case TRIANGLE:
+				return 1 - t;
+			case LANCZOS:
+				return sinc(t) * sinc(t / radius);
+			default: // KAISER
+				float r = t / radius;
+				return sinc(t) * (float) (bessel0(KAISER_ALPHA * Math.sqrt(1 - r * r)) / bessel0(KAISER_ALPHA));
+			}
+		}
+
+		private static float sinc(float x) {
+			if (x < 1e-5f)
+				return 1;
+			double px = Math.PI * x;
+			return (float) (Math.sin(px) / px);
+		}
+
+		// modified Bessel function of the first kind, order 0
+		private static double bessel0(double x) {
+			double sum = 1, term = 1, q = x * x / 4;
+			for (int k = 1; term > 1e-12 * sum; k++) {
+				term *= q / (k * k);
+				sum += term;
+			}
+			return sum;
+		}
+	}
+
+	// ---------------------- instance variables ------------------------------
+	private final Filter filter;
+	private final boolean gammaCorrect;
+	private final ForkJoinPool pool;
+
+	// ------------------ Constructors ----------------------------------
+	/**
+	 * Make a builder that runs on the common fork-join pool.
+	 *
+	 * @param filter
+	 *            Filter kernel
+	 * @param gammaCorrect
+	 *            boolean true to average sRGB texels as linear light
+	 */
+	public MipBuilder(Filter filter, boolean gammaCorrect) {
+		this(filter, gammaCorrect, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Make a builder that runs on the specified pool.
+	 *
+	 * @param filter
+	 *            Filter kernel
+	 * @param gammaCorrect
+	 *            boolean true to average sRGB texels as linear light
+	 * @param pool
+	 *            ForkJoinPool for the row bands
+	 */
+	public MipBuilder(Filter filter, boolean gammaCorrect, ForkJoinPool pool) {
+		this.filter = filter;
+		this.gammaCorrect = gammaCorrect;
+		this.pool = pool;
+	}
+
+	// ------------------------ build ----------------------------
+	/**
+	 * Build the whole mip chain down to 1x1.
+	 *
+	 * @param pixels
+	 *            ByteBuffer level 0, tightly packed rows from its position; it
+	 *            is not copied: element 0 of the result is a duplicate of it
+	 * @param width
+	 *            int width of level 0
+	 * @param height
+	 *            int height of level 0
+	 * @param components
+	 *            int bytes per texel, e.g. 3 for RGB8
+	 * @return ByteBuffer[] levels; levels past 0 are direct buffers
+	 */
+	public ByteBuffer[] build(ByteBuffer pixels, int width, int height, int components) {
+		return build(pixels, width, height, components, levelCount(width, height));
+	}
+
+	/**
+	 * Build the first levels of the mip chain only, e.g. for a texture whose
+	 * GL_TEXTURE_MAX_LEVEL stops short of 1x1.
+	 *
+	 * @param pixels
+	 *            ByteBuffer level 0, as for build
+	 * @param width
+	 *            int width of level 0
+	 * @param height
+	 *            int height of level 0
+	 * @param components
+	 *            int bytes per texel
+	 * @param maxLevels
+	 *            int most levels wanted, at least 1; no more than the full
+	 *            chain are built
+	 * @return ByteBuffer[] levels; levels past 0 are direct buffers
+	 */
+	public ByteBuffer[] build(ByteBuffer pixels, int width, int height, int components, int maxLevels) {
+		if (maxLevels < 1)
+			throw new RuntimeException("MipBuilder: invalid level count " + maxLevels);
+		ByteBuffer[] levels = new ByteBuffer[Math.min(maxLevels, levelCount(width, height))];
+		levels[0] = pixels.duplicate();
+		for (int l = 1; l < levels.length; l++)
+			levels[l] = downsample(levels[l - 1], levelSize(width, l - 1), levelSize(height, l - 1), components);
+		return levels;
+	}
+
+	/**
+	 * Build the first levels of the mip chain straight into dst, one level
+	 * after the other from its position, tightly packed: level 0 is copied,
+	 * the others are written by the filter as they are made. dst is only
+	 * written, never read, so it may be a write-only mapping such as a
+	 * PixelUploadRing slot. The level the next one is filtered from is also
+	 * kept in client memory, a quarter of level 0 at most.
+	 *
+	 * @param pixels
+	 *            ByteBuffer level 0, tightly packed rows from its position
+	 * @param width
+	 *            int width of level 0
+	 * @param height
+	 *            int height of level 0
+	 * @param components
+	 *            int bytes per texel
+	 * @param maxLevels
+	 *            int most levels wanted, at least 1
+	 * @param dst
+	 *            ByteBuffer with room for the levels; its position is not
+	 *            changed
+	 * @param levels
+	 *            Consumer given each level in client memory, in order, while
+	 *            it is valid, e.g. to bake the chain; or null
+	 * @return int number of levels written
+	 */
+	public int build(ByteBuffer pixels, int width, int height, int components, int maxLevels, ByteBuffer dst,
+			Consumer<ByteBuffer> levels) {
+		if (maxLevels < 1)
+			throw new RuntimeException("MipBuilder: invalid level count " + maxLevels);
+		int n = Math.min(maxLevels, levelCount(width, height));
+		ByteBuffer out = dst.duplicate();
+		out.put(pixels.duplicate());
+		if (levels != null)
+			levels.accept(pixels.duplicate());
+		// levels 1, 3, ... in one scratch buffer, 2, 4, ... in the other
+		ByteBuffer[] scratch = new ByteBuffer[Math.min(n - 1, 2)];
+		for (int i = 0; i < scratch.length; i++)
+			scratch[i] = ByteBuffer.allocateDirect(levelSize(width, i + 1) * levelSize(height, i + 1) * components);
+		ByteBuffer src = pixels;
+		for (int l = 1; l < n; l++) {
+			int w = levelSize(width, l - 1), h = levelSize(height, l - 1);
+			int size = levelSize(width, l) * levelSize(height, l) * components;
+			ByteBuffer level = scratch[(l - 1) % 2];
+			level.clear();
+			level.limit(size);
+			ByteBuffer target = out.slice();
+			target.limit(size);
+			filter(src, w, h, components, target, level);
+			out.position(out.position() + size);
+			if (levels != null)
+				levels.accept(level.duplicate());
+			src = level;
+		}
+		return n;
+	}
+
+	/**
+	 * Filter an image to half its size, rounded down but at least 1.
+	 *
+	 * @param src
+	 *            ByteBuffer source texels from its position
+	 * @param width
+	 *            int source width
+	 * @param height
+	 *            int source height
+	 * @param components
+	 *            int bytes per texel
+	 * @return ByteBuffer direct buffer of the smaller image
+	 */
+	public ByteBuffer downsample(ByteBuffer src, int width, int height, int components) {
+		int dw = Math.max(1, width / 2), dh = Math.max(1, height / 2);
+		ByteBuffer dst = ByteBuffer.allocateDirect(dw * dh * components);
+		filter(src, width, height, components, dst, null);
+		return dst;
+	}
+
+	// filter src to half size into dst, and into copy as well unless it is
+	// null; both from index 0
+	private void filter(ByteBuffer src, int width, int height, int components, ByteBuffer dst, ByteBuffer copy) {
+		int dw = Math.max(1, width / 2), dh = Math.max(1, height / 2);
+		Taps xTaps = new Taps(filter, width, dw);
+		Taps yTaps = new Taps(filter, height, dh);
+		int bandRows = Math.max(1, BAND_TEXELS / (dw * components));
+		pool.invoke(new Band(src.slice(), dst, copy, width, components, xTaps, yTaps, 0, dh, bandRows));
+	}
+
+	// ------------------------ levels ----------------------------
+	/**
+	 * Return the number of levels of a full mip chain.
+	 *
+	 * @param width
+	 *            int width of level 0
+	 * @param height
+	 *            int height of level 0
+	 * @return int
+	 */
+	public static int levelCount(int width, int height) {
+		int levels = 1;
+		while ((width >> levels) > 0 || (height >> levels) > 0)
+			levels++;
+		return levels;
+	}
+
+	/**
+	 * Return the width or height of a level: halved per level, never below 1.
+	 *
+	 * @param size
+	 *            int size of level 0
+	 * @param level
+	 *            int level
+	 * @return int
+	 */
+	public static int levelSize(int size, int level) {
+		return Math.max(1, size >> level);
+	}
+
+	// ------------------------ getters ----------------------------
+	public Filter getFilter() {
+		return filter;
+	}
+
+	public boolean isGammaCorrect() {
+		return gammaCorrect;
+	}
+
+	// ========================= Taps ==================================
+	// for each output texel of one axis, the clamped source indices and
+	// normalized weights of its kernel
+	private static class Taps {
+		final int count; // taps per output texel
+		final int[] index;
+		final float[] weight;
+
+		Taps(Filter filter, int srcSize, int dstSize) {
+			float scale = srcSize / (float) dstSize;
+			float support = filter.radius * scale;
+			count = (int) Math.ceil(2 * support) + 1;
+			index = new int[dstSize * count];
+			weight = new float[dstSize * count];
+			for (int d = 0; d < dstSize; d++) {
+				float center = (d + 0.5f) * scale;
+				int first = (int) Math.floor(center - support);
+				float sum = 0;
+				for (int k = 0; k < count; k++) {
+					int s = first + k;
+					float w = filter.weight((s + 0.5f - center) / scale);
+					index[d * count + k] = Math.min(Math.max(s, 0), srcSize - 1);
+					weight[d * count + k] = w;
+					sum += w;
+				}
+				for (int k = 0; k < count; k++)
+					weight[d * count + k] /= sum;
+			}
+		}
+	}
+
+	// ========================= Band ==================================
+	// filters output rows [y0, y1), splitting until a band is small enough
+	private class Band extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final ByteBuffer src, dst, copy; // copy may be null
+		final int width, components;
+		final Taps xTaps, yTaps;
+		final int y0, y1, bandRows;
+
+		Band(ByteBuffer src, ByteBuffer dst, ByteBuffer copy, int width, int components, Taps xTaps, Taps yTaps,
+				int y0, int y1, int bandRows) {
+			this.src = src;
+			this.dst = dst;
+			this.copy = copy;
+			this.width = width;
+			this.components = components;
+			this.xTaps = xTaps;
+			this.yTaps = yTaps;
+			this.y0 = y0;
+			this.y1 = y1;
+			this.bandRows = bandRows;
+		}
+
+		@Override
+		protected void compute() {
+			if (y1 - y0 > bandRows) {
+				int mid = (y0 + y1) >>> 1;
+				invokeAll(new Band(src, dst, copy, width, components, xTaps, yTaps, y0, mid, bandRows),
+						new Band(src, dst, copy, width, components, xTaps, yTaps, mid, y1, bandRows));
+				return;
+			}
+			float[] decode = gammaCorrect ? SRGB_TO_LINEAR : UNORM_TO_FLOAT;
+			int alpha = gammaCorrect ? alphaChannel(components) : -1; // kept linear
+			int rowLength = width * components;
+			int dstRowLength = xTaps.index.length / xTaps.count * components;
+			float[] row = new float[rowLength];
+			float[] column = new float[rowLength]; // vertical pass of one output row
+			for (int y = y0; y < y1; y++) {
+				Arrays.fill(column, 0);
+				for (int k = 0; k < yTaps.count; k++) {
+					float w = yTaps.weight[y * yTaps.count + k];
+					if (w == 0)
+						continue;
+					int base = yTaps.index[y * yTaps.count + k] * rowLength;
+					for (int i = 0; i < rowLength; i++)
+						row[i] = decode[src.get(base + i) & 0xff];
+					if (alpha >= 0)
+						for (int i = alpha; i < rowLength; i += components)
+							row[i] = UNORM_TO_FLOAT[src.get(base + i) & 0xff];
+					for (int i = 0; i < rowLength; i++)
+						column[i] += w * row[i];
+				}
+				int out = y * dstRowLength;
+				for (int x = 0; x < dstRowLength / components; x++)
+					for (int c = 0; c < components; c++) {
+						float sum = 0;
+						for (int k = 0; k < xTaps.count; k++)
+							sum += xTaps.weight[x * xTaps.count + k]
+									* column[xTaps.index[x * xTaps.count + k] * components + c];
+						byte b = encode(sum, c != alpha);
+						dst.put(out, b);
+						if (copy != null)
+							copy.put(out, b);
+						out++;
+					}
+			}
+		}
+	}
+
+	// the alpha channel of an image with the components, or -1
+	private static int alphaChannel(int components) {
+		return components == 2 ? 1 : components == 4 ? 3 : -1;
+	}
+
+	// float back to a byte, through the sRGB table when gamma correcting a
+	// colour channel
+	private byte encode(float v, boolean colour) {
+		v = Math.min(Math.max(v, 0f), 1f); // sharp kernels overshoot
+		if (gammaCorrect && colour)
+			return LINEAR_TO_SRGB[(int) (v * ENCODE_STEPS + 0.5f)];
+		return (byte) (int) (v * 255 + 0.5f);
+	}
+
+	// ------------------------ main ----------------------------
+	/**
+	 * Benchmark: build the chain of a random RGB image with every filter.
+	 *
+	 * usage: java MipBuilder [size [repeats]]
+	 *
+	 * @param args
+	 *            String[]
+	 */
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+		int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		ByteBuffer image = ByteBuffer.allocateDirect(size * size * 3);
+		Random random = new Random(1);
+		for (int i = 0; i < image.capacity(); i++)
+			image.put(i, (byte) random.nextInt(256));
+
+		System.out.printf("MipBuilder: %dx%d RGB, %d levels, %d threads\n", size, size, levelCount(size, size),
+				ForkJoinPool.commonPool().getParallelism());
+		for (Filter filter : Filter.values())
+			for (boolean gamma : new boolean[] { false, true }) {
+				MipBuilder builder = new MipBuilder(filter, gamma);
+				builder.build(image, size, size, 3); // warm up
+				long start = System.nanoTime();
+				for (int r = 0; r < repeats; r++)
+					builder.build(image, size, size, 3);
+				double ms = (System.nanoTime() - start) / 1e6 / repeats;
+				System.out.printf("%-8s gamma %-5b %8.2f ms  %7.1f Mtexel/s\n", filter, gamma, ms,
+						size * size / 1e3 / ms);
+			}
+	}
+}
@@ -36,9 +36,20 @@ import static org.lwjgl.opengl.GL20.*;
 import org.lwjgl.glfw.*;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 
 public class P2 {
 	// ---------------------- class variables -------------------------
+	// -Dp2.allocProbe=true reports the heap bytes allocated per frame;
+	// once warm this should be 0, which FrameAllocationCheck tests.
+	private static final boolean ALLOC_PROBE = Boolean.getBoolean("p2.allocProbe");
+	private static final int PROBE_FRAMES = 300; // frames per report
+	// -Dp2.bindStats=true reports the texture binds made and avoided per
+	// frame by the RenderState texture unit allocator
+	private static final boolean BIND_STATS = Boolean.getBoolean("p2.bindStats");
+	private static final long UPLOAD_BUDGET = 4000000; // ns of texture uploads
+														// per frame
+
 	// ---------------------- instance variables ----------------------
 	// window size parameters
 	int windowW = 780;
@@ -70,6 +81,10 @@ public class P2 {
 			System.exit(-1);
 		}
 
+		// the baked texture cache as the last run left it
+		BakedTexture.prune();
+		BakedTexture.printStats();
+
 		sceneManager = new SceneManager();
 		setupKeyHandler();
 
@@ -85,6 +100,13 @@ public class P2 {
 
 		renderLoop();
 
+		// Delete the GL objects while the context still exists
+		TextureLoader.shutdown();
+		sceneManager.close();
+		GLResources.drain();
+		if (GLResources.getLiveCount() > 0)
+			System.err.printf("P2: %d resources still open\n", GLResources.getLiveCount());
+
 		// Release window and window callbacks
 		glfwFreeCallbacks(windowId);
 		glfwDestroyWindow(windowId);
@@ -112,10 +134,29 @@ public class P2 {
 	 * Loop until user closes the window or kills the program.
 	 */
 	private void renderLoop() {
+		com.sun.management.ThreadMXBean probe = null;
+		long threadId = Thread.currentThread().getId();
+		long probeBytes = 0;
+		int probeCount = 0;
+		long binds = 0, bindsSkipped = 0, unitSwitches = 0;
+		int statFrames = 0;
+		boolean loaded = false; // the scenes' textures have all loaded
+		if (ALLOC_PROBE)
+			probe = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
 		// Run the rendering loop until the user has attempted to close
 		// the window or has pressed the ESCAPE key.
 		// old while ( glfwWindowShouldClose( windowId ) == GL_FALSE )
 		while (!glfwWindowShouldClose(windowId)) {
+			// textures decoded by the TextureLoader since the last frame
+			TextureLoader.processUploads(UPLOAD_BUDGET);
+			if (!loaded && TextureLoader.isIdle()) {
+				BakedTexture.printStats(); // how many were decoded
+				loaded = true;
+			}
+
+			long before = probe == null ? 0 : probe.getThreadAllocatedBytes(threadId);
+
 			// clear the framebuffer
 			glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 
@@ -124,11 +165,38 @@ public class P2 {
 
 			glfwSwapBuffers(windowId); // swap the color buffers
 
+			if (BIND_STATS) {
+				binds += RenderState.textureBinds;
+				bindsSkipped += RenderState.textureBindsSkipped;
+				unitSwitches += RenderState.unitSwitches;
+				if (++statFrames == PROBE_FRAMES) {
+					System.err.printf("P2: per frame %.1f texture binds, %.1f avoided, %.1f unit switches\n",
+							binds / (float) statFrames, bindsSkipped / (float) statFrames,
+							unitSwitches / (float) statFrames);
+					binds = bindsSkipped = unitSwitches = 0;
+					statFrames = 0;
+				}
+			}
+
+			if (probe != null) {
+				probeBytes += probe.getThreadAllocatedBytes(threadId) - before;
+				if (++probeCount == PROBE_FRAMES) {
+					System.err.printf("P2: %d bytes allocated per frame\n", probeBytes / probeCount);
+					probeBytes = 0;
+					probeCount = 0;
+				}
+			}
+
 			// Wait for window events. The key callback above will only be
 			// invoked during this call.
 			// lwjgl demos use glfwPollEvents(), which uses nearly 2X
 			// the cpu time for simple demos as glfwWaitEvents.
-			glfwWaitEvents();
+			// The TextureLoader wakes us when an image is decoded; if uploads
+			// are left over from this frame's budget, don't wait at all.
+			if (TextureLoader.hasPendingUploads())
+				glfwPollEvents();
+			else
+				glfwWaitEvents();
 		}
 	}
 
@@ -0,0 +1,312 @@
+
+/**
+ * PixelUploadRing.java - streams texture images to the GPU through a ring of
+ * pixel unpack buffers (PBOs).
+ *
+ * Uploading with glTexImage2D from client memory makes the driver copy the
+ * image before the call returns. With a PBO the copy into GL memory is done
+ * by whichever thread fills the mapped buffer -- here a TextureLoader decode
+ * worker -- and glTexImage2D only schedules a GPU side transfer.
+ *
+ * Each slot of the ring goes through
+ *
+ *   FREE -> MAPPED (a worker fills it) -> FENCED (GPU is reading it) -> FREE
+ *
+ * A fence is placed after the upload, and poll() only tests it with a zero
+ * timeout, so the CPU never waits for the GPU. Requests for a slot queue up
+ * until one is free. Slots are explicitly mapped rather than persistently
+ * (that needs GL 4.4); they are grown with glBufferData when an image does
+ * not fit.
+ *
+ * glUnmapBuffer returns GL_FALSE if the buffer's contents were lost while it
+ * was mapped, e.g. on a mode switch. beginUpload then frees the slot and
+ * returns false, and the caller has to make the image again.
+ *
+ * Metrics: bytes mapped or still being read by the GPU, the time the GL
+ * thread spent in map/unmap/glTexImage2D calls, uploads made, and how often
+ * a request had to wait for a free slot.
+ *
+ * Everything but request() must be called on the GL thread.
+ */
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.GL_PIXEL_UNPACK_BUFFER;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL32.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.lwjgl.opengl.GL;
+
+public class PixelUploadRing {
+	// ------------------ class variables ------------------------------
+	static final int DEFAULT_SLOTS = 3;
+
+	private static final int FREE = 0, MAPPED = 1, FENCED = 2;
+
+	// ---------------------- instance variables ------------------------------
+	private Slot[] slots;
+	private ConcurrentLinkedQueue<Request> incoming = new ConcurrentLinkedQueue<Request>();
+	private ArrayDeque<Request> waiting = new ArrayDeque<Request>(); // GL thread
+
+	private long bytesInFlight = 0;
+	private long stallNanos = 0;
+	private int uploads = 0;
+	private int slotWaits = 0; // polls that left requests without a slot
+	private int lostSlots = 0; // unmaps that found the contents lost
+
+	// ------------------ Constructors ----------------------------------
+	/**
+	 * Create the ring's buffer objects; they get their storage on first use.
+	 *
+	 * @param nSlots
+	 *            int number of images that can be in flight at once
+	 */
+	public PixelUploadRing(int nSlots) {
+		slots = new Slot[nSlots];
+		for (int i = 0; i < nSlots; i++)
+			slots[i] = new Slot(glGenBuffers());
+	}
+
+	// ------------------------- isSupported ----------------------------
+	/**
+	 * Return true if the context has pixel buffers and fences (GL 3.2).
+	 *
+	 * @return boolean
+	 */
+	public static boolean isSupported() {
+		return GL.getCapabilities().OpenGL32;
+	}
+
+	// ------------------------- request ----------------------------
+	/**
+	 * Ask for a mapped slot of at least size bytes. May be called from any
+	 * thread; the future is completed on the GL thread by a later poll().
+	 *
+	 * @param size
+	 *            int bytes needed
+	 * @return CompletableFuture of the mapped Slot
+	 */
+	public CompletableFuture<Slot> request(int size) {
+		Request r = new Request(size);
+		incoming.add(r);
+		return r.future;
+	}
+
+	// ------------------------- poll ----------------------------
+	/**
+	 * Free the slots whose uploads the GPU has finished and hand free slots to
+	 * waiting requests. Never blocks.
+	 */
+	public void poll() {
+		for (Slot slot : slots)
+			if (slot.state == FENCED) {
+				int status = glClientWaitSync(slot.fence, 0, 0);
+				if (status == GL_ALREADY_SIGNALED || status == GL_CONDITION_SATISFIED) {
+					glDeleteSync(slot.fence);
+					slot.fence = 0;
+					slot.state = FREE;
+					bytesInFlight -= slot.size;
+				}
+			}
+
+		Request r;
+		while ((r = incoming.poll()) != null)
+			waiting.add(r);
+		for (Slot slot : slots) {
+			if (waiting.isEmpty())
+				return;
+			if (slot.state == FREE)
+				slot.map(waiting.poll());
+		}
+		if (!waiting.isEmpty())
+			slotWaits++;
+	}
+
+	/**
+	 * Return true if requests are waiting for a slot, so poll() must keep
+	 * being called.
+	 *
+	 * @return boolean
+	 */
+	public boolean hasWaiting() {
+		return !waiting.isEmpty() || !incoming.isEmpty();
+	}
+
+	// ------------------------- delete ----------------------------
+	/**
+	 * Delete the buffers and fences. Mapped slots are unmapped first.
+	 */
+	public void delete() {
+		for (Slot slot : slots) {
+			if (slot.state == MAPPED) {
+				glBindBuffer(GL_PIXEL_UNPACK_BUFFER, slot.pbo);
+				glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+			}
+			if (slot.fence != 0)
+				glDeleteSync(slot.fence);
+			glDeleteBuffers(slot.pbo);
+		}
+		glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+		slots = new Slot[0];
+	}
+
+	// ------------------------- metrics ----------------------------
+	/**
+	 * Return the bytes of slots being filled or read by the GPU.
+	 *
+	 * @return long
+	 */
+	public long getBytesInFlight() {
+		return bytesInFlight;
+	}
+
+	/**
+	 * Return the total time the GL thread spent mapping, unmapping and
+	 * issuing glTexImage2D for the ring.
+	 *
+	 * @return long nanoseconds
+	 */
+	public long getStallNanos() {
+		return stallNanos;
+	}
+
+	/**
+	 * Return the number of images uploaded through the ring.
+	 *
+	 * @return int
+	 */
+	public int getUploadCount() {
+		return uploads;
+	}
+
+	/**
+	 * Return the number of polls after which requests still had no slot.
+	 *
+	 * @return int
+	 */
+	public int getSlotWaits() {
+		return slotWaits;
+	}
+
+	/**
+	 * Return the number of uploads whose slot lost its contents, so that the
+	 * image had to be loaded again.
+	 *
+	 * @return int
+	 */
+	public int getLostSlots() {
+		return lostSlots;
+	}
+
+	// ========================= Request ==================================
+	private static class Request {
+		final int size;
+		final CompletableFuture<Slot> future = new CompletableFuture<Slot>();
+
+		Request(int size) {
+			this.size = size;
+		}
+	}
+
+	// ========================= Slot ==================================
+	/**
+	 * One pixel unpack buffer of the ring. While MAPPED its memory belongs to
+	 * the requester, which fills getBuffer() from any thread and then, on
+	 * the GL thread, uploads from it between beginUpload and endUpload or
+	 * calls abandon. The mapping is write only: it must not be read.
+	 */
+	public class Slot {
+		private final int pbo;
+		private long capacity = 0;
+		private int size = 0;
+		private int state = FREE;
+		private long fence = 0;
+		private ByteBuffer mapped = null;
+		private long uploadStart;
+
+		Slot(int pbo) {
+			this.pbo = pbo;
+		}
+
+		// map the slot for the request and complete its future
+		private void map(Request r) {
+			long start = System.nanoTime();
+			glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pbo);
+			if (capacity < r.size) {
+				capacity = r.size;
+				glBufferData(GL_PIXEL_UNPACK_BUFFER, capacity, GL_STREAM_DRAW);
+			}
+			// invalidating means the driver need not keep the old contents
+			mapped = glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, r.size,
+					GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT, mapped);
+			glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+			stallNanos += System.nanoTime() - start;
+			if (mapped == null) {
+				UtilsLWJGL.glError("PixelUploadRing.map");
+				r.future.completeExceptionally(new RuntimeException("PixelUploadRing: map failed"));
+				return;
+			}
+			size = r.size;
+			state = MAPPED;
+			bytesInFlight += size;
+			r.future.complete(this);
+		}
+
+		/**
+		 * Return the mapped memory; size bytes long.
+		 *
+		 * @return ByteBuffer
+		 */
+		public ByteBuffer getBuffer() {
+			return mapped;
+		}
+
+		/**
+		 * Unmap the slot and bind it as the pixel unpack buffer, so that
+		 * texture uploads read from it by offset. Then call endUpload. If
+		 * the contents were lost while mapped the slot is freed instead and
+		 * nothing is bound.
+		 *
+		 * @return boolean false if the image must be made again
+		 */
+		public boolean beginUpload() {
+			uploadStart = System.nanoTime();
+			glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pbo);
+			if (glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER))
+				return true;
+			glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+			state = FREE;
+			bytesInFlight -= size;
+			lostSlots++;
+			stallNanos += System.nanoTime() - uploadStart;
+			System.err.printf("PixelUploadRing: buffer %d lost its contents\n", pbo);
+			return false;
+		}
+
+		/**
+		 * Unbind the slot and fence it until the GPU has read it.
+		 */
+		public void endUpload() {
+			glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+			fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+			state = FENCED;
+			uploads++;
+			stallNanos += System.nanoTime() - uploadStart;
+		}
+
+		/**
+		 * Unmap the slot without using it; lost contents don't matter.
+		 */
+		public void abandon() {
+			glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pbo);
+			glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+			glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+			state = FREE;
+			bytesInFlight -= size;
+		}
+	}
+}
@@ -58,7 +58,7 @@ public class Quad extends Shape3D {
 	 */
 	public Quad() {
 		// and the coordinate data and texture coordinate data
-		setCoordData(vertices, 3);
+		setCoordData(vertices, 3, true); // indexed
 		setNormalData(normals, 3);
 		setTextureCoordData(texCoords, 2);
 	}
@@ -0,0 +1,154 @@
+
+/**
+ * RenderQueue.java - per-frame list of draws ordered by 64 bit sort keys.
+ *
+ * Each entry is an item index (the shape's position in the Scene) and a key
+ * built by makeKey. Keys are radix sorted as unsigned 64 bit numbers, so the
+ * bit layout decides the submission order:
+ *
+ *   opaque:       0 | shader:7 | texture:16 | mesh:16 | depth:24
+ *   translucent:  1 | farness:24 | shader:7 | texture:16 | mesh:16
+ *
+ * Opaque draws come first, grouped by shader, texture and mesh so that
+ * consecutive draws can skip redundant binds, and front-to-back within a
+ * group. Translucent draws come last, back-to-front, since GL_BLEND is
+ * enabled and their result depends on what is already in the framebuffer.
+ *
+ * The arrays grow as needed and are reused from frame to frame.
+ */
+import java.util.Arrays;
+
+public class RenderQueue {
+	// ------------------ class variables ------------------------------
+	static final int DEPTH_BITS = 24;
+	static final int DEPTH_MAX = (1 << DEPTH_BITS) - 1;
+
+	// ---------------------- instance variables ------------------------------
+	private long[] keys = new long[64];
+	private int[] items = new int[64];
+	private long[] tmpKeys = new long[64];
+	private int[] tmpItems = new int[64];
+	private int[] counts = new int[256];
+	private int size = 0;
+
+	// ------------------------- makeKey ----------------------------
+	/**
+	 * Build the sort key for one draw.
+	 *
+	 * @param translucent
+	 *            boolean true if the draw is blended
+	 * @param shader
+	 *            int shader program id
+	 * @param texture
+	 *            int texture id, 0 if none
+	 * @param mesh
+	 *            int mesh (VAO) id
+	 * @param depth
+	 *            float view depth scaled to 0 (near) .. 1 (far)
+	 * @return long sort key
+	 */
+	public static long makeKey(boolean translucent, int shader, int texture, int mesh, float depth) {
+		if (depth < 0)
+			depth = 0;
+		else if (depth > 1)
+			depth = 1;
+		long d = (long) (depth * DEPTH_MAX);
+		long state = ((long) (shader & 0x7f) << 32) | ((long) (texture & 0xffff) << 16) | (mesh & 0xffff);
+		if (translucent)
+			return (1L << 63) | ((DEPTH_MAX - d) << 39) | state;
+		return (state << DEPTH_BITS) | d;
+	}
+
+	// ------------------------- clear/add ----------------------------
+	/**
+	 * Empty the queue for a new frame.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Queue a draw.
+	 *
+	 * @param item
+	 *            int index of the thing to draw
+	 * @param key
+	 *            long sort key from makeKey
+	 */
+	public void add(int item, long key) {
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			items = Arrays.copyOf(items, size * 2);
+			tmpKeys = new long[size * 2];
+			tmpItems = new int[size * 2];
+		}
+		keys[size] = key;
+		items[size++] = item;
+	}
+
+	// ------------------------- sort ----------------------------
+	/**
+	 * LSD radix sort of the keys, 8 bits per pass. A pass is skipped when all
+	 * keys have the same byte in that position, which is common since most
+	 * scenes use one shader and a few textures.
+	 */
+	public void sort() {
+		for (int shift = 0; shift < 64; shift += 8) {
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < size; i++)
+				counts[(int) (keys[i] >>> shift) & 0xff]++;
+			if (size == 0 || counts[(int) (keys[0] >>> shift) & 0xff] == size)
+				continue; // every key has the same digit
+
+			int sum = 0;
+			for (int b = 0; b < 256; b++) {
+				int c = counts[b];
+				counts[b] = sum;
+				sum += c;
+			}
+			for (int i = 0; i < size; i++) {
+				int pos = counts[(int) (keys[i] >>> shift) & 0xff]++;
+				tmpKeys[pos] = keys[i];
+				tmpItems[pos] = items[i];
+			}
+			long[] k = keys;
+			keys = tmpKeys;
+			tmpKeys = k;
+			int[] it = items;
+			items = tmpItems;
+			tmpItems = it;
+		}
+	}
+
+	// ------------------------- getters ----------------------------
+	/**
+	 * Return the number of queued draws.
+	 *
+	 * @return int
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Return the item of the i-th draw in sorted order.
+	 *
+	 * @param i
+	 *            int position in the queue
+	 * @return int item index
+	 */
+	public int getItem(int i) {
+		return items[i];
+	}
+
+	/**
+	 * Return the key of the i-th draw in sorted order.
+	 *
+	 * @param i
+	 *            int position in the queue
+	 * @return long key
+	 */
+	public long getKey(int i) {
+		return keys[i];
+	}
+}
@@ -0,0 +1,281 @@
+/**
+ * RenderState.java - remembers which VAO and textures are bound so that
+ * consecutive draws sharing them skip the redundant GL calls.
+ *
+ * Like LWJGL.java this is a holder of "global" state; all fields and methods
+ * are static and must only be used on the GL thread. Every bind of a Mesh
+ * reports itself here, so the record stays correct even for binds made
+ * outside the render queue (mesh uploads, ...). reset() forgets the VAO and
+ * clears the counters; Scene calls it at the start of each frame.
+ *
+ * Textures are drawn through a texture unit allocator: every unit from
+ * FIRST_UNIT up to GL_MAX_COMBINED_TEXTURE_IMAGE_UNITS holds a texture and
+ * sampler, and keeps it across draws and frames. A texture already on a
+ * unit is drawn by pointing the shader's texImage at that unit, no texture
+ * call at all, and only when the unit changes; a texture on no unit
+ * replaces the least recently used one. Which unit holds a texture and
+ * sampler is looked up in a small hash table, so a draw whose texture is
+ * already on a unit costs no scan of the units and allocates nothing; only
+ * a texture on no unit scans them for the least recently used one. Unit 0
+ * is left to texture creation and uploads, unit 1 is TextureArray.UNIT,
+ * which holds the last array drawn.
+ */
+import static org.lwjgl.opengl.GL11.GL_TEXTURE_2D;
+import static org.lwjgl.opengl.GL11.glGetInteger;
+import static org.lwjgl.opengl.GL20.GL_MAX_COMBINED_TEXTURE_IMAGE_UNITS;
+import static org.lwjgl.opengl.GL20.glGetUniformLocation;
+import static org.lwjgl.opengl.GL20.glUniform1i;
+import static org.lwjgl.opengl.GL30.glBindVertexArray;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+public class RenderState {
+	// ------------------ class variables ------------------------------
+	/** First unit the allocator hands out. */
+	static final int FIRST_UNIT = TextureArray.UNIT + 1;
+
+	private static int boundVao = -1; // -1 = unknown
+
+	// what each unit holds, -1 if unknown, and when it was last drawn with
+	private static int[] unitTexture = null; // made on first use
+	private static SamplerState[] unitSampler = null;
+	private static long[] unitUsed = null;
+	private static long useClock = 0;
+	private static int arrayTexture = -1; // on TextureArray.UNIT
+
+	// (texture id, sampler) -> unit of the units holding a known texture;
+	// open addressing with linear probing, slotTexture 0 is an empty slot
+	private static int[] slotTexture = null;
+	private static SamplerState[] slotSampler = null;
+	private static int[] slotUnit = null;
+
+	private static int shaderPgm = -1;
+	private static int unifTexImage = -1;
+	private static int samplerUnit = -1; // texImage of shaderPgm, -1 unknown
+
+	// per-frame counters
+	static int vaoBinds = 0;
+	static int vaoBindsSkipped = 0;
+	static int textureBinds = 0;
+	static int textureBindsSkipped = 0; // texture already on a unit
+	static int unitSwitches = 0; // texImage pointed at another unit
+
+	// ------------------------- reset ----------------------------
+	/**
+	 * Forget the bound VAO and clear the counters for a new frame. The
+	 * textures stay on their units.
+	 */
+	public static void reset() {
+		boundVao = -1;
+		vaoBinds = vaoBindsSkipped = 0;
+		textureBinds = textureBindsSkipped = unitSwitches = 0;
+	}
+
+	// ------------------------- bindMesh ----------------------------
+	/**
+	 * Bind the mesh's VAO unless it is already bound.
+	 *
+	 * @param mesh
+	 *            Mesh to draw next
+	 */
+	public static void bindMesh(Mesh mesh) {
+		if (mesh.getVaoId() == boundVao) {
+			vaoBindsSkipped++;
+			return;
+		}
+		mesh.bind();
+		vaoBinds++;
+	}
+
+	/**
+	 * Bind VAO 0.
+	 */
+	public static void unbindVertexArray() {
+		glBindVertexArray(0);
+		boundVao = 0;
+	}
+
+	// ------------------------- bindTexture ----------------------------
+	/**
+	 * Make the texture the one the shader draws with: find it on a unit or
+	 * bind it to the least recently used unit, and point texImage there.
+	 *
+	 * @param texture
+	 *            Texture to draw with next
+	 */
+	public static void bindTexture(Texture texture) {
+		int id = texture.getId();
+		if (texture.getTextureType() != GL_TEXTURE_2D) {
+			TextureArray.select(true);
+			if (id != 0 && id == arrayTexture) {
+				texture.markUsed();
+				textureBindsSkipped++;
+				return;
+			}
+			texture.bindUnit(TextureArray.UNIT);
+			arrayTexture = texture.getId();
+			textureBinds++;
+			return;
+		}
+		TextureArray.select(false);
+		if (unitTexture == null)
+			allocateUnits();
+
+		SamplerState sampler = texture.getSampler();
+		int unit = id > 0 ? findUnit(id, sampler) : -1;
+		if (unit >= 0) {
+			texture.markUsed();
+			textureBindsSkipped++;
+		} else {
+			unit = FIRST_UNIT;
+			for (int u = FIRST_UNIT + 1; u < unitTexture.length; u++)
+				if (unitUsed[u] < unitUsed[unit])
+					unit = u;
+			clearUnit(unit);
+			texture.bindUnit(unit); // may restore it, giving it a new id
+			id = texture.getId();
+			if (!SamplerState.isSupported())
+				forget(id); // applyTo changed it on every unit
+			unitTexture[unit] = id;
+			unitSampler[unit] = sampler;
+			addUnit(id, sampler, unit);
+			textureBinds++;
+		}
+		unitUsed[unit] = ++useClock;
+		selectUnit(unit);
+	}
+
+	// point the shader's texImage at the unit if it isn't already
+	private static void selectUnit(int unit) {
+		if (shaderPgm != LWJGL.shaderProgram) {
+			shaderPgm = LWJGL.shaderProgram;
+			unifTexImage = glGetUniformLocation(shaderPgm, "texImage");
+			samplerUnit = -1;
+		}
+		if (samplerUnit != unit) {
+			glUniform1i(unifTexImage, unit);
+			samplerUnit = unit;
+			unitSwitches++;
+		}
+	}
+
+	private static void allocateUnits() {
+		int units = glGetInteger(GL_MAX_COMBINED_TEXTURE_IMAGE_UNITS);
+		unitTexture = new int[Math.max(units, FIRST_UNIT + 1)];
+		unitSampler = new SamplerState[unitTexture.length];
+		unitUsed = new long[unitTexture.length];
+		Arrays.fill(unitTexture, -1);
+		int slots = Integer.highestOneBit(unitTexture.length) * 4; // at most half full
+		slotTexture = new int[slots];
+		slotSampler = new SamplerState[slots];
+		slotUnit = new int[slots];
+	}
+
+	// ------------------------- unit table ----------------------------
+	// the unit holding the texture and sampler, or -1
+	private static int findUnit(int id, SamplerState sampler) {
+		int mask = slotTexture.length - 1;
+		for (int i = home(id, sampler); slotTexture[i] != 0; i = (i + 1) & mask)
+			if (slotTexture[i] == id && Objects.equals(slotSampler[i], sampler))
+				return slotUnit[i];
+		return -1;
+	}
+
+	private static void addUnit(int id, SamplerState sampler, int unit) {
+		if (id <= 0)
+			return;
+		int mask = slotTexture.length - 1;
+		int i = home(id, sampler);
+		while (slotTexture[i] != 0)
+			i = (i + 1) & mask;
+		slotTexture[i] = id;
+		slotSampler[i] = sampler;
+		slotUnit[i] = unit;
+	}
+
+	// take what the unit holds out of the table and mark it unknown
+	private static void clearUnit(int unit) {
+		int id = unitTexture[unit];
+		if (id > 0) {
+			int mask = slotTexture.length - 1;
+			int i = home(id, unitSampler[unit]);
+			while (slotUnit[i] != unit || slotTexture[i] != id)
+				i = (i + 1) & mask;
+			// shift the following entries of the run back, so no probe
+			// sequence is cut short by the hole
+			for (int j = (i + 1) & mask; slotTexture[j] != 0; j = (j + 1) & mask) {
+				int h = home(slotTexture[j], slotSampler[j]);
+				if (((j - h) & mask) >= ((j - i) & mask)) {
+					slotTexture[i] = slotTexture[j];
+					slotSampler[i] = slotSampler[j];
+					slotUnit[i] = slotUnit[j];
+					i = j;
+				}
+			}
+			slotTexture[i] = 0;
+			slotSampler[i] = null;
+		}
+		unitTexture[unit] = -1;
+		unitSampler[unit] = null;
+	}
+
+	private static int home(int id, SamplerState sampler) {
+		int h = id * 0x9e3779b9 + (sampler == null ? 0 : sampler.hashCode());
+		return (h ^ (h >>> 16)) & (slotTexture.length - 1);
+	}
+
+	// ------------------------- unbindTexture ----------------------------
+	/**
+	 * Take the texture off every unit holding it.
+	 *
+	 * @param texture
+	 *            Texture
+	 */
+	public static void unbindTexture(Texture texture) {
+		int id = texture.getId();
+		if (texture.getTextureType() != GL_TEXTURE_2D) {
+			if (id == arrayTexture) {
+				texture.unbindUnit(TextureArray.UNIT);
+				arrayTexture = -1;
+			}
+			TextureArray.select(false);
+			return;
+		}
+		if (unitTexture == null || id == 0)
+			return;
+		for (int u = FIRST_UNIT; u < unitTexture.length; u++)
+			if (unitTexture[u] == id) {
+				texture.unbindUnit(u);
+				clearUnit(u);
+				unitTexture[u] = 0;
+			}
+	}
+
+	// ------------------------- notifications ----------------------------
+	/**
+	 * Record that a VAO was bound (called by Mesh).
+	 */
+	static void vertexArrayBound(int vao) {
+		boundVao = vao;
+	}
+
+	/**
+	 * Record that a texture was deleted (called by Texture), which takes it
+	 * off every unit; its id may be given to a new texture.
+	 */
+	static void textureDeleted(int id) {
+		forget(id);
+		if (arrayTexture == id)
+			arrayTexture = -1;
+	}
+
+	// mark the units holding the texture as unknown
+	private static void forget(int id) {
+		if (unitTexture == null)
+			return;
+		for (int u = FIRST_UNIT; u < unitTexture.length; u++)
+			if (unitTexture[u] == id)
+				clearUnit(u);
+	}
+}
@@ -0,0 +1,186 @@
+
+/**
+ * SamplerState.java - how a texture is sampled: min and mag filter and the
+ * s and t wrap modes.
+ *
+ * A SamplerState is an immutable descriptor, so equal states can share one
+ * GL 3.3 sampler object. Binding a sampler to a texture unit overrides the
+ * parameters stored in the texture, which lets one uploaded image be drawn
+ * with any number of filter and wrap settings (see Texture.withSampler).
+ *
+ * On contexts older than 3.3 there are no sampler objects; the state is then
+ * written into the texture itself with glTexParameteri each time it is bound.
+ *
+ * The sampler objects are created on first use and must be created and bound
+ * on the GL thread.
+ */
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL33.*;
+
+import java.util.HashMap;
+
+import org.lwjgl.opengl.GL;
+
+public class SamplerState {
+	// ------------------ class variables ------------------------------
+	/** The GL defaults of a new texture or sampler. */
+	public static final SamplerState DEFAULT = new SamplerState(GL_NEAREST_MIPMAP_LINEAR, GL_LINEAR, GL_REPEAT,
+			GL_REPEAT);
+
+	private static HashMap<SamplerState, Integer> samplers = new HashMap<SamplerState, Integer>();
+
+	// ---------------------- instance variables ------------------------------
+	private final int minFilter;
+	private final int magFilter;
+	private final int wrapS;
+	private final int wrapT;
+
+	// ------------------ Constructors ----------------------------------
+	/**
+	 * Describe a sampler.
+	 *
+	 * @param minFilter
+	 *            int GL_TEXTURE_MIN_FILTER value, e.g. GL_LINEAR_MIPMAP_LINEAR
+	 * @param magFilter
+	 *            int GL_TEXTURE_MAG_FILTER value: GL_NEAREST or GL_LINEAR
+	 * @param wrapS
+	 *            int GL_TEXTURE_WRAP_S value, e.g. GL_CLAMP_TO_EDGE
+	 * @param wrapT
+	 *            int GL_TEXTURE_WRAP_T value
+	 */
+	public SamplerState(int minFilter, int magFilter, int wrapS, int wrapT) {
+		this.minFilter = minFilter;
+		this.magFilter = magFilter;
+		this.wrapS = wrapS;
+		this.wrapT = wrapT;
+	}
+
+	// ------------------------- with... ----------------------------
+	/**
+	 * Return a copy with other filters.
+	 *
+	 * @param min
+	 *            int min filter
+	 * @param mag
+	 *            int mag filter
+	 * @return SamplerState
+	 */
+	public SamplerState withFilter(int min, int mag) {
+		return new SamplerState(min, mag, wrapS, wrapT);
+	}
+
+	/**
+	 * Return a copy with other wrap modes.
+	 *
+	 * @param s
+	 *            int s wrap mode
+	 * @param t
+	 *            int t wrap mode
+	 * @return SamplerState
+	 */
+	public SamplerState withWrap(int s, int t) {
+		return new SamplerState(minFilter, magFilter, s, t);
+	}
+
+	// ------------------------- isSupported ----------------------------
+	/**
+	 * Return true if the current context has sampler objects.
+	 *
+	 * @return boolean
+	 */
+	public static boolean isSupported() {
+		return GL.getCapabilities().OpenGL33;
+	}
+
+	// ------------------------- getSamplerId ----------------------------
+	/**
+	 * Return the shared GL sampler object for this state, creating it the
+	 * first time.
+	 *
+	 * @return int sampler object id
+	 */
+	public int getSamplerId() {
+		Integer id = samplers.get(this);
+		if (id == null) {
+			UtilsLWJGL.glError("--->SamplerState");
+			id = glGenSamplers();
+			glSamplerParameteri(id, GL_TEXTURE_MIN_FILTER, minFilter);
+			glSamplerParameteri(id, GL_TEXTURE_MAG_FILTER, magFilter);
+			glSamplerParameteri(id, GL_TEXTURE_WRAP_S, wrapS);
+			glSamplerParameteri(id, GL_TEXTURE_WRAP_T, wrapT);
+			samplers.put(this, id);
+			UtilsLWJGL.glError("<---SamplerState");
+		}
+		return id;
+	}
+
+	// ------------------------- applyTo ----------------------------
+	/**
+	 * Write the state into the currently bound texture; the fallback when
+	 * there are no sampler objects.
+	 *
+	 * @param target
+	 *            int texture target, e.g. GL_TEXTURE_2D
+	 */
+	public void applyTo(int target) {
+		glTexParameteri(target, GL_TEXTURE_MIN_FILTER, minFilter);
+		glTexParameteri(target, GL_TEXTURE_MAG_FILTER, magFilter);
+		glTexParameteri(target, GL_TEXTURE_WRAP_S, wrapS);
+		glTexParameteri(target, GL_TEXTURE_WRAP_T, wrapT);
+	}
+
+	// ------------------------- deleteAll ----------------------------
+	/**
+	 * Delete all sampler objects. Must be called on the GL thread.
+	 */
+	public static void deleteAll() {
+		for (int id : samplers.values())
+			glDeleteSamplers(id);
+		samplers.clear();
+	}
+
+	// ------------------------- getters ----------------------------
+	public int getMinFilter() {
+		return minFilter;
+	}
+
+	public int getMagFilter() {
+		return magFilter;
+	}
+
+	public int getWrapS() {
+		return wrapS;
+	}
+
+	public int getWrapT() {
+		return wrapT;
+	}
+
+	/**
+	 * Return true if the min filter reads the mipmap levels.
+	 *
+	 * @return boolean
+	 */
+	public boolean usesMipmaps() {
+		return minFilter != GL_NEAREST && minFilter != GL_LINEAR;
+	}
+
+	// ------------------------- equals/hashCode ----------------------------
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof SamplerState))
+			return false;
+		SamplerState s = (SamplerState) o;
+		return minFilter == s.minFilter && magFilter == s.magFilter && wrapS == s.wrapS && wrapT == s.wrapT;
+	}
+
+	@Override
+	public int hashCode() {
+		return ((minFilter * 31 + magFilter) * 31 + wrapS) * 31 + wrapT;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("[min 0x%x, mag 0x%x, wrap 0x%x 0x%x]", minFilter, magFilter, wrapS, wrapT);
+	}
+}
@@ -20,11 +20,25 @@ import java.nio.FloatBuffer;
 import org.joml.*;
 import org.lwjgl.system.MemoryUtil;
 
-public class Scene {
+public class Scene implements AutoCloseable {
 	// --------------------- class variables ---------------------------------
 	static private int sceneCounter = 0;
 	// --------------------- instance variables ------------------------------
 	protected ArrayList<Shape3D> shapes;
+	private boolean useInstancing = false; // draw by InstanceBatch
+	private ArrayList<InstanceBatch> batches = new ArrayList<InstanceBatch>();
+	private static final ArrayList<Shape3D> emptyShapes = new ArrayList<Shape3D>();
+	private boolean batchesChanged = true; // shapes added since grouping
+	private boolean useUniformBlocks = true; // if the context supports them
+	private UniformBlocks blocks = null; // per-frame std140 uniform buffer
+	private RenderQueue queue = new RenderQueue(); // state-sorted draws
+	private Natives natives = new Natives(batches); // what close() frees
+	private GLResources.Handle handle;
+	private Vector3f center = new Vector3f(); // scratch for view depth
+	private boolean useCulling = true; // skip shapes outside the frustum
+	private FrustumIntersection frustum = new FrustumIntersection();
+	private int shapesTested = 0; // culling counters of the last frame
+	private int shapesDrawn = 0;
 	protected Matrix4f viewMatrix = new Matrix4f();
 	protected Matrix4f sceneMatrix = new Matrix4f();
 
@@ -85,12 +99,52 @@ public class Scene {
 			sceneTitle = title;
 		shapes = new ArrayList<Shape3D>();
 		pvsBuf = MemoryUtil.memAllocFloat(16); // buffer for pvs
+		natives.pvsBuf = pvsBuf;
+		handle = GLResources.register(this, "Scene " + sceneTitle, natives);
 		shaderProgram = LWJGL.shaderProgram;
 
 		// set up default view settings
 		updateAllTransforms();
 	}
 
+	// ------------------- close( ) --------------------------------
+	/**
+	 * Close every shape of the scene (the scene owns its shapes) and free the
+	 * scene's own buffers. Textures are not closed; they are usually shared
+	 * between scenes. The GL work is done by GLResources.drain().
+	 */
+	@Override
+	public void close() {
+		for (int i = 0; i < shapes.size(); i++)
+			shapes.get(i).close();
+		handle.close();
+	}
+
+	// ========================= Natives ==================================
+	/**
+	 * The resources a scene must free, kept apart from the Scene so the
+	 * Cleaner does not keep it reachable.
+	 */
+	private static class Natives implements Runnable {
+		private final ArrayList<InstanceBatch> batches; // the scene's list
+		private FloatBuffer pvsBuf = null;
+		private UniformBlocks blocks = null;
+
+		Natives(ArrayList<InstanceBatch> batches) {
+			this.batches = batches;
+		}
+
+		@Override
+		public void run() {
+			for (int b = 0; b < batches.size(); b++)
+				batches.get(b).delete();
+			batches.clear();
+			if (blocks != null)
+				blocks.delete();
+			MemoryUtil.memFree(pvsBuf);
+		}
+	}
+
 	// ------------------- addShape( Shape3D ) --------------------------------
 	/**
 	 * Add a shape to this scene.
@@ -100,6 +154,7 @@ public class Scene {
 	 */
 	public void addShape(Shape3D shape) {
 		shapes.add(shape);
+		batchesChanged = true;
 	}
 
 	// ------------------- redraw( ) --------------------------------
@@ -107,10 +162,177 @@ public class Scene {
 	 * Update scene-related uniform variables and regenerate the Scene.
 	 */
 	public void redraw() {
+		if (handle.isClosed())
+			return;
 		if (sceneTransformChanged || viewChanged)
 			updateAllTransforms();
+		RenderState.reset();
+		shapesTested = shapesDrawn = 0;
+		FrustumIntersection cull = useCulling ? frustum : null;
+		boolean blocksOn = useUniformBlocks && UniformBlocks.isSupported();
+		UniformBlocks.setEnabled(blocksOn);
+		if (blocksOn && blocks == null)
+			natives.blocks = blocks = new UniformBlocks();
+
+		if (useInstancing) {
+			if (batchesChanged || !batchesValid())
+				buildBatches();
+			if (blocksOn)
+				blocks.write(pvsMatrix, emptyShapes);
+			for (int b = 0; b < batches.size(); b++) {
+				shapesTested += batches.get(b).size();
+				shapesDrawn += batches.get(b).redraw(cull);
+			}
+		} else {
+			// one buffer upload for the frame, then just select the range
+			if (blocksOn)
+				blocks.write(pvsMatrix, shapes);
+			buildQueue(cull);
+			for (int q = 0; q < queue.size(); q++) {
+				int i = queue.getItem(q);
+				if (blocksOn) {
+					blocks.bindObject(i);
+					shapes.get(i).drawMesh();
+				} else
+					shapes.get(i).redraw();
+			}
+		}
+	}
+
+	// ------------------- buildQueue( ) --------------------------------
+	/**
+	 * Fill the render queue with one sort key per visible shape and sort it,
+	 * so that opaque shapes are drawn grouped by shader, texture and mesh and
+	 * front to back, then blended shapes back to front.
+	 * 
+	 * @param cull
+	 *            FrustumIntersection to cull against, or null to draw all
+	 */
+	private void buildQueue(FrustumIntersection cull) {
+		queue.clear();
+		float range = far - near;
+		for (int i = 0; i < shapes.size(); i++) {
+			Shape3D shape = shapes.get(i);
+			shapesTested++;
+			if (cull != null && !shape.isVisible(cull))
+				continue;
+			Mesh mesh = shape.getMesh();
+			if (mesh == null)
+				continue;
+			// eye space z of the shape's origin is negative in front of us
+			vsMatrix.transformPosition(center.set(shape.getX(), shape.getY(), shape.getZ()));
+			float depth = (-center.z - near) / range;
+			int tex = shape.hasTexture() ? shape.getTexture().getId() : 0;
+			queue.add(i, RenderQueue.makeKey(shape.isTranslucent(), shaderProgram, tex, mesh.getVaoId(), depth));
+		}
+		queue.sort();
+		shapesDrawn = queue.size();
+	}
+
+	// ------------------- setCulling( boolean ) ------------------------
+	/**
+	 * Choose whether shapes whose bounds are outside the view frustum are
+	 * skipped.
+	 * 
+	 * @param on
+	 *            boolean true implies cull
+	 */
+	public void setCulling(boolean on) {
+		useCulling = on;
+	}
+
+	// ------------------- culling counters ------------------------
+	/**
+	 * Return the number of shapes tested against the frustum in the last
+	 * redraw.
+	 * 
+	 * @return int
+	 */
+	public int getShapesTested() {
+		return shapesTested;
+	}
+
+	/**
+	 * Return the number of shapes drawn in the last redraw.
+	 * 
+	 * @return int
+	 */
+	public int getShapesDrawn() {
+		return shapesDrawn;
+	}
+
+	// ------------------- setUniformBlocks( boolean ) ------------------------
+	/**
+	 * Choose between sending the scene and object uniforms through a std140
+	 * uniform buffer (the default when GL 3.1 is available) and the individual
+	 * glUniform calls, which remain the only choice on GL 3.0 contexts.
+	 * 
+	 * @param on
+	 *            boolean true implies use uniform blocks if supported
+	 */
+	public void setUniformBlocks(boolean on) {
+		useUniformBlocks = on;
+	}
+
+	// ------------------- setTextureWeight( float ) ---------------------------
+	/**
+	 * Set the blend parameter of every shape in the scene; see
+	 * Shape3D.setTextureWeight.
+	 * 
+	 * @param texWt
+	 *            float % of color to be taken from texture (0-1)
+	 */
+	public void setTextureWeight(float texWt) {
 		for (Shape3D shape : shapes)
-			shape.redraw();
+			shape.setTextureWeight(texWt);
+	}
+
+	// ------------------- setInstancing( boolean ) ---------------------------
+	/**
+	 * Choose between drawing each shape with its own draw call and drawing
+	 * all shapes sharing a mesh and texture with one instanced draw call.
+	 * 
+	 * @param on
+	 *            boolean true implies instanced drawing
+	 */
+	public void setInstancing(boolean on) {
+		useInstancing = on;
+	}
+
+	// ------------------- buildBatches( ) --------------------------------
+	/**
+	 * Group the shapes by mesh and texture, keeping the order in which each
+	 * group first appears in the shape list.
+	 */
+	private void buildBatches() {
+		for (InstanceBatch batch : batches)
+			batch.delete();
+		batches.clear();
+
+		LinkedHashMap<List<Object>, InstanceBatch> groups = new LinkedHashMap<List<Object>, InstanceBatch>();
+		for (Shape3D shape : shapes) {
+			Texture tex = shape.hasTexture() ? shape.getTexture() : null;
+			List<Object> key = Arrays.asList(shape.getMeshKey(), tex);
+			InstanceBatch batch = groups.get(key);
+			if (batch == null) {
+				batch = new InstanceBatch(tex);
+				groups.put(key, batch);
+			}
+			batch.add(shape);
+		}
+		batches.addAll(groups.values());
+		batchesChanged = false;
+	}
+
+	// ------------------- batchesValid( ) --------------------------------
+	/**
+	 * Return false if any shape changed its texture or mesh after grouping.
+	 */
+	private boolean batchesValid() {
+		for (int b = 0; b < batches.size(); b++)
+			if (!batches.get(b).isValid())
+				return false;
+		return true;
 	}
 
 	// ------------------- usePerspective( boolean) ---------------------------
@@ -351,6 +573,7 @@ public class Scene {
 
 		vsMatrix.set(viewMatrix).mul(sceneMatrix); // vs = view * scene
 		pvsMatrix.set(projectionMatrix).mul(vsMatrix); // pvs = proj * vs
+		frustum.set(pvsMatrix); // planes in the shapes' Scene coordinates
 
 		// get stores this matrix into its argument -- a buffer in this case
 		pvsBuf = pvsMatrix.get(pvsBuf);
@@ -23,15 +23,18 @@
  */
 import static org.lwjgl.glfw.GLFW.*;
 import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+import static org.lwjgl.opengl.GL13.GL_CLAMP_TO_BORDER;
 import static org.lwjgl.opengl.GL20.*;
 
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
-import org.lwjgl.system.MemoryUtil;
 import org.lwjgl.glfw.*;
 
-import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
 
 public class SceneManager {
 	// ---------------------- class variables --------------------------
@@ -43,24 +46,16 @@ public class SceneManager {
 			// , "mapImage.jpg"
 	};
 
-	// objects of the Scene class inorder to show different variations
-	private Scene quadScene = null;
-	private Scene boxScene = null;
-	private Scene cylinderScene = null;
-	private Scene cylinderScene1 = null;
+	// objects of the Scene class inorder to show different variations, in
+	// the order the period key steps through them. Each is made by its
+	// supplier the first time it is shown or prefetched, so the first frame
+	// only waits for the first scene.
+	private ArrayList<Supplier<Scene>> sceneMakers = new ArrayList<Supplier<Scene>>();
+	private Scene[] scenes = null; // null until built
+	private int sceneIndex = 0;
+	private boolean prefetch = true; // the neighbours of curScene are due
 
 	private Scene curScene = null;
-	private Scene quad2Scene = null;
-	private Scene quad3Scene = null;
-	private Scene quad4Scene = null;
-	private Scene quad5Scene = null;
-	private Scene quad6Scene = null;
-	private Scene quad7Scene = null;
-	private Scene quad8Scene = null;
-	private Scene quad9Scene = null;
-	private Scene box10Scene = null;
-	private Scene box11Scene = null;
-	private Scene box12Scene = null;
 
 	// --------- viewing parameters
 	private Vector3f eye = new Vector3f(0, 0, 1);
@@ -84,12 +79,32 @@ public class SceneManager {
 	private float top = 1;
 
 	private boolean usePerspective = true;
-
-	// --------- buffers/textures
-	private FloatBuffer pvsBuf; // buffer for Proj*View*Scene matrix
-
-	private Texture textures[] = null;
-	private Texture mytextures[] = null;
+	private boolean useInstancing = false; // n key toggles instanced drawing
+
+	// --------- textures
+	// textures still loading on the TextureLoader threads; shapes show their
+	// color until their texture is uploaded. Entries are null until a scene
+	// asks for them.
+	private ArrayList<CompletableFuture<Texture>> textures = null;
+	private ArrayList<CompletableFuture<Texture>> mytextures = null;
+
+	// filter and wrap settings compared by the scenes; all are applied to
+	// the one checkerboard texture. Settings not listed are the GL defaults.
+	private static final SamplerState[] mySamplers = {
+			SamplerState.DEFAULT.withFilter(GL_NEAREST, GL_LINEAR), // 0
+			SamplerState.DEFAULT.withFilter(GL_LINEAR, GL_LINEAR), // 1
+			SamplerState.DEFAULT.withFilter(GL_NEAREST_MIPMAP_LINEAR, GL_LINEAR), // 2
+			SamplerState.DEFAULT.withFilter(GL_LINEAR_MIPMAP_LINEAR, GL_LINEAR), // 3
+			SamplerState.DEFAULT.withFilter(GL_NEAREST_MIPMAP_NEAREST, GL_LINEAR), // 4
+			SamplerState.DEFAULT.withFilter(GL_LINEAR_MIPMAP_NEAREST, GL_LINEAR), // 5
+			SamplerState.DEFAULT.withFilter(GL_LINEAR_MIPMAP_LINEAR, GL_NEAREST), // 6
+			SamplerState.DEFAULT.withWrap(GL_CLAMP_TO_EDGE, GL_CLAMP_TO_EDGE), // 7
+			SamplerState.DEFAULT.withWrap(GL_CLAMP_TO_BORDER, GL_CLAMP_TO_BORDER), // 8
+			SamplerState.DEFAULT.withWrap(GL_CLAMP_TO_EDGE, GL_CLAMP_TO_BORDER), // 9
+			SamplerState.DEFAULT.withWrap(GL_CLAMP_TO_BORDER, GL_CLAMP_TO_EDGE), // 10
+			SamplerState.DEFAULT.withWrap(GL_CLAMP_TO_EDGE, GL_REPEAT), // 11
+			SamplerState.DEFAULT.withWrap(GL_CLAMP_TO_EDGE, GL_CLAMP_TO_BORDER) // 12
+	};
 	// Zoom in factors
 	private float zoomInUnit = 0.01f; // Zoom unit factor starts with 2 till 6
 	private float zoomOutUnit = 2.02f; // Zoom out Unit starts with -2
@@ -115,29 +130,43 @@ public class SceneManager {
 							// parameter specification
 		clampScenes();
 		// perspectiveScenes();
-		curScene = quadScene;
+		scenes = new Scene[sceneMakers.size()];
+		curScene = scene(0);
 
 		glfwSetWindowTitle(LWJGL.windowId, curScene.getTitle());
 		UtilsLWJGL.glError("<---SceneManager"); // any errors in ctor?
 	}
 
-	// ------------------ finalize() ---------------------------
+	// ------------------ close() ---------------------------
 	/**
-	 * Deallocate memory allocated by the lwjgl.system.MemoryUtil package.
-	 * Strictly speaking, this particular class doesn't really need to do that
-	 * since there is only one instance of the class created and it is only
-	 * destroyed when the application ends. However, it's cood practice to do
-	 * it!
+	 * Close all the scenes and textures. The GL objects are deleted by the
+	 * next GLResources.drain(), which must happen before the window and its
+	 * context are destroyed.
 	 */
-	public void finalize() {
-		MemoryUtil.memFree(pvsBuf);
+	public void close() {
+		for (Scene scene : scenes)
+			if (scene != null)
+				scene.close();
+		curScene = null;
+		TextureCache.clear(); // the cache owns all the textures
+	}
+
+	// ------------------ getSceneCount() ---------------------------
+	/**
+	 * Return the number of scenes the period key steps through.
+	 *
+	 * @return int
+	 */
+	public int getSceneCount() {
+		return scenes.length;
 	}
 
 	// ------------------ clampScenes --------------------------
 	/**
-	 * Build 14 scenes; with 10 Quads,two with Boxes, two with Cylinder. 10
+	 * Register 13 scenes; with 9 Quads,two with Boxes, two with Cylinder. The
 	 * quads show texture paramter variations compared with multiple objects in
-	 * the same screen one quad show mipmap differentation
+	 * the same screen one quad show mipmap differentation. A scene and its
+	 * textures are only made by scene( int ).
 	 */
 	private void clampScenes() {
 		// Vectors for multiple locations
@@ -177,187 +206,280 @@ public class SceneManager {
 		};
 
 		// textures for first three scenes
-		Texture[] txture = { textures[1], textures[1], textures[1], textures[1], textures[0], textures[3] };
+		int[] txture = { 1, 1, 1, 1, 0, 3 };
 
 		float[] texWts = { 1f, 1f, 0.75f, 0.5f, 1f };
 
 		float[] texWts1 = { 1f, 1f, 0.75f, 0.5f, 1f, 1f, 1f, 0.75f, 0.5f, 1f, 1f, 1f, 0.75f, 0.5f, 1f };
 
 		// ----------- quad scene ------------------
-		quadScene = new Scene("Quad scene; with/without textures");
-		for (int q = 0; q < locs.length; q++)
-			quadScene.addShape(makeQuad2(locs[q], sizes[q], txture[q], texWts[q]));
-		quadScene.setLookAt(eye, at, up);
-		quadScene.setOrtho(left, right, bottom, top, near, far);
-		quadScene.setPerspective(fovyDegrees, aspect, near, far);
+		Supplier<Scene> quadScene = () -> {
+			Scene scene = new Scene("Quad scene; with/without textures");
+			for (int q = 0; q < locs.length; q++)
+				scene.addShape(makeQuad2(locs[q], sizes[q], texture(txture[q]), texWts[q]));
+			scene.setLookAt(eye, at, up);
+			scene.setOrtho(left, right, bottom, top, near, far);
+			scene.setPerspective(fovyDegrees, aspect, near, far);
+			return scene;
+		};
 
 		// --------------Mipmapped and Non mipmapped image
-		quad2Scene = new Scene("Scene 1 ,Left - Mipmapped image & Right - Non Mipmapped image");
-		for (int q = 0; q < 2; q++) {
-			quad2Scene.addShape(makeQuad2(locs[q], sizes[q], mytextures[0], texWts[q]));
-			quad2Scene.addShape(makeQuad2(locations1[q], sizes1[q], mytextures[3], texWts1[q]));
-		}
+		Supplier<Scene> quad2Scene = () -> {
+			Scene scene = new Scene("Scene 1 ,Left - Mipmapped image & Right - Non Mipmapped image");
+			for (int q = 0; q < 2; q++) {
+				scene.addShape(makeQuad2(locs[q], sizes[q], myTexture(0), texWts[q]));
+				scene.addShape(makeQuad2(locations1[q], sizes1[q], myTexture(3), texWts1[q]));
+			}
 
-		quad2Scene.setLookAt(eye, at, up);
-		quad2Scene.setOrtho(left, right, bottom, top, near, far);
-		quad2Scene.setPerspective(fovyDegrees, aspect, near, far);
+			scene.setLookAt(eye, at, up);
+			scene.setOrtho(left, right, bottom, top, near, far);
+			scene.setPerspective(fovyDegrees, aspect, near, far);
+			return scene;
+		};
 
 		// --------------quad3Scene ---------------------------
 		// Right - Min_nearest_mipmap_Linear + MagLinear & Left - Min Linear +
 		// Mag Linear -----
-		quad3Scene = new Scene("Right - Min_near_mipmap_Linear + MagLinear & Left - Min Linear + Mag Linear ");
-		for (int q = 0; q < locations.length; q++) {
-			quad3Scene.addShape(makeQuad2(locs[q], sizes[q], mytextures[1], texWts[q]));
-			quad3Scene.addShape(makeQuad2(locations1[q], sizes1[q], mytextures[2], texWts[q]));
-		}
-		quad3Scene.setLookAt(eye, at, up);
-		quad3Scene.setOrtho(left, right, bottom, top, near, far);
-		quad3Scene.setPerspective(fovyDegrees, aspect, near, far);
+		Supplier<Scene> quad3Scene = () -> {
+			Scene scene = new Scene("Right - Min_near_mipmap_Linear + MagLinear & Left - Min Linear + Mag Linear ");
+			for (int q = 0; q < locations.length; q++) {
+				scene.addShape(makeQuad2(locs[q], sizes[q], myTexture(1), texWts[q]));
+				scene.addShape(makeQuad2(locations1[q], sizes1[q], myTexture(2), texWts[q]));
+			}
+			scene.setLookAt(eye, at, up);
+			scene.setOrtho(left, right, bottom, top, near, far);
+			scene.setPerspective(fovyDegrees, aspect, near, far);
+			return scene;
+		};
 
 		// Right -Min_nearest_mipamap_nearest + magLinear & Left -
 		// MinLinear_Mipmap_linear+MagLinear
-		quad4Scene = new Scene("Right -Min_near_mipamap_near + magLinear & Left - MinLinear_Mipmap_linear+MagLinear ");
-		for (int q = 0; q < locations.length; q++) {
-			quad4Scene.addShape(makeQuad2(locs[q], sizes[q], mytextures[3], texWts[q]));
-			quad4Scene.addShape(makeQuad2(locations1[q], sizes1[q], mytextures[4], texWts[q]));
-		}
-		quad4Scene.setLookAt(eye, at, up);
-		quad4Scene.setOrtho(left, right, bottom, top, near, far);
-		quad4Scene.setPerspective(fovyDegrees, aspect, near, far);
+		Supplier<Scene> quad4Scene = () -> {
+			Scene scene = new Scene("Right -Min_near_mipamap_near + magLinear & Left - MinLinear_Mipmap_linear+MagLinear ");
+			for (int q = 0; q < locations.length; q++) {
+				scene.addShape(makeQuad2(locs[q], sizes[q], myTexture(3), texWts[q]));
+				scene.addShape(makeQuad2(locations1[q], sizes1[q], myTexture(4), texWts[q]));
+			}
+			scene.setLookAt(eye, at, up);
+			scene.setOrtho(left, right, bottom, top, near, far);
+			scene.setPerspective(fovyDegrees, aspect, near, far);
+			return scene;
+		};
 
 		// Right -Min_Linear_mipmapLinear + Mag Linear & Left -
 		// MinLinear_Mipmap_nearest+MagLinear
-		quad5Scene = new Scene("Right -Min_Linear_mipmapLinear + Mag Near & Left - MinLinear_Mipmap_near+MagLinear ");
-		for (int q = 0; q < locations.length; q++) {
-			quad5Scene.addShape(makeQuad2(locs[q], sizes[q], mytextures[5], texWts[q]));
-			quad5Scene.addShape(makeQuad2(locations1[q], sizes1[q], mytextures[6], texWts[q]));
-		}
-		quad5Scene.setLookAt(eye, at, up);
-		quad5Scene.setOrtho(left, right, bottom, top, near, far);
-		quad5Scene.setPerspective(fovyDegrees, aspect, near, far);
+		Supplier<Scene> quad5Scene = () -> {
+			Scene scene = new Scene("Right -Min_Linear_mipmapLinear + Mag Near & Left - MinLinear_Mipmap_near+MagLinear ");
+			for (int q = 0; q < locations.length; q++) {
+				scene.addShape(makeQuad2(locs[q], sizes[q], myTexture(5), texWts[q]));
+				scene.addShape(makeQuad2(locations1[q], sizes1[q], myTexture(6), texWts[q]));
+			}
+			scene.setLookAt(eye, at, up);
+			scene.setOrtho(left, right, bottom, top, near, far);
+			scene.setPerspective(fovyDegrees, aspect, near, far);
+			return scene;
+		};
 
 		// Right -glWrapSclamtoedge+glWrapTclamptoEdge + Mag Linear & Left-
 		// Min_Linear_mipmapLinear + Mag Linear
-		quad6Scene = new Scene("Wrap -clamtoedge+clamptoEdge + Mag Linear & Min_Linear_mipmapLinear + Mag Linear ");
-		for (int q = 0; q < locations.length; q++) {
-			quad6Scene.addShape(makeQuad2(locs[q], sizes[q], mytextures[6], texWts[q]));
-			quad6Scene.addShape(makeQuad2(locations1[q], sizes2[q], mytextures[7], texWts[q]));
-		}
-		quad6Scene.setLookAt(eye, at, up);
-		quad6Scene.setOrtho(left, right, bottom, top, near, far);
-		quad6Scene.setPerspective(fovyDegrees, aspect, near, far);
+		Supplier<Scene> quad6Scene = () -> {
+			Scene scene = new Scene("Wrap -clamtoedge+clamptoEdge + Mag Linear & Min_Linear_mipmapLinear + Mag Linear ");
+			for (int q = 0; q < locations.length; q++) {
+				scene.addShape(makeQuad2(locs[q], sizes[q], myTexture(6), texWts[q]));
+				scene.addShape(makeQuad2(locations1[q], sizes2[q], myTexture(7), texWts[q]));
+			}
+			scene.setLookAt(eye, at, up);
+			scene.setOrtho(left, right, bottom, top, near, far);
+			scene.setPerspective(fovyDegrees, aspect, near, far);
+			return scene;
+		};
 
 		// Right -glWrapSclamtoborder+glWrapTclamptoborder, Left -
 		// glWrapSclamtoedge+glWrapTclamptoborder
-		quad7Scene = new Scene("Wrap -clamtoborder+clamptoborder, Left - clamtoedge+clamptoborder");
-		for (int q = 0; q < locations.length; q++) {
-			quad7Scene.addShape(makeQuad2(locs[q], sizes[q], mytextures[8], texWts[q]));
-			quad7Scene.addShape(makeQuad2(locations2[q], sizes2[q], mytextures[9], texWts[q]));
-		}
-		quad7Scene.setLookAt(eye, at, up);
-		quad7Scene.setOrtho(left, right, bottom, top, near, far);
-		// boxScene.setPerspective( fovyDegrees, aspect, near, far );
-		quad7Scene.setPerspective(fovyDegrees, aspect, near, far);
+		Supplier<Scene> quad7Scene = () -> {
+			Scene scene = new Scene("Wrap -clamtoborder+clamptoborder, Left - clamtoedge+clamptoborder");
+			for (int q = 0; q < locations.length; q++) {
+				scene.addShape(makeQuad2(locs[q], sizes[q], myTexture(8), texWts[q]));
+				scene.addShape(makeQuad2(locations2[q], sizes2[q], myTexture(9), texWts[q]));
+			}
+			scene.setLookAt(eye, at, up);
+			scene.setOrtho(left, right, bottom, top, near, far);
+			// boxScene.setPerspective( fovyDegrees, aspect, near, far );
+			scene.setPerspective(fovyDegrees, aspect, near, far);
+			return scene;
+		};
 
 		// ------------- --Right -glWrapSclamtoborder+glRepeat ---------------
-		quad8Scene = new Scene("Wrap - clamtoborder+glRepeat, clamtoborder+clamtoedge");
-		for (int q = 0; q < locations.length; q++) {
-			quad8Scene.addShape(makeQuad2(locs[q], sizes[q], mytextures[10], texWts[q]));
-			quad8Scene.addShape(makeQuad2(locations2[q], sizes2[q], mytextures[11], texWts[q]));
-		}
-		quad8Scene.setLookAt(eye, at, up);
-		quad8Scene.setOrtho(left, right, bottom, top, near, far);
-		// boxScene.setPerspective( fovyDegrees, aspect, near, far );
-		quad8Scene.setPerspective(fovyDegrees, aspect, near, far);
+		Supplier<Scene> quad8Scene = () -> {
+			Scene scene = new Scene("Wrap - clamtoborder+glRepeat, clamtoborder+clamtoedge");
+			for (int q = 0; q < locations.length; q++) {
+				scene.addShape(makeQuad2(locs[q], sizes[q], myTexture(10), texWts[q]));
+				scene.addShape(makeQuad2(locations2[q], sizes2[q], myTexture(11), texWts[q]));
+			}
+			scene.setLookAt(eye, at, up);
+			scene.setOrtho(left, right, bottom, top, near, far);
+			// boxScene.setPerspective( fovyDegrees, aspect, near, far );
+			scene.setPerspective(fovyDegrees, aspect, near, far);
+			return scene;
+		};
 
 		// ------------- --Right -glWrapSclamtoborder+glRepeat ---------------
 		// ----------------Left - glWrapSclamtoborder+glWrapTclamptoedge
 		// -----------------
 		// ----------- quad scene ------------------
-		quad9Scene = new Scene("clamtoedge+clamtoborder,   clamtoedge+repeat ");
-		for (int q = 0; q < locations.length; q++) {
-			quad9Scene.addShape(makeQuad2(locs[q], sizes[q], mytextures[12], texWts[q]));
-			quad9Scene.addShape(makeQuad2(locations2[q], sizes2[q], mytextures[11], texWts[q]));
-		}
-		quad9Scene.setLookAt(eye, at, up);
-		quad9Scene.setOrtho(left, right, bottom, top, near, far);
-		// boxScene.setPerspective( fovyDegrees, aspect, near, far );
-		quad9Scene.setPerspective(fovyDegrees, aspect, near, far);
+		Supplier<Scene> quad9Scene = () -> {
+			Scene scene = new Scene("clamtoedge+clamtoborder,   clamtoedge+repeat ");
+			for (int q = 0; q < locations.length; q++) {
+				scene.addShape(makeQuad2(locs[q], sizes[q], myTexture(12), texWts[q]));
+				scene.addShape(makeQuad2(locations2[q], sizes2[q], myTexture(11), texWts[q]));
+			}
+			scene.setLookAt(eye, at, up);
+			scene.setOrtho(left, right, bottom, top, near, far);
+			// boxScene.setPerspective( fovyDegrees, aspect, near, far );
+			scene.setPerspective(fovyDegrees, aspect, near, far);
+			return scene;
+		};
 
 		// ----------- box scene ------------------
-		boxScene = new Scene("Box scene; with/without textures");
-		for (int q = 0; q < locs.length; q++)
-			boxScene.addShape(makeBox(locs[q], sizes[q], txture[q], texWts[q]));
-		boxScene.setLookAt(eye, at, up);
-		boxScene.setOrtho(left, right, bottom, top, near, far);
-		// boxScene.setPerspective( fovyDegrees, aspect, near, far );
-		boxScene.setPerspective(fovyDegrees - 1f, aspect, near, far);
+		Supplier<Scene> boxScene = () -> {
+			Scene scene = new Scene("Box scene; with/without textures");
+			for (int q = 0; q < locs.length; q++)
+				scene.addShape(makeBox(locs[q], sizes[q], texture(txture[q]), texWts[q]));
+			scene.setLookAt(eye, at, up);
+			scene.setOrtho(left, right, bottom, top, near, far);
+			// boxScene.setPerspective( fovyDegrees, aspect, near, far );
+			scene.setPerspective(fovyDegrees - 1f, aspect, near, far);
+			return scene;
+		};
 
 		// ----------- box scene ------------------
 		// --------------Mipmapped and Non mipmapped image
 		// ---------------------------
-		box10Scene = new Scene("Box Scene->Left - Mipmapped, Right - Non Mipmapped");
-		for (int q = 0; q < 2; q++) {
-			box10Scene.addShape(makeBox(locs[q], sizes[q], txture[q], texWts[q]));
-			box10Scene.addShape(makeBox(locations1[q], sizes1[q], mytextures[3], texWts1[q]));
-		}
+		Supplier<Scene> box10Scene = () -> {
+			Scene scene = new Scene("Box Scene->Left - Mipmapped, Right - Non Mipmapped");
+			for (int q = 0; q < 2; q++) {
+				scene.addShape(makeBox(locs[q], sizes[q], texture(txture[q]), texWts[q]));
+				scene.addShape(makeBox(locations1[q], sizes1[q], myTexture(3), texWts1[q]));
+			}
 
-		box10Scene.setLookAt(eye, at, up);
-		box10Scene.setOrtho(left, right, bottom, top, near, far);
-		box10Scene.setPerspective(fovyDegrees, aspect, near, far);
+			scene.setLookAt(eye, at, up);
+			scene.setOrtho(left, right, bottom, top, near, far);
+			scene.setPerspective(fovyDegrees, aspect, near, far);
+			return scene;
+		};
 
 		// ------------CylinderScene------------------------
-		cylinderScene = new Scene("cylinderScene; with customtextures");
-		for (int q = 0; q < cylinderLocation.length; q++)
-			cylinderScene.addShape(makeCylinder(cylinderLocation[q], cylinderSize[q], textures[3], texWts[q]));
-		cylinderScene.setLookAt(eye, at, up);
-		cylinderScene.setOrtho(left, right, bottom, top, near, far);
-		// boxScene.setPerspective( fovyDegrees, aspect, near, far );
-		cylinderScene.setPerspective(fovyDegrees, aspect, near, far);
+		Supplier<Scene> cylinderScene = () -> {
+			Scene scene = new Scene("cylinderScene; with customtextures");
+			for (int q = 0; q < cylinderLocation.length; q++)
+				scene.addShape(makeCylinder(cylinderLocation[q], cylinderSize[q], texture(3), texWts[q]));
+			scene.setLookAt(eye, at, up);
+			scene.setOrtho(left, right, bottom, top, near, far);
+			// boxScene.setPerspective( fovyDegrees, aspect, near, far );
+			scene.setPerspective(fovyDegrees, aspect, near, far);
+			return scene;
+		};
 
 		// ------------CylinderScene------------------------
-		cylinderScene1 = new Scene("cylinderScene2; without custom textures");
-		for (int q = 0; q < cylinderLocation.length; q++)
-			cylinderScene1.addShape(makeCylinder(cylinderLocation[q], cylinderSize[q], textures[0], texWts[q]));
-		cylinderScene1.setLookAt(eye, at, up);
-		cylinderScene1.setOrtho(left, right, bottom, top, near, far);
-		cylinderScene1.setPerspective(fovyDegrees, aspect, near, far);
+		Supplier<Scene> cylinderScene1 = () -> {
+			Scene scene = new Scene("cylinderScene2; without custom textures");
+			for (int q = 0; q < cylinderLocation.length; q++)
+				scene.addShape(makeCylinder(cylinderLocation[q], cylinderSize[q], texture(0), texWts[q]));
+			scene.setLookAt(eye, at, up);
+			scene.setOrtho(left, right, bottom, top, near, far);
+			scene.setPerspective(fovyDegrees, aspect, near, far);
+			return scene;
+		};
 
+		// the order of the period key
+		Collections.addAll(sceneMakers, quadScene, boxScene, cylinderScene, quad2Scene, quad3Scene, quad4Scene,
+				quad5Scene, quad6Scene, quad7Scene, quad8Scene, quad9Scene, box10Scene, cylinderScene1);
 	}
 
 	// ------------------ buildTextures --------------------------
 	/**
-	 * For each file in the imageFiles array, build the associated Texture
-	 * object.
+	 * Make room for a Texture for each file in the imageFiles array; it is
+	 * loaded by texture( int ) when a scene first uses it.
 	 */
 	private void buildTextures() {
-		textures = new Texture[imageFiles.length];
+		textures = new ArrayList<CompletableFuture<Texture>>();
 		System.out.println(imageFiles.length);
 
 		for (int f = 0; f < imageFiles.length; f++) {
-			textures[f] = createTexture(imageFiles[f]);
+			textures.add(null);
 		}
 
 	}
 
 	// ------------------ buildMyTextures --------------------------
 	/**
-	 * For each file in the imageFiles array, build the associated Texture
-	 * object.
+	 * Make room for a view of the checkerboard with each of mySamplers; it
+	 * is loaded by myTexture( int ) when a scene first uses it.
 	 */
 	private void buildMyTextures() {
-		mytextures = new Texture[13];
+		mytextures = new ArrayList<CompletableFuture<Texture>>();
+
+		for (int f = 0; f < mySamplers.length; f++) {
+			mytextures.add(null);
+		}
+	}
+
+	// ------------------ texture( int ) --------------------------
+	/**
+	 * Return the Texture of imageFiles[ f ], starting to load it the first
+	 * time. A file another scene already loaded comes from the TextureCache.
+	 */
+	private CompletableFuture<Texture> texture(int f) {
+		if (textures.get(f) == null)
+			textures.set(f, createTexture(imageFiles[f]));
+		return textures.get(f);
+	}
+
+	// ------------------ myTexture( int ) --------------------------
+	/**
+	 * Return the view of the checkerboard with mySamplers[ s ], starting to
+	 * load it the first time; all of them share one texture.
+	 */
+	private CompletableFuture<Texture> myTexture(int s) {
+		if (mytextures.get(s) == null)
+			mytextures.set(s, createMyTexture(imageFiles[1], mySamplers[s]));
+		return mytextures.get(s);
+	}
 
-		for (int f = 0; f < 13; f++) {
-			mytextures[f] = createMyTexture(imageFiles[1], f);
+	// ------------------ scene( int ) --------------------------
+	/**
+	 * Return the scene at an index of the period key order, building it the
+	 * first time. Its shapes share meshes through the GeometryRegistry and
+	 * its textures load in the background.
+	 */
+	private Scene scene(int i) {
+		if (scenes[i] == null) {
+			UtilsLWJGL.glError("--->SceneManager.scene");
+			scenes[i] = sceneMakers.get(i).get();
+			UtilsLWJGL.glError("<---SceneManager.scene");
 		}
+		return scenes[i];
+	}
+
+	// ------------------ showScene( int ) --------------------------
+	/**
+	 * Make the scene at an index current; its neighbours are prefetched once
+	 * its textures are in.
+	 */
+	private void showScene(long win, int i) {
+		sceneIndex = i;
+		curScene = scene(i);
+		prefetch = true;
+		glfwSetWindowTitle(win, curScene.getTitle());
+		curScene.setInstancing(useInstancing);
+		curScene.updateAllTransforms();
 	}
 
 	// ------------------ makeBox( String, Texture, float -----------------
 	/**
 	 * Create the object that makes up the box scene.
 	 */
-	private Shape3D makeBox(Vector3f loc, Vector3f scale, Texture txture, float texWt) {
+	private Shape3D makeBox(Vector3f loc, Vector3f scale, CompletableFuture<Texture> txture, float texWt) {
 
 		Box box = new Box();
 		box.setLocation(loc.x, loc.y, loc.z);
@@ -373,7 +495,7 @@ public class SceneManager {
 	/**
 	 * Create a quad object for a quad scene.
 	 */
-	private Shape3D makeQuad(Vector3f loc, Vector3f scale, Texture txture, float texWt) {
+	private Shape3D makeQuad(Vector3f loc, Vector3f scale, CompletableFuture<Texture> txture, float texWt) {
 		Quad quad = new Quad();
 		quad.setLocation(loc.x, loc.y, loc.z);
 		quad.setSize(scale.x, scale.y, scale.z);
@@ -388,7 +510,7 @@ public class SceneManager {
 	/**
 	 * Create a quad object for a quad scene.
 	 */
-	private Shape3D makeQuad2(Vector3f loc, Vector3f scale, Texture txture, float texWt) {
+	private Shape3D makeQuad2(Vector3f loc, Vector3f scale, CompletableFuture<Texture> txture, float texWt) {
 		Quad quad = new Quad2();
 		quad.setLocation(loc.x, loc.y, loc.z);
 		quad.setSize(scale.x, scale.y, scale.z);
@@ -405,7 +527,7 @@ public class SceneManager {
 	 * Create a cylinder object for a cylinder scene.
 	 */
 
-	private Shape3D makeCylinder(Vector3f loc, Vector3f scale, Texture txture, float texWt) {
+	private Shape3D makeCylinder(Vector3f loc, Vector3f scale, CompletableFuture<Texture> txture, float texWt) {
 		Cylinder cylinder = new Cylinder(9);
 		cylinder.setLocation(loc.x, loc.y, loc.z);
 		cylinder.setSize(scale.x, scale.y, scale.z);
@@ -484,6 +606,14 @@ public class SceneManager {
 			}
 			break;
 
+		// ------------ Instanced drawing toggle -------------------------------
+		case GLFW_KEY_N:
+			if (action == GLFW_RELEASE) {
+				useInstancing = !useInstancing;
+				curScene.setInstancing(useInstancing);
+			}
+			break;
+
 		// -------------- Polygon Fill mode -----------------------------------
 		case GLFW_KEY_F:
 			if (action == GLFW_RELEASE) // use release so user can change mind
@@ -497,12 +627,12 @@ public class SceneManager {
 				c += 0.1f;
 				if (((GLFW_MOD_SHIFT & mods) == 0) && c <= 1.0f) // lower case c
 				{
-					Shape3D.textureWeight = 1 - c;
+					curScene.setTextureWeight(1 - c);
 
 				} else {
 					C = C - 0.1f;
 					if (C >= 0.0f) {
-						Shape3D.textureWeight = 1 - C;
+						curScene.setTextureWeight(1 - C);
 					}
 				}
 			}
@@ -562,68 +692,15 @@ public class SceneManager {
 		// --------------- next scene ----------------------------------
 		case GLFW.GLFW_KEY_PERIOD: // next scene
 			if (action == GLFW.GLFW_RELEASE) {
-				// Just switch back and forth between the available scenes
-				if (curScene == quadScene)
-					curScene = boxScene;
-				else if (curScene == boxScene)
-					curScene = cylinderScene;
-				else if (curScene == cylinderScene)
-					curScene = quad2Scene;
-				else if (curScene == quad2Scene)
-					curScene = quad3Scene;
-				else if (curScene == quad3Scene)
-					curScene = quad4Scene;
-				else if (curScene == quad4Scene)
-					curScene = quad5Scene;
-				else if (curScene == quad5Scene)
-					curScene = quad6Scene;
-				else if (curScene == quad6Scene)
-					curScene = quad7Scene;
-				else if (curScene == quad7Scene)
-					curScene = quad8Scene;
-				else if (curScene == quad8Scene)
-					curScene = quad9Scene;
-				else if (curScene == quad9Scene)
-					curScene = box10Scene;
-				else if (curScene == box10Scene)
-					curScene = cylinderScene1;
-
-
-				glfwSetWindowTitle(win, curScene.getTitle());
-				curScene.updateAllTransforms();
+				// Just step through the available scenes, stopping at the last
+				showScene(win, Math.min(sceneIndex + 1, scenes.length - 1));
 			}
 			break;
 		// --------------- previous scene -------------------------------
 		case GLFW.GLFW_KEY_COMMA: // prev scene
 			if (action == GLFW.GLFW_RELEASE) {
-				// Just switch back and forth between quadScene and boxScene
-				if (curScene == boxScene)
-					curScene = quadScene;
-				else if (curScene == cylinderScene)
-					curScene = boxScene;
-				else if (curScene == quadScene)
-					curScene = cylinderScene1;
-				else if (curScene == cylinderScene1)
-					curScene = box10Scene;
-				else if (curScene == box10Scene)
-					curScene = quad9Scene;
-				else if (curScene == quad9Scene)
-					curScene = quad8Scene;
-				else if (curScene == quad8Scene)
-					curScene = quad7Scene;
-				else if (curScene == quad7Scene)
-					curScene = quad6Scene;
-				else if (curScene == quad6Scene)
-					curScene = quad5Scene;
-				else if (curScene == quad5Scene)
-					curScene = quad4Scene;
-				else if (curScene == quad4Scene)
-					curScene = quad3Scene;
-				else if (curScene == quad3Scene)
-					curScene = quad2Scene;
-
-				glfwSetWindowTitle(win, curScene.getTitle());
-				curScene.updateAllTransforms();
+				// Just step back through the scenes; the first goes to the last
+				showScene(win, sceneIndex > 0 ? sceneIndex - 1 : scenes.length - 1);
 			}
 			break;
 
@@ -643,47 +720,20 @@ public class SceneManager {
 
 	// --------------------- createTexture( name, stbflag ) ------------------
 	/**
-	 * Create a texture with the behavior we want.
+	 * Start loading a texture with the behavior we want. The TextureLoader
+	 * reports files that can't be loaded; their shapes keep their color.
 	 */
-	Texture createTexture(String fileName) {
-		UtilsLWJGL.glError("--->createTexture"); // clear old glerrors
-
-		Texture texture = null;
-		try {
-
-			texture = Texture.loadTexture(fileName);
-			UtilsLWJGL.glError("<---loadTexture");
-		} catch (Exception exc) {
-			System.err.println("Unable to create Texture from " + fileName);
-			exc.printStackTrace();
-			System.exit(1);
-		}
-		UtilsLWJGL.glError("<---createTexture"); // any glerrors in texture?
-
-		return texture;
+	CompletableFuture<Texture> createTexture(String fileName) {
+		return TextureLoader.load(fileName);
 	}
 
-	// --------------------- createMyTexture( name, stbflag, flag )-------------
+	// --------------------- createMyTexture( name, sampler )-------------
 
 	/**
-	 * Create a custom texture with the behavior we want.
+	 * Start loading a custom texture with the behavior we want.
 	 */
-	Texture createMyTexture(String fileName, int f) {
-		UtilsLWJGL.glError("--->createTexture"); // clear old glerrors
-
-		Texture texture = null;
-		try {
-
-			texture = Texture.loadTexture(fileName, f);
-			UtilsLWJGL.glError("<---loadTexture");
-		} catch (Exception exc) {
-			System.err.println("Unable to create Texture from " + fileName);
-			exc.printStackTrace();
-			System.exit(1);
-		}
-		UtilsLWJGL.glError("<---createTexture"); // any glerrors in texture?
-
-		return texture;
+	CompletableFuture<Texture> createMyTexture(String fileName, SamplerState sampler) {
+		return TextureLoader.load(fileName, sampler);
 	}
 
 	// --------------------- rotationKeyHandler ---------------------------
@@ -755,9 +805,20 @@ public class SceneManager {
 	 * Initiate scene redraw invocations.
 	 */
 	void redraw() {
+		GLResources.drain(); // deletions queued since the last frame
+		TextureResidency.nextFrame(); // evicts textures if over budget
 		glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 		if (curScene != null)
 			curScene.redraw();
 		glFlush();
+
+		// once the scene shown has its textures, build the scenes next to it
+		// so their textures load in the background before they are needed
+		if (prefetch && curScene != null && TextureLoader.isIdle()) {
+			scene(sceneIndex > 0 ? sceneIndex - 1 : scenes.length - 1);
+			if (sceneIndex < scenes.length - 1)
+				scene(sceneIndex + 1);
+			prefetch = false;
+		}
 	}
 }
@@ -16,27 +16,34 @@ import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
 
+import java.lang.Math;
 import java.nio.*;
+import java.util.concurrent.CompletableFuture;
 
 import org.lwjgl.system.MemoryUtil;
 import org.joml.*;
 
-abstract public class Shape3D {
+abstract public class Shape3D implements AutoCloseable {
 	// ------------------ class variables ------------------------------
 	static final int MAX_COLORS = 20; // arbitrary number change it if need more
 
 	// ---------------------- instance variables ------------------------------
 	// ------ vertex data and variables
-	private boolean updateBuffer = true;
-	private FloatBuffer coordBuffer = null;
-	private int nCoords = 0;
+	// The arrays are only kept to look up the shared Mesh in the
+	// GeometryRegistry; the GPU copy belongs to the Mesh. Shapes either
+	// give interleaved vertexData with its layout or separate arrays that
+	// are packed into an interleaved array when the mesh is acquired.
+	private boolean meshChanged = true; // vertex data set since acquire
+	private Mesh mesh = null;
+	private float[] vertexData = null;
+	private VertexLayout vertexLayout = null;
+	private boolean indexed = false; // weld vertices, draw with glDrawElements
+	private float[] coords = null;
 	protected int coordSize = 0; // 3 for xyz, 4 for xyzw
 
-	private FloatBuffer normalBuffer = null;
-	private int nNormals = 0;
+	private float[] normals = null;
 	protected int normalSize = 0; // 3 for xyz, 4 for xyzw
-	private FloatBuffer texCoordBuffer = null;
-	private int nTexCoords = 0;
+	private float[] texCoords = null;
 	protected int texCoordSize = 0; // 3 for xyz, 4 for xyzw
 
 	// ------------------ GLSL-related instance variables
@@ -50,18 +57,8 @@ abstract public class Shape3D {
 
 	private int shaderPgm = -1;
 
-	private int vaoId = -1;
-
-	private int coordVBO = -1; // buffer for coords
-	private int vPosition = -1; // vertex attrib id for position
-	private int normalVBO = -1; // buffer for normals
-	private int vNormal = -1; // vertex attrib id for normal
-	protected int texCoordVBO = -1; // buffer for texture
-	protected int vTexCoord = -1;// vertex attrib id for tex coords
-
 	private int nTriangles = -1;
 	private int nVertices = -1; // #vertices in buffer (3*nTriangles)
-	private boolean updateBuffers = true;
 
 	// ------------------ object instance variables ----------------------------
 	// ----- transformation variables
@@ -70,10 +67,29 @@ abstract public class Shape3D {
 	protected Matrix4f rotationMatrix = new Matrix4f();
 	protected Matrix4f modelMatrix = new Matrix4f();
 	protected FloatBuffer modelBuf = MemoryUtil.memAllocFloat(16);
+	private boolean modelChanged = true; // location/size/rotation set since
+											// modelMatrix was computed
+
+	// ----- bounds: local ones from the coordinates, world (Scene) ones from
+	// the local ones and the model matrix
+	private boolean hasBounds = false; // false until coordinates are set
+	private Vector3f localMin = new Vector3f();
+	private Vector3f localMax = new Vector3f();
+	private Vector3f localCenter = new Vector3f();
+	private float localRadius = 0;
+	private boolean boundsChanged = true; // world bounds need recomputing
+	private Vector3f worldMin = new Vector3f();
+	private Vector3f worldMax = new Vector3f();
+	private Vector3f worldCenter = new Vector3f();
+	private float worldRadius = 0;
 
 	protected Color[] colors = new Color[MAX_COLORS];
 	protected FloatBuffer[] colorBufs = new FloatBuffer[MAX_COLORS];
 
+	// what close() or the leak Cleaner must free
+	private Natives natives = new Natives(modelBuf, colorBufs);
+	private GLResources.Handle handle;
+
 	// ---------- Material properties (could have a Material class)
 	protected float ka = 0.3f; // 30% of color is ambient
 	protected float kd = 0.7f; // 70% is diffuse.
@@ -82,11 +98,15 @@ abstract public class Shape3D {
 	// This code supports only 1 texture per object
 	protected Texture texture = null;
 	protected FloatBuffer textureBuf = null;
-	protected static float textureWeight = 1; // default is all texture
+	protected float textureWeight = 1; // default is all texture
 	protected boolean hasTexture = false; // passes info to shader
+	private CompletableFuture<Texture> pendingTexture = null; // still loading
+	private TextureAtlas.Region region = null; // texCoords are mapped into it
+	protected int textureLayer = 0; // layer shown if texture is a TextureArray
 
 	protected int unifTexWt = -1; // textureWeight
 	protected int unifHasTexture = -1; // hasTexture
+	protected int unifLayer = -1; // textureLayer
 
 	// ------------------ Constructors ----------------------------------
 	/**
@@ -106,42 +126,48 @@ abstract public class Shape3D {
 		// ------------- Setup GLSL interface variables -------------
 		createUniforms(); // uniform variables needed by Shapes
 
-		this.vaoId = glGenVertexArrays(); // create VAO
-
-		// Create VBO and VAO location objects for vertex coord position
-		this.coordVBO = glGenBuffers(); // for coord position
-		vPosition = glGetAttribLocation(shaderPgm, "vPosition");
-
-		// Create a VBO and VAO location for the normal data
-		this.normalVBO = glGenBuffers();
-		vNormal = glGetAttribLocation(shaderPgm, "vNormal");
+		// The VAO and VBOs come from the GeometryRegistry the first time
+		// the shape is drawn, once the child has set all its vertex data.
+		handle = GLResources.register(this, getClass().getSimpleName(), natives);
+	}
 
-		// Create VBO and VAO location for texture coord positions
-		this.texCoordVBO = glGenBuffers();
-		vTexCoord = glGetAttribLocation(shaderPgm, "vTexCoord");
+	// ------------------- close() ------------------------------------
+	/**
+	 * Give up the shape's shared Mesh and free the buffers allocated with
+	 * MemoryUtil, which Java does not know about. The work is queued and done
+	 * by GLResources.drain() on the GL thread, so close() may be called from
+	 * any thread. A closed shape draws nothing. If a shape is dropped without
+	 * close(), the GLResources Cleaner frees it and reports the leak.
+	 */
+	@Override
+	public void close() {
+		handle.close();
 	}
 
-	// ------------------- finalize() ------------------------------------
+	// ========================= Natives ==================================
 	/**
-	 * This method gets called whenever an its object is "garbage-collected";
-	 * It's similar to C++ destructor, except with Java we don't have to
-	 * explicitly destruct stuff that Java knows about.
-	 * 
-	 * However, Java does NOT know about the memory we allocated via the
-	 * MemoryUtil class, so we should free up that memory.
-	 * 
-	 * In reality, it doesn't matter for this demo program because we never stop
-	 * using any Shape3D objects we create until the program terminates -- then
-	 * it doesn't matter. Even so, it's important to understand the implications
-	 * of using MemoryUtil, so we will clean up.
+	 * The resources a shape must free. Kept apart from the Shape3D so the
+	 * Cleaner does not keep the shape reachable.
 	 */
-	public void finalize() {
-		MemoryUtil.memFree(coordBuffer);
-		MemoryUtil.memFree(normalBuffer);
-		MemoryUtil.memFree(modelBuf);
-		for (FloatBuffer buf : colorBufs) {
-			if (buf != null)
-				MemoryUtil.memFree(buf);
+	private static class Natives implements Runnable {
+		private final FloatBuffer modelBuf;
+		private final FloatBuffer[] colorBufs; // the shape's own array
+		private Mesh mesh = null;
+
+		Natives(FloatBuffer modelBuf, FloatBuffer[] colorBufs) {
+			this.modelBuf = modelBuf;
+			this.colorBufs = colorBufs;
+		}
+
+		@Override
+		public void run() {
+			GeometryRegistry.release(mesh);
+			mesh = null;
+			MemoryUtil.memFree(modelBuf);
+			for (FloatBuffer buf : colorBufs) {
+				if (buf != null)
+					MemoryUtil.memFree(buf);
+			}
 		}
 	}
 
@@ -169,6 +195,7 @@ abstract public class Shape3D {
 		glUniform1f(unifTexWt, textureWeight);
 
 		unifHasTexture = glGetUniformLocation(shaderPgm, "uHasTexture");
+		unifLayer = glGetUniformLocation(shaderPgm, "uLayer");
 
 		float[] rgba = colors[0].get4f(); // get rgba as an array
 		glUniform4fv(unifColor, rgba);
@@ -184,32 +211,67 @@ abstract public class Shape3D {
 	 * children. The child redraw() must call this first.
 	 */
 	protected void redraw() {
-		// Simple modeling: only size and location.
-		// we can write down the desired matrix.
-		// This specification and the FloatBuffer we create does NOT have
-		// to be done on every re-draw; it only needs to be done when
-		// the location or size changes: setLocation or setSize.
-		// The model matrix and modelBuf should be instance variables.
-		//
-		modelMatrix.identity().translate(xLoc, yLoc, zLoc).scale(xSize, ySize, zSize);
+		setUniforms();
+		drawMesh();
+	}
 
-		glUniform1i(unifHasTexture, hasTexture ? 1 : 0);
+	// ------------------------- setUniforms ----------------------------
+	/**
+	 * Send the object's transformation, color and texture settings to the
+	 * shader as individual uniform variables. This is the path used when the
+	 * Scene is not using UniformBlocks (e.g. on GL 3.0 contexts).
+	 */
+	protected void setUniforms() {
+		// getModelMatrix only refills modelBuf after setLocation, setSize or
+		// setRotate; the uniform itself is shared by all shapes, so it is
+		// sent every draw.
+		getModelMatrix();
 
-		modelMatrix.get(modelBuf);
+		glUniform1i(unifHasTexture, hasTexture ? 1 : 0);
 
 		glUniformMatrix4fv(unifModel, false, modelBuf);
 
-		glUniform4fv(unifColor, colors[0].get4f()); // update color uniform
+		glUniform4fv(unifColor, colorBufs[0]); // update color uniform
 		glUniform1f(unifTexWt, textureWeight);
+		glUniform1f(unifLayer, textureLayer);
+	}
 
-		// identify which VAO specification needs to be drawn.
-		glBindVertexArray(vaoId);
-		glEnableVertexAttribArray(vPosition);
+	// ------------------------- writeUniformBlock ----------------------------
+	/**
+	 * Write the object's uniform data into a std140 ObjectBlock at the
+	 * specified byte offset: mat4 model, vec4 color, vec4 params where
+	 * params.x is the texture weight, params.y the hasTexture flag and
+	 * params.z the TextureArray layer.
+	 *
+	 * @param buf
+	 *            ByteBuffer mapped uniform buffer
+	 * @param offset
+	 *            int byte offset of this object's block
+	 */
+	protected void writeUniformBlock(ByteBuffer buf, int offset) {
+		getModelMatrix().get(offset, buf);
+		Color c = colors[0];
+		buf.putFloat(offset + 64, c.r()).putFloat(offset + 68, c.g());
+		buf.putFloat(offset + 72, c.b()).putFloat(offset + 76, c.a());
+		buf.putFloat(offset + 80, textureWeight).putFloat(offset + 84, hasTexture ? 1 : 0);
+		buf.putFloat(offset + 88, textureLayer).putFloat(offset + 92, 0);
+	}
 
-		if (updateBuffer)
-			loadBuffers();
+	// ------------------------- drawMesh ----------------------------
+	/**
+	 * Draw the shape's mesh with its texture, assuming the uniform data has
+	 * already been set either by setUniforms or through a UniformBlocks
+	 * object block.
+	 */
+	protected void drawMesh() {
+		// identify which VAO specification needs to be drawn.
+		// RenderState skips the bind if the previous draw used the same
+		// mesh, and the texture bind if the texture is still on a unit, so
+		// nothing is unbound afterwards.
+		if (!bindMesh())
+			return;
 		if (hasTexture) {
-			texture.bind(); // if there is a texture bind it.
+			RenderState.bindTexture(texture); // if there is a texture bind it.
 			// glTexParameteri( GL_TEXTURE_2D, GL_TEXTURE_WRAP_S,
 			// GL_CLAMP_TO_EDGE );
 			// glTexParameteri( GL_TEXTURE_2D, GL_TEXTURE_WRAP_T,
@@ -220,99 +282,252 @@ abstract public class Shape3D {
 		// last parameter is # vertexes defining the triangles
 		// verts.length is the number of floats in the verts array, which
 		// is 4 * the number of triangles
-		glDrawArrays(GL_TRIANGLES, 0, nVertices);
+		mesh.draw();
+	}
 
-		if (hasTexture)
-			texture.unbind();
+	// ------------------------- bindMesh ----------------------------
+	/**
+	 * Bind this shape's VAO, first getting the shared Mesh for the current
+	 * vertex data from the GeometryRegistry if the data has changed. Used by
+	 * redraw and by InstanceBatch, which draws every shape of a batch through
+	 * the mesh of its first shape.
+	 * 
+	 * @return boolean false if the shape has no vertex data to draw
+	 */
+	protected boolean bindMesh() {
+		Mesh m = getMesh();
+		if (m == null)
+			return false;
+		RenderState.bindMesh(m);
+		return true;
+	}
 
-		// unbind the vao, we are done with it for now.
-		glBindVertexArray(0);
+	// ------------------------- getMesh ----------------------------
+	/**
+	 * Return the shared Mesh holding this shape's vertex data, swapping the
+	 * previous one for a new one if setCoordData, setNormalData or
+	 * setTextureCoordData were called since it was acquired.
+	 * 
+	 * @return Mesh or null if the shape has no coordinates
+	 */
+	protected Mesh getMesh() {
+		if (handle.isClosed())
+			return null;
+		if (meshChanged) {
+			GeometryRegistry.release(mesh);
+			mesh = null;
+			if (vertexData == null && coords != null) {
+				vertexLayout = VertexLayout.forArrays(coordSize, normals, normalSize, texCoords, texCoordSize);
+				vertexData = VertexLayout.pack(coords, coordSize, normals, normalSize, texCoords, texCoordSize);
+			}
+			if (vertexData != null) {
+				float[] data = region == null ? vertexData : region.remap(vertexData, vertexLayout);
+				mesh = GeometryRegistry.acquire(data, vertexLayout, indexed, getClass().getSimpleName());
+			}
+			natives.mesh = mesh;
+			meshChanged = false;
+		}
+		return mesh;
 	}
 
-	// ---------------------- loadBuffers() --------------------------
+	// ------------------------- getModelMatrix ----------------------------
 	/**
-	 * Download the data buffers related to vertex coordinates. This version has
-	 * separate buffers for all attributes.
+	 * Return the object's model transformation: scale, then rotate, then
+	 * translate to the location. The matrix is only recomputed after
+	 * setLocation, setSize or setRotate; callers must not modify it.
+	 * 
+	 * @return Matrix4f cached model matrix
 	 */
-	protected void loadBuffers() {
-		UtilsLWJGL.glError("--->loadBuffers"); // clean out any old errors
+	protected Matrix4f getModelMatrix() {
+		if (modelChanged) {
+			modelMatrix.translation(xLoc, yLoc, zLoc).mul(rotationMatrix).scale(xSize, ySize, zSize);
+			modelMatrix.get(modelBuf);
+			modelChanged = false;
+		}
+		return modelMatrix;
+	}
 
-		// load the non-color buffers
-		loadCoordBuffer();
-		loadNormalsBuffer();
-		loadTexCoordBuffer();
+	// ------------------------- computeBounds ----------------------------
+	/**
+	 * Compute the local axis aligned box of the vertex positions and a
+	 * bounding sphere around its center. 2D positions have z = 0.
+	 * 
+	 * @param data
+	 *            float[] vertex data
+	 * @param offset
+	 *            int float offset of the position in a vertex
+	 * @param stride
+	 *            int floats per vertex
+	 * @param size
+	 *            int floats per position
+	 */
+	private void computeBounds(float[] data, int offset, int stride, int size) {
+		hasBounds = data.length >= offset + size;
+		boundsChanged = true;
+		if (!hasBounds)
+			return;
+		localMin.set(Float.MAX_VALUE);
+		localMax.set(-Float.MAX_VALUE);
+		for (int v = offset; v + size <= data.length; v += stride) {
+			float z = size > 2 ? data[v + 2] : 0;
+			localMin.set(Math.min(localMin.x, data[v]), Math.min(localMin.y, data[v + 1]), Math.min(localMin.z, z));
+			localMax.set(Math.max(localMax.x, data[v]), Math.max(localMax.y, data[v + 1]), Math.max(localMax.z, z));
+		}
+		localMin.add(localMax, localCenter).mul(0.5f);
 
-		UtilsLWJGL.glError("<--loadBuffers");
+		// the farthest vertex from the box center; tighter than the corner
+		float r2 = 0;
+		for (int v = offset; v + size <= data.length; v += stride) {
+			float z = size > 2 ? data[v + 2] : 0;
+			r2 = Math.max(r2, localCenter.distanceSquared(data[v], data[v + 1], z));
+		}
+		localRadius = (float) Math.sqrt(r2);
 	}
 
-	// ---------------------- loadCoordBuffer() --------------------------
+	// ------------------------- world bounds ----------------------------
 	/**
-	 * Build VBO for Coordinate data and download to GPU. Assume the appropriate
-	 * VAO is currently bound!
+	 * Recompute the world bounds if location, size, rotation or coordinates
+	 * changed since the last time.
 	 */
-	protected void loadCoordBuffer() {
-		UtilsLWJGL.glError("--->loadCoordBuffer"); // clean out any old errors
-		glBindBuffer(GL_ARRAY_BUFFER, this.coordVBO);
-		// fill it with the position data from the posBuffer
-		glBufferData(GL_ARRAY_BUFFER, coordBuffer, GL_STATIC_DRAW);
+	private void updateWorldBounds() {
+		if (!boundsChanged)
+			return;
+		Matrix4f m = getModelMatrix();
+		m.transformAab(localMin, localMax, worldMin, worldMax);
+		m.transformPosition(localCenter, worldCenter);
+		// rotation keeps lengths, so only the largest scale matters
+		float scale = Math.max(Math.abs(xSize), Math.max(Math.abs(ySize), Math.abs(zSize)));
+		worldRadius = localRadius * scale;
+		boundsChanged = false;
+	}
 
-		glEnableVertexAttribArray(vPosition);
-		// describe how vPosition data can be found in the current buffer
-		glVertexAttribPointer(vPosition, coordSize, GL_FLOAT, false, 0, 0L);
-		UtilsLWJGL.glError("<---loadCoordBuffer"); // report error since enter
+	/**
+	 * Return the minimum corner of the shape's axis aligned box in Scene
+	 * coordinates; not to be modified.
+	 * 
+	 * @return Vector3fc
+	 */
+	public Vector3fc getWorldMin() {
+		updateWorldBounds();
+		return worldMin;
 	}
 
-	// ---------------------- loadTexCoordBuffer() --------------------------
 	/**
-	 * If textures used for this object, build VBOs for texture coordinate data;
-	 * Assume the appropriate VAO is currently bound.
+	 * Return the maximum corner of the shape's axis aligned box in Scene
+	 * coordinates; not to be modified.
+	 * 
+	 * @return Vector3fc
 	 */
-	protected void loadTexCoordBuffer() {
-		if (!hasTexture)
-			return;
-		UtilsLWJGL.glError("--->loadTexCoordBuffer"); // clean out any old
-														// errors
-		// Bind the buffer
-		glBindBuffer(GL_ARRAY_BUFFER, this.texCoordVBO);
-		// Send the texCoordBuffer data to the GPU
-		glBufferData(GL_ARRAY_BUFFER, texCoordBuffer, GL_STATIC_DRAW);
+	public Vector3fc getWorldMax() {
+		updateWorldBounds();
+		return worldMax;
+	}
 
-		glEnableVertexAttribArray(vTexCoord);
+	/**
+	 * Return the center of the shape's bounding sphere in Scene coordinates;
+	 * not to be modified.
+	 * 
+	 * @return Vector3fc
+	 */
+	public Vector3fc getWorldCenter() {
+		updateWorldBounds();
+		return worldCenter;
+	}
 
-		// describe how vPosition data can be found in the current buffer
-		glVertexAttribPointer(vTexCoord, texCoordSize, GL_FLOAT, false, 0, 0L);
-		UtilsLWJGL.glError("<---loadTexCoordBuffer"); // report error since
-														// entering
+	/**
+	 * Return the radius of the shape's bounding sphere in Scene coordinates.
+	 * 
+	 * @return float
+	 */
+	public float getWorldRadius() {
+		updateWorldBounds();
+		return worldRadius;
 	}
 
-	// ---------------------- loadNormalsBuffer() --------------------------
+	// ------------------------- isVisible ----------------------------
 	/**
-	 * If normals used for this object, build VBOs for normal data; Assume the
-	 * appropriate VAO is currently bound.
+	 * Return false if the shape is certainly outside the frustum: first the
+	 * cheap sphere test, then the box. A shape without coordinates is
+	 * reported visible; it draws nothing anyway.
+	 * 
+	 * @param frustum
+	 *            FrustumIntersection planes of the Scene's pvs matrix
+	 * @return boolean
 	 */
-	protected void loadNormalsBuffer() {
-		if (nNormals == 0)
-			return;
-		UtilsLWJGL.glError("--->loadNormalsBuffer"); // clean out any old errors
+	public boolean isVisible(FrustumIntersection frustum) {
+		if (!hasBounds)
+			return true;
+		updateWorldBounds();
+		if (!frustum.testSphere(worldCenter, worldRadius))
+			return false;
+		return frustum.testAab(worldMin, worldMax);
+	}
 
-		// make it the current buffer
-		glBindBuffer(GL_ARRAY_BUFFER, this.normalVBO);
-		// fill it with the position data from the posBuffer
-		glBufferData(GL_ARRAY_BUFFER, normalBuffer, GL_STATIC_DRAW);
-		UtilsLWJGL.glError("glBufferData");
+	// ------------------------- isTranslucent ----------------------------
+	/**
+	 * Return true if the shape must be blended with what is behind it: its
+	 * color is not opaque or only part of its color comes from its texture.
+	 * 
+	 * @return boolean
+	 */
+	public boolean isTranslucent() {
+		return colors[0].a() < 1 || (hasTexture && textureWeight < 1);
+	}
 
-		glEnableVertexAttribArray(vNormal);
+	// ------------------------- getMeshKey ----------------------------
+	/**
+	 * Return a key identifying this shape's vertex data. Shapes with equal keys
+	 * draw the same mesh and can be rendered together in one instanced call.
+	 * Since identical vertex data shares one Mesh, the Mesh itself is the key.
+	 * 
+	 * @return Object mesh key
+	 */
+	protected Object getMeshKey() {
+		return getMesh();
+	}
 
-		// describe how vNormal data can be found in the current buffer
-		glVertexAttribPointer(vNormal, normalSize, GL_FLOAT, false, 0, 0L);
-		UtilsLWJGL.glError("<---loadNormalsBuffer"); // report error since enter
+	/**
+	 * Return true if a texture has been set for this shape.
+	 * 
+	 * @return boolean
+	 */
+	public boolean hasTexture() {
+		return hasTexture;
 	}
 
 	// ++++++++++++++++++++++ public methods ++++++++++++++++++++++++++++++=
+	// ---------------------- setVertexData ----------------------------------
+	/**
+	 * Specify all vertex attributes at once as an interleaved array. This
+	 * replaces any data given to setCoordData, setNormalData or
+	 * setTextureCoordData.
+	 *
+	 * @param data
+	 *            float[] interleaved vertex data
+	 * @param layout
+	 *            VertexLayout of one vertex in data; it must have a vPosition
+	 *            attribute
+	 */
+	protected void setVertexData(float[] data, VertexLayout layout) {
+		coords = normals = texCoords = null;
+		vertexData = data;
+		vertexLayout = layout;
+		coordSize = layout.getSize("vPosition");
+		normalSize = layout.getSize("vNormal");
+		texCoordSize = layout.getSize("vTexCoord");
+		if (coordSize == 0)
+			throw new RuntimeException("setVertexData: layout has no vPosition: " + layout);
+		nVertices = data.length / layout.getStride();
+		nTriangles = nVertices / 3;
+		computeBounds(data, layout.getOffset("vPosition"), layout.getStride(), coordSize);
+		meshChanged = true;
+	}
+
 	// ---------------------- setCoordData ----------------------------------
 	/**
-	 * Specify the vertex coordinate information for this object. Create and
-	 * save a FloatBuffer with the information. A null first parameter discards
+	 * Specify the vertex coordinate information for this object. The data is
+	 * shared through the GeometryRegistry with every shape whose vertex data
+	 * is identical. A null first parameter discards
 	 * previous vertex coord data
 	 *
 	 * @param coords
@@ -330,26 +545,59 @@ abstract public class Shape3D {
 		// Could make buffer static and only allocate first time.
 		if (coords == null) // Unused feature for (temporarily) emptying a shape
 		{
-			MemoryUtil.memFree(coordBuffer);
-			coordBuffer = null;
+			this.coords = null;
 			coordSize = 0;
-			nCoords = 0;
 			nVertices = 0;
 			nTriangles = 0;
+			hasBounds = false;
 		} else {
-			coordBuffer = MemoryUtil.memRealloc(coordBuffer, coords.length);
+			this.coords = coords;
 			coordSize = floatsPerVertex;
 			nVertices = coords.length / coordSize;
 			nTriangles = nVertices / 3;
-			nCoords = coords.length / floatsPerVertex;
-			coordBuffer.put(coords).flip();
+			computeBounds(coords, 0, coordSize, coordSize);
 		}
+		vertexData = null; // re-pack from the separate arrays
+		meshChanged = true;
+	}
+
+	/**
+	 * Specify the vertex coordinates and choose whether the shape is drawn as
+	 * indexed geometry: identical position/normal/texture coord tuples are
+	 * welded into one vertex and an element buffer is built.
+	 *
+	 * @param coords
+	 *            float[] array of coord positions
+	 * @param floatsPerVertex
+	 *            int # coord components (2 or 3)
+	 * @param indexed
+	 *            boolean true to weld vertices and draw indexed
+	 */
+	protected void setCoordData(float[] coords, int floatsPerVertex, boolean indexed) {
+		setCoordData(coords, floatsPerVertex);
+		setIndexed(indexed);
+	}
+
+	// ---------------------- setIndexed ----------------------------------
+	/**
+	 * Choose between glDrawArrays on the raw triangle list and glDrawElements
+	 * on welded vertices. The reduction is printed when the mesh is built and
+	 * is available from getMesh().getReductionRatio().
+	 *
+	 * @param indexed
+	 *            boolean true to weld vertices and draw indexed
+	 */
+	protected void setIndexed(boolean indexed) {
+		if (this.indexed != indexed)
+			meshChanged = true;
+		this.indexed = indexed;
 	}
 
 	// ---------------------- setNormalData ----------------------------------
 	/**
-	 * Specify the vertex normal coord information for this object. Create and
-	 * save a FloatBuffer with the information. A null first parameter discards
+	 * Specify the vertex normal coord information for this object. The data is
+	 * shared through the GeometryRegistry with every shape whose vertex data
+	 * is identical. A null first parameter discards
 	 * previous normal data
 	 *
 	 * @param normals
@@ -359,22 +607,21 @@ abstract public class Shape3D {
 	protected void setNormalData(float[] normals, int floatsPerVertex) {
 		// Could make buffer static and only allocate first time.
 		if (normals == null) {
-			MemoryUtil.memFree(normalBuffer);
-			normalBuffer = null;
+			this.normals = null;
 			normalSize = 0;
-			nNormals = 0;
 		} else {
-			normalBuffer = MemoryUtil.memRealloc(normalBuffer, normals.length);
+			this.normals = normals;
 			normalSize = floatsPerVertex;
-			nNormals = normals.length / floatsPerVertex;
-			normalBuffer.put(normals).flip();
 		}
+		vertexData = null;
+		meshChanged = true;
 	}
 
 	// ---------------------- setTextureCoordData ---------------------------
 	/**
-	 * Specify the vertex texture coord information for this object. Create and
-	 * save a FloatBuffer with the information. A null first parameter discards
+	 * Specify the vertex texture coord information for this object. The data is
+	 * shared through the GeometryRegistry with every shape whose vertex data
+	 * is identical. A null first parameter discards
 	 * previous texture data
 	 *
 	 * @param texCoords
@@ -392,16 +639,14 @@ abstract public class Shape3D {
 		// Allow user to say: not going to use textures any more for this
 		// object.
 		if (texCoords == null) {
-			MemoryUtil.memFree(texCoordBuffer);
-			texCoordBuffer = null;
+			this.texCoords = null;
 			texCoordSize = 0;
-			nTexCoords = 0;
 		} else {
-			texCoordBuffer = MemoryUtil.memRealloc(texCoordBuffer, texCoords.length);
+			this.texCoords = texCoords;
 			texCoordSize = floatsPerVertex;
-			nTexCoords = texCoords.length / floatsPerVertex;
-			texCoordBuffer.put(texCoords).flip();
 		}
+		vertexData = null;
+		meshChanged = true;
 	}
 
 	// ----------------------- get/setLocation --------------------------------
@@ -419,6 +664,8 @@ abstract public class Shape3D {
 		xLoc = x;
 		yLoc = y;
 		zLoc = z;
+		modelChanged = true;
+		boundsChanged = true;
 	}
 
 	/**
@@ -458,6 +705,18 @@ abstract public class Shape3D {
 		return new Vector3f(xLoc, yLoc, zLoc);
 	}
 
+	/**
+	 * store the location in dest; unlike getLocation() this does not allocate,
+	 * so it can be used on every frame
+	 * 
+	 * @param dest
+	 *            Vector3f to hold the location
+	 * @return dest
+	 */
+	public Vector3f getLocation(Vector3f dest) {
+		return dest.set(xLoc, yLoc, zLoc);
+	}
+
 	// -------------------- set/get Texture methods ---------------------------
 	/**
 	 * Set the texture to the parameter Texture. Can pass null to turn off a
@@ -466,8 +725,76 @@ abstract public class Shape3D {
 	 * @return t Texture
 	 */
 	public void setTexture(Texture t) {
+		pendingTexture = null;
 		texture = t;
+		textureLayer = 0;
 		hasTexture = t != null;
+		if (region != null) {
+			region = null;
+			meshChanged = true; // back to the shape's own texture coordinates
+		}
+	}
+
+	/**
+	 * Set the texture to an image in a TextureAtlas. The shape's texture
+	 * coordinates, which must be within 0..1, are mapped into the region, so
+	 * the shape shares its mesh with the other shapes drawing the same data
+	 * from the same region.
+	 * 
+	 * @param r
+	 *            TextureAtlas.Region from a built atlas
+	 */
+	public void setTexture(TextureAtlas.Region r) {
+		setTexture(r.getTexture());
+		region = r;
+		meshChanged = true;
+	}
+
+	/**
+	 * Set the texture to a layer of a TextureArray. Shapes showing different
+	 * layers of one array are drawn with a single bind, and with instancing
+	 * in one draw call.
+	 *
+	 * @param array
+	 *            TextureArray
+	 * @param layer
+	 *            int layer of the array to show
+	 */
+	public void setTexture(TextureArray array, int layer) {
+		setTexture(array);
+		setTextureLayer(layer);
+	}
+
+	/**
+	 * Select the layer shown when the texture is a TextureArray.
+	 *
+	 * @param layer
+	 *            int from 0 to the array's getLayerCount() - 1
+	 */
+	public void setTextureLayer(int layer) {
+		textureLayer = layer;
+	}
+
+	public int getTextureLayer() {
+		return textureLayer;
+	}
+
+	/**
+	 * Set the texture to one that is still loading, e.g. from TextureLoader.
+	 * Until it is ready the shape is drawn with its color alone; then the
+	 * texture is switched in, unless another texture was set meanwhile. Must
+	 * be called on the GL thread, where the loader completes its futures.
+	 * 
+	 * @param pending
+	 *            CompletableFuture of the Texture
+	 */
+	public void setTexture(final CompletableFuture<Texture> pending) {
+		setTexture((Texture) null);
+		pendingTexture = pending;
+		pending.thenAccept(t -> {
+			if (pendingTexture == pending)
+				setTexture(t);
+		});
 	}
 
 	/**
@@ -606,9 +933,10 @@ abstract public class Shape3D {
 		else
 			colors[i].setColor(r, g, b, a);
 
-		// make buffer!
-		colorBufs[i] = MemoryUtil.memAllocFloat(4);
-		colorBufs[i].put(r).put(g).put(b).put(a).flip();
+		// make buffer the first time, then just overwrite it
+		if (colorBufs[i] == null)
+			colorBufs[i] = MemoryUtil.memAllocFloat(4);
+		colorBufs[i].put(0, r).put(1, g).put(2, b).put(3, a);
 		return true;
 	}
 
@@ -642,13 +970,15 @@ abstract public class Shape3D {
 		xSize = xs;
 		ySize = ys;
 		zSize = zs;
+		modelChanged = true;
+		boundsChanged = true;
 	}
 
 	/**
 	 * set the rotation parameters: angle, and axis specification
 	 * 
 	 * @param a
-	 *            float angle of rotation
+	 *            float angle of rotation in degrees
 	 * @param dx
 	 *            float x axis direction
 	 * @param dy
@@ -657,7 +987,9 @@ abstract public class Shape3D {
 	 *            float z axis direction
 	 */
 	public void setRotate(float a, float dx, float dy, float dz) {
-		Vector3f axis = new Vector3f(dx, dy, dz).normalize();
-		rotationMatrix.identity().rotate(a, axis);
+		float len = (float) java.lang.Math.sqrt(dx * dx + dy * dy + dz * dz);
+		rotationMatrix.rotation((float) java.lang.Math.toRadians(a), dx / len, dy / len, dz / len);
+		modelChanged = true;
+		boundsChanged = true;
 	}
 }
\ No newline at end of file
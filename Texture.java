@@ -37,9 +37,10 @@ import java.io.*;
 import java.nio.*;
 
 import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL14;
-import org.lwjgl.opengl.GL30;
+import org.lwjgl.system.MemoryUtil;
 
 import com.sun.net.httpserver.Filter;
 
@@ -48,6 +49,13 @@ import static org.lwjgl.opengl.GL12.*;
 import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL20.glGetUniformLocation;
 import static org.lwjgl.opengl.GL20.glUniform1i;
+import static org.lwjgl.opengl.GL21.*;
+import static org.lwjgl.opengl.GL30.GL_RG;
+import static org.lwjgl.opengl.GL30.GL_R8;
+import static org.lwjgl.opengl.GL30.GL_RG8;
+import static org.lwjgl.opengl.GL33.GL_TEXTURE_SWIZZLE_RGBA;
+import static org.lwjgl.opengl.GL33.glBindSampler;
+import static org.lwjgl.opengl.GL42.glTexStorage2D;
 import static org.lwjgl.stb.STBImage.*;
 
 /**
@@ -55,15 +63,28 @@ import static org.lwjgl.stb.STBImage.*;
  *
  * @author Heiko Brumme
  */
-public class Texture {
-	private final int id; // Stores the handle of the texture
+public class Texture implements AutoCloseable {
+	private int id; // Stores the handle of the texture; 0 while evicted
+	private final int[] name; // id for the release action, shared with views
+	private final Texture owner; // this, or the texture a view samples
 	private int uvId; // rdb uniform variable id
-	private int textureType; // GL_TEXTURE_2D or GL_TEXTURE_CUBE_MAP
+	private final int textureType; // GL_TEXTURE_2D or GL_TEXTURE_2D_ARRAY
 
 	private final int width; // Width of the texture.
 	private final int height; // Height of the texture.
 
-	int flag = 0; // Flag to keep track of the allocated texture paramters for the scene
+	private final SamplerState sampler; // null: use the texture's own parameters
+	private final GLResources.Handle handle; // queues glDeleteTextures; null for views
+
+	private final int internalFormat; // sized or compressed storage format
+	private int components = 3; // channels of the uploaded pixels
+	private int levels = 1; // mip levels stored
+	private boolean immutable = false; // storage made by glTexStorage2D
+	int lastBound = 0; // TextureResidency frame of the last bind
+
+	private static final boolean SRGB = Boolean.getBoolean("p2.srgb");
+	private static final int[] GREY = { GL_RED, GL_RED, GL_RED, GL_ONE };
+	private static final int[] GREY_ALPHA = { GL_RED, GL_RED, GL_RED, GL_GREEN };
 	
 	/**
 	 * Creates a texture with specified width, height and data.
@@ -79,163 +100,503 @@ public class Texture {
 	 * 
 	 */
 	public Texture(int width, int height, ByteBuffer data, int imageFormat) {
+		this(GL_TEXTURE_2D, width, height, imageFormat);
+	}
+
+	/**
+	 * Creates an empty texture of the specified kind, bound on unit 0 to be
+	 * filled in; drawing binds it elsewhere (RenderState).
+	 *
+	 * @param textureType GL_TEXTURE_2D or GL_TEXTURE_2D_ARRAY
+	 * @param width  Width of the texture
+	 * @param height Height of the texture
+	 * @param imageFormat internal format
+	 */
+	protected Texture(int textureType, int width, int height, int imageFormat) {
 		UtilsLWJGL.glError("--->Texture ctor"); // clean out old glerrors
 		id = glGenTextures();
-		bind();
-
+		name = new int[] { id };
+		owner = this;
+		handle = GLResources.register(this, "Texture " + id, deleteTexture(name));
+		sampler = null;
+		internalFormat = imageFormat;
+		this.textureType = textureType;
 		this.width = width;
 		this.height = height;
 
-		// **************** Warning ***********************************
-		// ----- This code needs to change once you add another kind of texture
-		// such as CUBE_MAP. You need to be able to tell the constructor
-		// which kind of texture to create. Each kind needs its own
-		// active texture unit, but multiple textures can be in the same
-		// unit, as long as they are all the same kind of texture..
-		//
-		textureType = GL_TEXTURE_2D;
-		uvId = glGetUniformLocation(LWJGL.shaderProgram, "texImage");
-
-		// GL13.glActiveTexture( GL13.GL_TEXTURE0 ); // defaults to 0
-		glUniform1i(uvId, 0);
+		// Each kind of texture needs its own texture units, as the shader
+		// can't have samplers of two types on one unit: 2D textures are
+		// sampled through texImage from the unit RenderState allocated them,
+		// TextureArrays through texArray from TextureArray.UNIT.
+		glBindTexture(textureType, id);
+		if (textureType == GL_TEXTURE_2D)
+			uvId = glGetUniformLocation(LWJGL.shaderProgram, "texImage");
+		else {
+			uvId = glGetUniformLocation(LWJGL.shaderProgram, "texArray");
+			glUniform1i(uvId, TextureArray.UNIT);
+		}
 
 		UtilsLWJGL.glError("<--- Texture ctor"); // errors?
 	}
 
 	/**
-	 * Load texture from file.
+	 * Create a view of an existing texture that is drawn with a different
+	 * sampler. The view shares the texture object, so it costs no memory; it
+	 * does not own the object either, closing it does nothing.
+	 *
+	 * @param base texture holding the image
+	 * @param sampler filter and wrap settings of the view
+	 */
+	private Texture(Texture base, SamplerState sampler) {
+		owner = base.owner;
+		id = 0; // the owner's id is used, as it changes on eviction
+		name = owner.name;
+		uvId = base.uvId;
+		textureType = base.textureType;
+		width = base.width;
+		height = base.height;
+		internalFormat = base.internalFormat;
+		components = base.components;
+		levels = base.levels;
+		immutable = base.immutable;
+		this.sampler = sampler;
+		handle = null;
+	}
+
+	/**
+	 * Return a view of this texture that samples it with the specified
+	 * filter and wrap settings.
+	 *
+	 * @param sampler SamplerState of the view
+	 * @return Texture view sharing this texture's image
+	 */
+	public Texture withSampler(SamplerState sampler) {
+		return new Texture(this, sampler);
+	}
+
+	/**
+	 * Load texture from file, or get it from the TextureCache if the image
+	 * was loaded before, and sample it with the specified filter and wrap
+	 * settings. Replaces the old loadTexture( String, int flag ) whose 13
+	 * flag values each decoded and uploaded the image again; the same
+	 * settings are now SamplerStates sharing one texture.
 	 *
 	 * @param imageFile File image file path name
-	 * @param f - flag
+	 * @param sampler filter and wrap settings
+	 *            
+	 * @return Texture view of the cached texture
+	 */
+	public static Texture loadTexture(String imageFile, SamplerState sampler) throws IOException {
+		return TextureCache.get(imageFile, sampler);
+	}
+
+	/**
+	 * Load texture from file. A fresh BakedTexture of the file is uploaded
+	 * as it is; otherwise the file is decoded and baked for next time.
+	 *
+	 * @param imageFile File image file path name
+	 * 
 	 *            
 	 * @return Texture from specified file
 	 */
-	public static Texture loadTexture(String imageFile, int f) throws IOException {
-		ByteBuffer fileBuffer;
+	public static Texture loadTexture(String imageFile) throws IOException {
+		BakedTexture baked = BakedTexture.open(imageFile, BlockCompressor.forContext());
+		if (baked != null)
+			return baked.upload(true);
+
+		// Map or read the raw file data; closing it releases the bytes.
+		try (UtilsLWJGL.Resource file = UtilsLWJGL.openResource(imageFile)) {
+			ByteBuffer fileBuffer = file.getData();
+			return decodeTexture(fileBuffer, imageFile, TextureCache.contentHash(fileBuffer), true);
+		}
+	}
+
+	/**
+	 * Load part of an image file, or the image at a reduced size, without
+	 * decoding all of it at full resolution first. The texture is neither
+	 * cached nor baked, since it isn't the file's whole image.
+	 *
+	 * @param imageFile File image file path name
+	 * @param options what to decode; DecodeOptions.FULL is loadTexture( String )
+	 *            
+	 * @return Texture of the decoded texels
+	 */
+	public static Texture loadTexture(String imageFile, DecodeOptions options) throws IOException {
+		if (options.isFull())
+			return loadTexture(imageFile);
+		DecodeOptions.Image image;
+		try (UtilsLWJGL.Resource file = UtilsLWJGL.openResource(imageFile)) {
+			image = options.decode(file.getData(), imageFile);
+		}
+		System.err.printf("Image: %s %dx%d, %d channels (%s)\n", imageFile, image.width, image.height,
+				image.components, options);
+		return fromImage(image.pixels, image.width, image.height, image.components, imageFile, null, true);
+	}
+
+	/**
+	 * Decode image file data with stb and make a texture of it with as many
+	 * channels as the image has.
+	 *
+	 * @param fileBuffer raw contents of the image file
+	 * @param imageFile name for reporting
+	 * @param hash TextureCache.contentHash of fileBuffer, to bake the image
+	 *            with; null to not bake it
+	 * @param mipmaps false to store level 0 only, for samplers that don't
+	 *            use mipmaps; such textures are not baked
+	 *            
+	 * @return Texture from the specified data
+	 */
+	static Texture decodeTexture(ByteBuffer fileBuffer, String imageFile, String hash, boolean mipmaps)
+			throws IOException {
 		IntBuffer w = BufferUtils.createIntBuffer(1);
 		IntBuffer h = BufferUtils.createIntBuffer(1);
 		IntBuffer comp = BufferUtils.createIntBuffer(1);
 		ByteBuffer image;
-		int width = 256, height = 256;
 
 		stbi_set_flip_vertically_on_load(true);
 
-		// Read the raw file data from the file into a ByteBuffer and
-		// last parameter is initial buffer size; will be increased if needed.
-		fileBuffer = UtilsLWJGL.ioResourceToByteBuffer(imageFile, 8 * 1024);
-
 		// extract image information: w, h and number of components into
 		// variables.
 		if (!stbi_info_from_memory(fileBuffer, w, h, comp))
 			throw new IOException(stbi_failure_reason());
 
-		// Use raw data to create wxh input data with "comp" components into
-		// image data with 3 components
-		image = stbi_load_from_memory(fileBuffer, w, h, comp, 3);
+		// Use raw data to create wxh input data with its own "comp"
+		// components; a grey JPEG stays one byte per texel
+		image = stbi_load_from_memory(fileBuffer, w, h, comp, 0);
 		if (image == null)
 			throw new IOException(stbi_failure_reason());
+		int width = w.get(0), height = h.get(0), components = comp.get(0);
 
-		System.err.printf("Image: %s %dx%d\n", imageFile, w.get(0), h.get(0));
-
-		int tex = glGenTextures();
-		glBindTexture(GL_TEXTURE_2D, tex);
-
-		Texture t = null;
-		// Flag is compared and corresponding texture paramter is defined to the makeTexture
-		if (f == 0) {
-			t = makeTexture(w.get(0), h.get(0), image, GL_TEXTURE_MIN_FILTER, GL_NEAREST, GL_TEXTURE_MAG_FILTER,
-					GL_LINEAR);
-
-		} else if (f == 1) {
-			t = makeTexture(w.get(0), h.get(0), image, GL_TEXTURE_MIN_FILTER, GL_LINEAR, GL_TEXTURE_MAG_FILTER,
-					GL_LINEAR);
-
-		} else if (f == 2) {
-			t = makeTexture(w.get(0), h.get(0), image, GL_TEXTURE_MIN_FILTER, GL_NEAREST_MIPMAP_LINEAR,
-					GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-		} else if (f == 3) {
-			t = makeTexture(w.get(0), h.get(0), image, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR,
-					GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-		} else if (f == 4) {
-			t = makeTexture(w.get(0), h.get(0), image, GL_TEXTURE_MIN_FILTER, GL_NEAREST_MIPMAP_NEAREST,
-					GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-		} else if (f == 5) {
-			t = makeTexture(w.get(0), h.get(0), image, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_NEAREST,
-					GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-		} else if (f == 6) {
-			t = makeTexture(w.get(0), h.get(0), image, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR,
-					GL_TEXTURE_MAG_FILTER, GL_NEAREST);
-		} else if (f == 7) {
-			t = makeTexture(w.get(0), h.get(0), image, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE, GL_TEXTURE_WRAP_T,
-					GL_CLAMP_TO_EDGE);
-		} else if (f == 8) {
-			t = makeTexture(w.get(0), h.get(0), image, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_BORDER, GL_TEXTURE_WRAP_T,
-					GL_CLAMP_TO_BORDER);
-		} else if (f == 9) {
-			t = makeTexture(w.get(0), h.get(0), image, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE, GL_TEXTURE_WRAP_T,
-					GL_CLAMP_TO_BORDER);
-		} else if (f == 10) {
-			t = makeTexture(w.get(0), h.get(0), image, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_BORDER, GL_TEXTURE_WRAP_T,
-					GL_CLAMP_TO_EDGE);
-
-		} else if (f == 11) {
-			t = makeTexture(w.get(0), h.get(0), image, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE, GL_TEXTURE_WRAP_T,
-					GL_REPEAT);
-
-		} else if (f == 12) {
-			t = makeTexture(w.get(0), h.get(0), image, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE, GL_TEXTURE_WRAP_T,
-					GL_CLAMP_TO_BORDER);
+		System.err.printf("Image: %s %dx%d, %d channels\n", imageFile, width, height, components);
+		Texture t = fromImage(image, width, height, components, imageFile, hash, mipmaps);
+		stbi_image_free(image);
+		return t;
+	}
 
+	// build the chain of decoded texels, compress and bake it as asked, and
+	// upload it
+	private static Texture fromImage(ByteBuffer image, int width, int height, int components, String imageFile,
+			String hash, boolean mipmaps) {
+		ByteBuffer[] levels = mipmaps ? MipBuilder.DEFAULT.build(image, width, height, components)
+				: new ByteBuffer[] { image };
+		BlockCompressor compressor = BlockCompressor.forContext();
+		int internalFormat = storageFormat(components, compressor);
+		int format = pixelFormat(components);
+		if (internalFormat != storageFormat(components, null)) {
+			levels = compressor.compress(levels, width, height, imageFile).levels;
+			format = 0;
 		}
+		if (hash != null && mipmaps)
+			BakedTexture.bake(imageFile, hash, width, height, levels, internalFormat, format, compressor);
 
-		stbi_image_free(image);
+		Texture t = allocate(width, height, levels.length, internalFormat, components);
+		for (int level = 0; level < levels.length; level++)
+			t.uploadLevel(level, format, levels[level]);
+		return t;
+	}
 
-		return t;// makeTexture(w.get(0), h.get(0), image, GL_TEXTURE_WRAP_S,
-					// GL_CLAMP_TO_EDGE,GL_TEXTURE_WRAP_T, GL_CLAMP_TO_BORDER);
+	/**
+	 * Make a texture of a mip chain built by MipBuilder, uploading it level
+	 * by level, with the parameters of loadTexture( String ). Used by
+	 * TextureLoader, which decodes on worker threads and only uploads on the
+	 * GL thread, and by TextureAtlas.
+	 *
+	 * @param width  Width of level 0
+	 * @param height Height of level 0
+	 * @param levels levels from 0 down, bottom row first
+	 * @param components channels of the pixels, 1 to 4
+	 *            
+	 * @return Texture from the specified data
+	 */
+	static Texture fromMipChain(int width, int height, ByteBuffer[] levels, int components) {
+		Texture texture = allocate(width, height, levels.length, storageFormat(components, null), components);
+		for (int level = 0; level < levels.length; level++)
+			texture.uploadLevel(level, pixelFormat(components), levels[level]);
+		return texture;
+	}
 
+	/**
+	 * Make a texture like fromMipChain, but of an RGB chain compressed by
+	 * BlockCompressor.
+	 *
+	 * @param width  Width of level 0
+	 * @param height Height of level 0
+	 * @param internalFormat compressed format of the blocks
+	 * @param levels blocks of each level
+	 *            
+	 * @return Texture from the specified data
+	 */
+	static Texture fromCompressedChain(int width, int height, int internalFormat, ByteBuffer[] levels) {
+		Texture texture = allocate(width, height, levels.length, internalFormat, 3);
+		for (int level = 0; level < levels.length; level++)
+			texture.uploadLevel(level, 0, levels[level]);
+		return texture;
 	}
 
 	/**
-	 * Load texture from file.
+	 * Make a texture like fromMipChain, but from a mip chain that a worker
+	 * wrote into a PixelUploadRing slot, one level after the other. The
+	 * caller unmaps the slot with beginUpload, which can fail. The GPU reads
+	 * the slot after the call returns; the slot's fence tells when it is
+	 * done.
 	 *
-	 * @param imageFile File image file path name
-	 * 
+	 * @param width  Width of level 0
+	 * @param height Height of level 0
+	 * @param slot   slot holding the levels, bottom row first, after a
+	 *               successful beginUpload
+	 * @param levels number of levels in the slot
+	 * @param components channels of the pixels, 1 to 4
 	 *            
-	 * @return Call to the makeTexture and
-	 * Texture from specified file
+	 * @return Texture from the specified data
 	 */
-	public static Texture loadTexture(String imageFile) throws IOException {
-		ByteBuffer fileBuffer;
-		IntBuffer w = BufferUtils.createIntBuffer(1);
-		IntBuffer h = BufferUtils.createIntBuffer(1);
-		IntBuffer comp = BufferUtils.createIntBuffer(1);
-		ByteBuffer image;
-		int width = 256, height = 256;
+	static Texture fromMipChain(int width, int height, PixelUploadRing.Slot slot, int levels, int components) {
+		Texture texture = allocate(width, height, levels, storageFormat(components, null), components);
+		long offset = 0;
+		for (int level = 0; level < levels; level++) {
+			texture.uploadLevel(level, pixelFormat(components), offset);
+			offset += (long) MipBuilder.levelSize(width, level) * MipBuilder.levelSize(height, level) * components;
+		}
+		slot.endUpload();
+		return texture;
+	}
 
-		stbi_set_flip_vertically_on_load(true);
+	// ------------------ storage and formats -----------------
+	/**
+	 * Create a texture with the parameters of loadTexture( String ) and
+	 * storage for the specified levels. With GL 4.2 or ARB_texture_storage
+	 * the storage is immutable, allocated once by glTexStorage2D with
+	 * exactly the levels needed; otherwise each uploadLevel specifies its
+	 * level. One and two channel textures are swizzled to grey and grey with
+	 * alpha.
+	 *
+	 * @param width  Width of level 0
+	 * @param height Height of level 0
+	 * @param levels number of mip levels, 1 for no mipmaps
+	 * @param internalFormat sized or compressed format, see storageFormat
+	 * @param components channels of the pixels to be uploaded, 1 to 4
+	 * @return Texture bound, with no contents yet
+	 */
+	static Texture allocate(int width, int height, int levels, int internalFormat, int components) {
+		Texture texture = new Texture(width, height, null, internalFormat);
+		texture.levels = levels;
+		texture.components = components;
+		texture.defineStorage();
+		TextureResidency.track(texture, texture.name);
+		return texture;
+	}
 
-		// Read the raw file data from the file into a ByteBuffer and
-		// last parameter is initial buffer size; will be increased if needed.
-		fileBuffer = UtilsLWJGL.ioResourceToByteBuffer(imageFile, 8 * 1024);
+	// parameters and storage of a texture made by allocate, which is bound
+	private void defineStorage() {
+		setParameter(GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+		setParameter(GL_TEXTURE_WRAP_T, GL_CLAMP_TO_BORDER);
+		setParameter(GL_TEXTURE_MAX_LEVEL, levels - 1);
+		if (components < 3 && GL.getCapabilities().OpenGL33)
+			glTexParameteriv(GL_TEXTURE_2D, GL_TEXTURE_SWIZZLE_RGBA, components == 1 ? GREY : GREY_ALPHA);
+		immutable = hasTexStorage();
+		if (immutable)
+			glTexStorage2D(GL_TEXTURE_2D, levels, internalFormat, width, height);
+	}
 
-		// extract image information: w, h and number of components into
-		// variables.
-		if (!stbi_info_from_memory(fileBuffer, w, h, comp))
-			throw new IOException(stbi_failure_reason());
+	// ------------------ residency -----------------
+	/**
+	 * Return the GPU memory the texture's levels take, as an estimate: RGB
+	 * is counted as 4 bytes per texel, as drivers pad it.
+	 *
+	 * @return long bytes
+	 */
+	long byteSize() {
+		long bytes = 0;
+		for (int level = 0; level < levels; level++) {
+			int w = MipBuilder.levelSize(width, level), h = MipBuilder.levelSize(height, level);
+			if (isCompressed())
+				bytes += BlockCompressor.levelBytes(w, h);
+			else
+				bytes += (long) w * h * (components == 3 ? 4 : components);
+		}
+		return bytes;
+	}
 
-		// Use raw data to create wxh input data with "comp" components into
-		// image data with 3 components
-		image = stbi_load_from_memory(fileBuffer, w, h, comp, 3);
-		if (image == null)
-			throw new IOException(stbi_failure_reason());
+	/**
+	 * Return true if the levels are stored as compressed blocks.
+	 *
+	 * @return boolean
+	 */
+	boolean isCompressed() {
+		return internalFormat != storageFormat(components, null);
+	}
 
-		System.err.printf("Image: %s %dx%d\n", imageFile, w.get(0), h.get(0));
+	/**
+	 * Copy the levels of a texture made by allocate back from the GPU into
+	 * MemoryUtil buffers, which the caller frees.
+	 *
+	 * @return ByteBuffer[] pixels, or blocks if compressed, of each level
+	 */
+	ByteBuffer[] download() {
+		glBindTexture(GL_TEXTURE_2D, id);
+		glPixelStorei(GL_PACK_ALIGNMENT, 1);
+		ByteBuffer[] data = new ByteBuffer[levels];
+		for (int level = 0; level < levels; level++) {
+			int w = MipBuilder.levelSize(width, level), h = MipBuilder.levelSize(height, level);
+			if (isCompressed()) {
+				data[level] = MemoryUtil.memAlloc(BlockCompressor.levelBytes(w, h));
+				glGetCompressedTexImage(GL_TEXTURE_2D, level, data[level]);
+			} else {
+				data[level] = MemoryUtil.memAlloc(w * h * components);
+				glGetTexImage(GL_TEXTURE_2D, level, pixelFormat(components), GL_UNSIGNED_BYTE, data[level]);
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Delete the GL texture but keep this object, which reads as id 0 until
+	 * restore() gives it a new one.
+	 */
+	void evict() {
+		glDeleteTextures(id);
+		RenderState.textureDeleted(id);
+		id = name[0] = 0;
+	}
 
-		int tex = glGenTextures();
-		glBindTexture(GL_TEXTURE_2D, tex);
+	/**
+	 * Make a new GL texture for an evicted one, with the same storage, and
+	 * upload its levels; the texture is left bound.
+	 *
+	 * @param data
+	 *            ByteBuffer[] at least as many levels as the texture has, as
+	 *            download() returns them
+	 */
+	void restore(ByteBuffer[] data) {
+		id = name[0] = glGenTextures();
+		glBindTexture(GL_TEXTURE_2D, id);
+		defineStorage();
+		int format = isCompressed() ? 0 : pixelFormat(components);
+		for (int level = 0; level < levels; level++)
+			uploadLevel(level, format, data[level]);
+	}
 
-		return makeTexture(w.get(0), h.get(0), image, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE, GL_TEXTURE_WRAP_T,
-				GL_CLAMP_TO_BORDER);
+	/**
+	 * Specify one level of a texture made by allocate, which must be bound.
+	 * The rows are tightly packed; GL_UNPACK_ALIGNMENT is set to match.
+	 *
+	 * @param level  mip level
+	 * @param format GL_RED, GL_RG, GL_RGB or GL_RGBA pixels, or 0 for blocks
+	 *               of the compressed internal format
+	 * @param data   pixels or blocks of the level
+	 */
+	void uploadLevel(int level, int format, ByteBuffer data) {
+		int w = MipBuilder.levelSize(width, level), h = MipBuilder.levelSize(height, level);
+		if (format == 0) {
+			if (immutable)
+				glCompressedTexSubImage2D(GL_TEXTURE_2D, level, 0, 0, w, h, internalFormat, data);
+			else
+				glCompressedTexImage2D(GL_TEXTURE_2D, level, internalFormat, w, h, 0, data);
+			return;
+		}
+		unpackAlignment(w * components);
+		if (immutable)
+			glTexSubImage2D(GL_TEXTURE_2D, level, 0, 0, w, h, format, GL_UNSIGNED_BYTE, data);
+		else
+			glTexImage2D(GL_TEXTURE_2D, level, internalFormat, w, h, 0, format, GL_UNSIGNED_BYTE, data);
+	}
+
+	/**
+	 * Specify one level like uploadLevel( int, int, ByteBuffer ) from the
+	 * bound pixel unpack buffer.
+	 *
+	 * @param level  mip level
+	 * @param format GL_RED, GL_RG, GL_RGB or GL_RGBA
+	 * @param offset byte offset of the level in the buffer
+	 */
+	void uploadLevel(int level, int format, long offset) {
+		int w = MipBuilder.levelSize(width, level), h = MipBuilder.levelSize(height, level);
+		unpackAlignment(w * components);
+		if (immutable)
+			glTexSubImage2D(GL_TEXTURE_2D, level, 0, 0, w, h, format, GL_UNSIGNED_BYTE, offset);
+		else
+			glTexImage2D(GL_TEXTURE_2D, level, internalFormat, w, h, 0, format, GL_UNSIGNED_BYTE, offset);
+	}
+
+	// the largest alignment rows of this many bytes have, so the driver can
+	// copy them without realigning
+	static void unpackAlignment(int rowBytes) {
+		int alignment = (rowBytes & 7) == 0 ? 8 : (rowBytes & 3) == 0 ? 4 : (rowBytes & 1) == 0 ? 2 : 1;
+		glPixelStorei(GL_UNPACK_ALIGNMENT, alignment);
+	}
+
+	/**
+	 * Return true if the context can allocate immutable storage.
+	 *
+	 * @return boolean
+	 */
+	static boolean hasTexStorage() {
+		return GL.getCapabilities().glTexStorage2D != 0;
+	}
+
+	/**
+	 * Return the GL format of pixels with the number of channels.
+	 *
+	 * @param components 1 to 4
+	 * @return GL_RED, GL_RG, GL_RGB or GL_RGBA
+	 */
+	static int pixelFormat(int components) {
+		switch (components) {
+		case 1:
+			return GL_RED;
+		case 2:
+			return GL_RG;
+		case 3:
+			return GL_RGB;
+		case 4:
+			return GL_RGBA;
+		default:
+			throw new RuntimeException("Texture: " + components + " channels");
+		}
+	}
+
+	/**
+	 * Return the number of channels of a pixelFormat; 3 for 0, the RGB
+	 * images BlockCompressor encodes.
+	 *
+	 * @param format pixel format
+	 * @return int 1 to 4
+	 */
+	static int componentsOf(int format) {
+		switch (format) {
+		case GL_RED:
+			return 1;
+		case GL_RG:
+			return 2;
+		case GL_RGBA:
+			return 4;
+		default:
+			return 3;
+		}
+	}
+
+	/**
+	 * Return the internal format textures of images with the number of
+	 * channels are stored in: compressed if a compressor is given and can
+	 * encode them, else 8 bits per channel; either is sRGB with
+	 * -Dp2.srgb=true.
+	 *
+	 * @param components channels of the image, 1 to 4
+	 * @param compressor BlockCompressor to be used, or null
+	 * @return int internal format
+	 */
+	static int storageFormat(int components, BlockCompressor compressor) {
+		if (compressor != null && components == 3)
+			return compressor.getInternalFormat();
+		switch (components) {
+		case 1:
+			return GL_R8;
+		case 2:
+			return GL_RG8;
+		case 3:
+			return SRGB ? GL_SRGB8 : GL_RGB8;
+		default:
+			return SRGB ? GL_SRGB8_ALPHA8 : GL_RGBA8;
+		}
 	}
 
 	/**
@@ -247,7 +608,8 @@ public class Texture {
 	 *            Value to set
 	 */
 	public void setParameter(int name, int value) {
-		glTexParameteri(GL_TEXTURE_2D, name, value);
+		glBindTexture(textureType, owner.id); // on unit 0, where textures are edited
+		glTexParameteri(textureType, name, value);
 	}
 
 	/**
@@ -266,30 +628,8 @@ public class Texture {
 	 *            Pixel data of the image
 	 */
 	public void uploadData(int internalFormat, int width, int height, int format, ByteBuffer data) {
-		glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, width, height, 0, GL_RGB, GL_UNSIGNED_BYTE, data);
-	}
-
-	 /**
-     * Creates a texture with specified width, height and data.
-     *
-     * @param width  Width of the texture
-     * @param height Height of the texture
-     * @param imageFile   Picture Data in RGBA format
-     *
-     * @return Texture from the specified data
-     */
-	public static Texture makeTexture(int width, int height, ByteBuffer data, int pname1, int param1, int pname2,
-			int param2) {
-		Texture texture = new Texture(width, height, data, GL_RGBA);
-		texture.bind();
-		texture.setParameter(pname1, param1);
-		texture.setParameter(pname2, param2);
-
-		texture.uploadData(GL_RGBA8, width, height, GL_RGBA, data);
-		GL30.glGenerateMipmap(GL_TEXTURE_2D);
-
-		return texture;
-
+		unpackAlignment(width * componentsOf(format));
+		glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, GL_UNSIGNED_BYTE, data);
 	}
 
 	// ------------------ checkBuffer -----------------
@@ -336,24 +676,100 @@ public class Texture {
 	}
 
 	/**
-	 * Binds the texture.
+	 * Binds the texture for drawing: RenderState finds it on a texture unit
+	 * or binds it to one, and points the shader at that unit.
 	 */
 	public void bind() {
-		glBindTexture(GL_TEXTURE_2D, id);
+		RenderState.bindTexture(this);
 	}
 
 	/**
-	 * Unbinds the texture.
+	 * Unbinds the texture from every unit holding it.
 	 */
 	public void unbind() {
-		glBindTexture(GL_TEXTURE_2D, 0);
+		RenderState.unbindTexture(this);
 	}
 
 	/**
-	 * Delete the texture.
+	 * Bind the texture and its sampler to a unit, restoring it first if
+	 * TextureResidency evicted it. Called by RenderState; unit 0 is left
+	 * active.
+	 *
+	 * @param unit texture unit
+	 */
+	void bindUnit(int unit) {
+		TextureResidency.bound(owner); // restores it if it was evicted
+		markUsed();
+		glActiveTexture(GL_TEXTURE0 + unit);
+		glBindTexture(textureType, owner.id);
+		if (!SamplerState.isSupported()) {
+			if (sampler != null) // views of one texture take turns
+				sampler.applyTo(textureType);
+		} else
+			glBindSampler(unit, sampler == null ? 0 : sampler.getSamplerId());
+		glActiveTexture(GL_TEXTURE0);
+	}
+
+	/**
+	 * Take the texture and its sampler off a unit. Called by RenderState.
+	 *
+	 * @param unit texture unit
+	 */
+	void unbindUnit(int unit) {
+		glActiveTexture(GL_TEXTURE0 + unit);
+		glBindTexture(textureType, 0);
+		if (SamplerState.isSupported())
+			glBindSampler(unit, 0);
+		glActiveTexture(GL_TEXTURE0);
+	}
+
+	/**
+	 * Record that the texture is drawn with in this frame, for
+	 * TextureResidency.
+	 */
+	void markUsed() {
+		owner.lastBound = TextureResidency.getFrame();
+	}
+
+	/**
+	 * Delete the texture. Same as close().
 	 */
 	public void delete() {
-		glDeleteTextures(id);
+		close();
+	}
+
+	/**
+	 * Delete the texture. The glDeleteTextures is queued and made by
+	 * GLResources.drain() on the GL thread; later calls do nothing.
+	 */
+	@Override
+	public void close() {
+		if (handle != null) {
+			TextureResidency.forget(this);
+			handle.close();
+		}
+	}
+
+	// the release action must not refer to the Texture itself; it deletes
+	// whatever GL texture the Texture has then, none if it is evicted, and
+	// takes it off the TextureResidency budget even if it leaked
+	private static Runnable deleteTexture(final int[] name) {
+		return () -> {
+			TextureResidency.released(name);
+			if (name[0] != 0) {
+				glDeleteTextures(name[0]);
+				RenderState.textureDeleted(name[0]);
+			}
+		};
+	}
+
+	/**
+	 * Gets the sampler of a view made by withSampler.
+	 *
+	 * @return SamplerState or null if the texture's own parameters are used
+	 */
+	public SamplerState getSampler() {
+		return sampler;
 	}
 
 	/**
@@ -371,7 +787,7 @@ public class Texture {
 	 * @return Texture id
 	 */
 	public int getId() {
-		return this.id;
+		return owner.id;
 	}
 
 	/**
@@ -400,4 +816,22 @@ public class Texture {
 	public int getHeight() {
 		return height;
 	}
+
+	/**
+	 * Gets the internal format the texture is stored in.
+	 *
+	 * @return internal format
+	 */
+	public int getInternalFormat() {
+		return internalFormat;
+	}
+
+	/**
+	 * Gets the number of mip levels stored.
+	 *
+	 * @return levels, 1 if the texture has no mipmaps
+	 */
+	public int getLevelCount() {
+		return levels;
+	}
 }
@@ -0,0 +1,224 @@
+
+/**
+ * TextureArray.java - equally sized images as the layers of one
+ * GL_TEXTURE_2D_ARRAY.
+ *
+ * Shapes give the layer they show with Shape3D.setTexture( TextureArray,
+ * int ); it reaches the shader per draw as uLayer, through the
+ * UniformBlocks ObjectBlock, or per instance in the InstanceBatch buffer.
+ * So shapes showing different images of one array share a single bind, and
+ * with instancing a single draw call.
+ *
+ * The shader samples arrays through texArray on texture unit UNIT, since a
+ * sampler2DArray can't share a unit with texImage; RenderState keeps the
+ * last array drawn there, and drawing with an array sets uTexArray, with a
+ * 2D Texture clears it. Every layer has its MipBuilder
+ * chain and is compressed when -Dp2.compress is on. Images are RGB. The
+ * array is drawn with its own filter (trilinear) and wrap (repeat)
+ * settings, not a SamplerState.
+ *
+ * Must be used on the GL thread.
+ */
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.*;
+import static org.lwjgl.opengl.GL13.*;
+import static org.lwjgl.opengl.GL20.glGetUniformLocation;
+import static org.lwjgl.opengl.GL20.glUniform1i;
+import static org.lwjgl.opengl.GL30.GL_TEXTURE_2D_ARRAY;
+import static org.lwjgl.opengl.GL42.glTexStorage3D;
+import static org.lwjgl.stb.STBImage.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import org.lwjgl.BufferUtils;
+
+public class TextureArray extends Texture {
+	// ------------------ class variables ------------------------------
+	/** Texture unit the shader's texArray samples. */
+	static final int UNIT = 1;
+
+	private static int shaderPgm = -1;
+	private static int unifTexArray = -1;
+	private static boolean selected = false; // uTexArray of shaderPgm
+
+	// ---------------------- instance variables ------------------------------
+	private final int layers;
+	private final int levels;
+	private final BlockCompressor compressor; // or null
+
+	// ------------------ Constructors ----------------------------------
+	/**
+	 * Make an array with storage for the layers and their full mip chains,
+	 * to be filled in by setLayer.
+	 *
+	 * @param width
+	 *            int width of every image
+	 * @param height
+	 *            int height of every image
+	 * @param layers
+	 *            int number of images
+	 */
+	public TextureArray(int width, int height, int layers) {
+		this(width, height, layers, BlockCompressor.forContext());
+	}
+
+	private TextureArray(int width, int height, int layers, BlockCompressor compressor) {
+		super(GL_TEXTURE_2D_ARRAY, width, height, storageFormat(3, compressor));
+		if (layers <= 0) {
+			close();
+			throw new RuntimeException("TextureArray: invalid layer count " + layers);
+		}
+		UtilsLWJGL.glError("--->TextureArray");
+		this.layers = layers;
+		this.levels = MipBuilder.levelCount(width, height);
+		this.compressor = compressor;
+		setParameter(GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+		setParameter(GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+		setParameter(GL_TEXTURE_WRAP_S, GL_REPEAT);
+		setParameter(GL_TEXTURE_WRAP_T, GL_REPEAT);
+		setParameter(GL_TEXTURE_MAX_LEVEL, levels - 1);
+		if (hasTexStorage())
+			glTexStorage3D(GL_TEXTURE_2D_ARRAY, levels, getInternalFormat(), width, height, layers);
+		else
+			for (int level = 0; level < levels; level++) {
+				int w = MipBuilder.levelSize(width, level), h = MipBuilder.levelSize(height, level);
+				if (compressor != null)
+					glCompressedTexImage3D(GL_TEXTURE_2D_ARRAY, level, getInternalFormat(), w, h, layers, 0,
+							BlockCompressor.levelBytes(w, h) * layers, 0L);
+				else
+					glTexImage3D(GL_TEXTURE_2D_ARRAY, level, getInternalFormat(), w, h, layers, 0, GL_RGB,
+							GL_UNSIGNED_BYTE, (ByteBuffer) null);
+			}
+		UtilsLWJGL.glError("<---TextureArray");
+	}
+
+	// ------------------------ load ----------------------------
+	/**
+	 * Decode image files into the layers of a new array, in order.
+	 *
+	 * @param imageFiles
+	 *            String... file paths or class path resources, all of one
+	 *            size
+	 * @return TextureArray
+	 * @throws IOException
+	 *             if a file can't be read or decoded
+	 */
+	public static TextureArray load(String... imageFiles) throws IOException {
+		TextureArray array = null;
+		for (int layer = 0; layer < imageFiles.length; layer++) {
+			ByteBuffer pixels;
+			IntBuffer w = BufferUtils.createIntBuffer(1);
+			IntBuffer h = BufferUtils.createIntBuffer(1);
+			IntBuffer comp = BufferUtils.createIntBuffer(1);
+			try (UtilsLWJGL.Resource file = UtilsLWJGL.openResource(imageFiles[layer])) {
+				stbi_set_flip_vertically_on_load(true);
+				pixels = stbi_load_from_memory(file.getData(), w, h, comp, 3);
+			}
+			if (pixels == null) {
+				if (array != null)
+					array.close();
+				throw new IOException(imageFiles[layer] + ": " + stbi_failure_reason());
+			}
+			try {
+				if (array == null)
+					array = new TextureArray(w.get(0), h.get(0), imageFiles.length);
+				array.setLayer(layer, MipBuilder.DEFAULT.build(pixels, w.get(0), h.get(0), 3), w.get(0),
+						h.get(0), imageFiles[layer]);
+			} catch (RuntimeException e) {
+				if (array != null)
+					array.close();
+				throw e;
+			} finally {
+				stbi_image_free(pixels);
+			}
+		}
+		if (array == null)
+			throw new RuntimeException("TextureArray: no images");
+		System.err.printf("TextureArray: %d layers of %dx%d\n", array.layers, array.getWidth(), array.getHeight());
+		return array;
+	}
+
+	// ------------------------ setLayer ----------------------------
+	/**
+	 * Fill in one layer from the mip chain of an RGB image, compressing it
+	 * first when the array is compressed.
+	 *
+	 * @param layer
+	 *            int from 0 to getLayerCount() - 1
+	 * @param chain
+	 *            ByteBuffer[] levels from MipBuilder, bottom row first
+	 * @param width
+	 *            int width of level 0, which must be the array's
+	 * @param height
+	 *            int height of level 0, which must be the array's
+	 * @param name
+	 *            String for reporting
+	 */
+	public void setLayer(int layer, ByteBuffer[] chain, int width, int height, String name) {
+		if (width != getWidth() || height != getHeight() || layer < 0 || layer >= layers)
+			throw new RuntimeException("TextureArray: " + name + " " + width + "x" + height + " does not fit layer "
+					+ layer + " of " + layers + " " + getWidth() + "x" + getHeight());
+		UtilsLWJGL.glError("--->TextureArray.setLayer");
+		if (compressor != null)
+			chain = compressor.compress(chain, width, height, name).levels;
+		glBindTexture(GL_TEXTURE_2D_ARRAY, getId()); // on unit 0, beside its 2D texture
+		for (int level = 0; level < levels; level++) {
+			int w = MipBuilder.levelSize(width, level), h = MipBuilder.levelSize(height, level);
+			if (compressor != null)
+				glCompressedTexSubImage3D(GL_TEXTURE_2D_ARRAY, level, 0, 0, layer, w, h, 1, getInternalFormat(),
+						chain[level]);
+			else {
+				unpackAlignment(w * 3);
+				glTexSubImage3D(GL_TEXTURE_2D_ARRAY, level, 0, 0, layer, w, h, 1, GL_RGB, GL_UNSIGNED_BYTE,
+						chain[level]);
+			}
+		}
+		UtilsLWJGL.glError("<---TextureArray.setLayer");
+	}
+
+	// ------------------------ withSampler ----------------------------
+	/**
+	 * Not supported: arrays are drawn with their own parameters.
+	 */
+	@Override
+	public Texture withSampler(SamplerState sampler) {
+		throw new RuntimeException("TextureArray: sampler views are not supported");
+	}
+
+	// ------------------------ select ----------------------------
+	/**
+	 * Tell the shader whether to sample texArray or texImage; only sets the
+	 * uniform when that changes.
+	 *
+	 * @param array
+	 *            boolean true while a TextureArray is bound
+	 */
+	static void select(boolean array) {
+		if (shaderPgm != LWJGL.shaderProgram) {
+			shaderPgm = LWJGL.shaderProgram;
+			unifTexArray = glGetUniformLocation(shaderPgm, "uTexArray");
+			selected = !array; // unknown: set it
+		}
+		if (selected != array) {
+			glUniform1i(unifTexArray, array ? 1 : 0);
+			selected = array;
+		}
+	}
+
+	// ------------------------ getters ----------------------------
+	/**
+	 * Return the number of layers.
+	 *
+	 * @return int
+	 */
+	public int getLayerCount() {
+		return layers;
+	}
+
+	@Override
+	public int getLevelCount() {
+		return levels;
+	}
+}
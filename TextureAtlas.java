@@ -0,0 +1,349 @@
+
+/**
+ * TextureAtlas.java - packs many small images into a few large textures.
+ *
+ * Every texture a shape uses means a bind whenever the draw order switches
+ * to it. An atlas puts the images side by side on shared pages, so shapes
+ * whose images are on the same page draw without rebinding: add() each
+ * image, build() the pages, then give the returned Region to
+ * Shape3D.setTexture( Region ), which maps the shape's texture coordinates
+ * into the region.
+ *
+ * Images are placed with a skyline packer, largest first. Each one is
+ * surrounded by a gutter that repeats its edge texels, so neither bilinear
+ * filtering nor the mip levels bleed a neighbour in. Regions start on
+ * multiples of 2^mipLevels texels and the page only keeps that many levels,
+ * so in every level kept a region still covers whole texels and keeps at
+ * least padding texels of gutter. Images that don't fit on a page start a
+ * new one; an image larger than a page is an error.
+ *
+ * Texture coordinates must stay within 0..1: a region can't repeat.
+ *
+ * The pages are mipmapped by MipBuilder, and compressed when -Dp2.compress
+ * is on. BC1 encodes 4x4 blocks, whose end colors would mix two images, so
+ * then regions start on multiples of 4 * 2^mipLevels texels and the gutter
+ * is at least 4 texels in the smallest level kept: every block holds texels
+ * of one image only. Must be used on the GL thread, from the constructor on.
+ */
+import static org.lwjgl.stb.STBImage.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.system.MemoryUtil;
+
+public class TextureAtlas implements AutoCloseable {
+	// ---------------------- instance variables ------------------------------
+	private final int pageSize;
+	private final int mipLevels; // levels past 0 kept on the pages
+	private final int gutter; // edge texels around each image at level 0
+	private final int align;
+	private final BlockCompressor compressor; // or null
+
+	private ArrayList<Region> regions = new ArrayList<Region>();
+	private ArrayList<Texture> pages = new ArrayList<Texture>();
+
+	// ------------------ Constructors ----------------------------------
+	/**
+	 * Make an empty atlas.
+	 *
+	 * @param pageSize
+	 *            int width and height of the page textures
+	 * @param mipLevels
+	 *            int number of mip levels below level 0 to keep
+	 * @param padding
+	 *            int edge texels around each image in the smallest level
+	 *            kept; 2 covers bilinear filtering with a box filtered chain.
+	 *            Raised to a whole block when the pages are compressed
+	 */
+	public TextureAtlas(int pageSize, int mipLevels, int padding) {
+		if (pageSize <= 0 || mipLevels < 0 || padding < 0)
+			throw new RuntimeException("TextureAtlas: invalid size " + pageSize + ", " + mipLevels + ", " + padding);
+		this.pageSize = pageSize;
+		this.mipLevels = mipLevels;
+		compressor = BlockCompressor.forContext();
+		int block = compressor != null ? BlockCompressor.BLOCK_SIZE : 1;
+		this.align = block << mipLevels;
+		this.gutter = Math.max(padding, compressor != null ? block : 0) << mipLevels;
+	}
+
+	// ------------------------ add ----------------------------
+	/**
+	 * Decode an image to be placed by build().
+	 *
+	 * @param imageFile
+	 *            String file path or class path resource
+	 * @return Region of the image; usable once build() has returned
+	 * @throws IOException
+	 *             if the file can't be read or decoded
+	 */
+	public Region add(String imageFile) throws IOException {
+		if (!pages.isEmpty())
+			throw new RuntimeException("TextureAtlas: add after build");
+		try (UtilsLWJGL.Resource file = UtilsLWJGL.openResource(imageFile)) {
+			ByteBuffer fileBuffer = file.getData();
+			IntBuffer w = BufferUtils.createIntBuffer(1);
+			IntBuffer h = BufferUtils.createIntBuffer(1);
+			IntBuffer comp = BufferUtils.createIntBuffer(1);
+			stbi_set_flip_vertically_on_load(true);
+			ByteBuffer pixels = stbi_load_from_memory(fileBuffer, w, h, comp, 3);
+			if (pixels == null)
+				throw new IOException(imageFile + ": " + stbi_failure_reason());
+			Region region = new Region(imageFile, w.get(0), h.get(0), pixels);
+			if (cell(region.width) > pageSize || cell(region.height) > pageSize) {
+				stbi_image_free(pixels);
+				throw new RuntimeException("TextureAtlas: " + imageFile + " does not fit a " + pageSize + " page");
+			}
+			regions.add(region);
+			return region;
+		}
+	}
+
+	// ------------------------ build ----------------------------
+	/**
+	 * Pack the images added, make the page textures and fill in the regions.
+	 * The decoded images are freed.
+	 */
+	public void build() {
+		UtilsLWJGL.glError("--->TextureAtlas.build");
+		Region[] bySize = regions.toArray(new Region[0]);
+		Arrays.sort(bySize, (a, b) -> Integer.compare(Math.max(b.width, b.height), Math.max(a.width, a.height)));
+
+		ArrayList<Skyline> skylines = new ArrayList<Skyline>();
+		for (Region region : bySize) {
+			int[] at = null;
+			for (int p = 0; p < skylines.size() && at == null; p++) {
+				at = skylines.get(p).insert(cell(region.width), cell(region.height));
+				region.page = p;
+			}
+			if (at == null) {
+				skylines.add(new Skyline(pageSize));
+				region.page = skylines.size() - 1;
+				at = skylines.get(region.page).insert(cell(region.width), cell(region.height));
+			}
+			region.x = at[0] + gutter;
+			region.y = at[1] + gutter;
+		}
+
+		for (int p = 0; p < skylines.size(); p++) {
+			ByteBuffer page = MemoryUtil.memCalloc(pageSize * pageSize * 3);
+			for (Region region : regions)
+				if (region.page == p)
+					blit(region, page);
+			ByteBuffer[] levels = MipBuilder.DEFAULT.build(page, pageSize, pageSize, 3, mipLevels + 1);
+			Texture texture;
+			if (compressor != null) {
+				String name = "atlas page " + p;
+				levels = compressor.compress(levels, pageSize, pageSize, name).levels;
+				texture = Texture.fromCompressedChain(pageSize, pageSize, compressor.getInternalFormat(), levels);
+			} else
+				texture = Texture.fromMipChain(pageSize, pageSize, levels, 3);
+			MemoryUtil.memFree(page);
+			pages.add(texture);
+		}
+		for (Region region : regions) {
+			stbi_image_free(region.pixels);
+			region.pixels = null;
+			region.texture = pages.get(region.page);
+		}
+		System.err.printf("TextureAtlas: %d images on %d %dx%d pages\n", regions.size(), pages.size(), pageSize,
+				pageSize);
+		UtilsLWJGL.glError("<---TextureAtlas.build");
+	}
+
+	// copy the region's image into the page and extend its edges into the
+	// gutter
+	private void blit(Region region, ByteBuffer page) {
+		int x0 = region.x - gutter, y0 = region.y - gutter;
+		int w = region.width + 2 * gutter, h = region.height + 2 * gutter;
+		for (int y = 0; y < h; y++) {
+			int sy = Math.min(Math.max(y - gutter, 0), region.height - 1);
+			for (int x = 0; x < w; x++) {
+				int sx = Math.min(Math.max(x - gutter, 0), region.width - 1);
+				int src = (sy * region.width + sx) * 3, dst = ((y0 + y) * pageSize + x0 + x) * 3;
+				page.put(dst, region.pixels.get(src));
+				page.put(dst + 1, region.pixels.get(src + 1));
+				page.put(dst + 2, region.pixels.get(src + 2));
+			}
+		}
+	}
+
+	// space taken by an image of the size and its gutters, rounded up so
+	// the next region starts aligned
+	private int cell(int size) {
+		return (size + 2 * gutter + align - 1) / align * align;
+	}
+
+	// ------------------------ close ----------------------------
+	/**
+	 * Close the page textures; images not built yet are freed.
+	 */
+	public void close() {
+		for (Texture page : pages)
+			page.close();
+		pages.clear();
+		for (Region region : regions)
+			if (region.pixels != null)
+				stbi_image_free(region.pixels);
+		regions.clear();
+	}
+
+	// ------------------------ getters ----------------------------
+	/**
+	 * Return the number of page textures made by build().
+	 *
+	 * @return int
+	 */
+	public int getPageCount() {
+		return pages.size();
+	}
+
+	// ========================= Region ==================================
+	/**
+	 * Where an image is in the atlas: its page texture and the rectangle of
+	 * texture coordinates it covers.
+	 */
+	public class Region {
+		private final String name;
+		private final int width, height;
+		private ByteBuffer pixels; // until build()
+		private int page, x, y;
+		private Texture texture = null;
+
+		Region(String name, int width, int height, ByteBuffer pixels) {
+			this.name = name;
+			this.width = width;
+			this.height = height;
+			this.pixels = pixels;
+		}
+
+		/**
+		 * Return the page texture holding the image.
+		 *
+		 * @return Texture or null before build()
+		 */
+		public Texture getTexture() {
+			return texture;
+		}
+
+		public float getU0() {
+			return x / (float) pageSize;
+		}
+
+		public float getV0() {
+			return y / (float) pageSize;
+		}
+
+		public float getU1() {
+			return (x + width) / (float) pageSize;
+		}
+
+		public float getV1() {
+			return (y + height) / (float) pageSize;
+		}
+
+		/**
+		 * Return a copy of interleaved vertex data whose texture coordinates
+		 * are mapped from 0..1 over the image to the region.
+		 *
+		 * @param data
+		 *            float[] vertex data; not modified
+		 * @param layout
+		 *            VertexLayout of the data
+		 * @return float[] new vertex data, or data if it has no vTexCoord
+		 */
+		public float[] remap(float[] data, VertexLayout layout) {
+			int offset = layout.getOffset("vTexCoord");
+			if (offset < 0)
+				return data;
+			int stride = layout.getStride();
+			boolean hasV = layout.getSize("vTexCoord") > 1;
+			float u0 = getU0(), du = getU1() - u0, v0 = getV0(), dv = getV1() - v0;
+			float[] mapped = data.clone();
+			for (int i = offset; i < mapped.length; i += stride) {
+				mapped[i] = u0 + mapped[i] * du;
+				if (hasV)
+					mapped[i + 1] = v0 + mapped[i + 1] * dv;
+			}
+			return mapped;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: page %d at %d,%d %dx%d", name, page, x, y, width, height);
+		}
+	}
+
+	// ========================= Skyline ==================================
+	// bottom-left skyline packer: the top edge of the placed rectangles is
+	// kept as segments, and a rectangle goes where it ends lowest, the
+	// leftmost such place on ties
+	private static class Skyline {
+		private final int size;
+		private ArrayList<int[]> segments = new ArrayList<int[]>(); // x, y, width
+
+		Skyline(int size) {
+			this.size = size;
+			segments.add(new int[] { 0, 0, size });
+		}
+
+		// place a w x h rectangle; returns its x, y or null if it doesn't fit
+		int[] insert(int w, int h) {
+			int best = -1, bestY = Integer.MAX_VALUE, bestWidth = Integer.MAX_VALUE;
+			for (int i = 0; i < segments.size(); i++) {
+				int y = fit(i, w);
+				if (y < 0 || y + h > size)
+					continue;
+				int width = segments.get(i)[2];
+				if (y < bestY || (y == bestY && width < bestWidth)) {
+					best = i;
+					bestY = y;
+					bestWidth = width;
+				}
+			}
+			if (best < 0)
+				return null;
+			int x = segments.get(best)[0];
+			segments.add(best, new int[] { x, bestY + h, w });
+			// cut back or remove the segments the rectangle now covers
+			for (int i = best + 1; i < segments.size();) {
+				int[] s = segments.get(i);
+				int overlap = x + w - s[0];
+				if (overlap <= 0)
+					break;
+				if (overlap < s[2]) {
+					s[0] += overlap;
+					s[2] -= overlap;
+					break;
+				}
+				segments.remove(i);
+			}
+			// merge neighbours at the same height
+			for (int i = 0; i < segments.size() - 1;) {
+				int[] a = segments.get(i), b = segments.get(i + 1);
+				if (a[1] == b[1]) {
+					a[2] += b[2];
+					segments.remove(i + 1);
+				} else
+					i++;
+			}
+			return new int[] { x, bestY };
+		}
+
+		// height at which a rectangle of width w starting at segment i
+		// rests, or -1 if it runs past the right edge
+		private int fit(int i, int w) {
+			int x = segments.get(i)[0];
+			if (x + w > size)
+				return -1;
+			int y = 0;
+			for (int j = i; j < segments.size() && segments.get(j)[0] < x + w; j++)
+				y = Math.max(y, segments.get(j)[1]);
+			return y;
+		}
+	}
+}
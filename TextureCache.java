@@ -0,0 +1,232 @@
+
+/**
+ * TextureCache.java - decodes and uploads each image once.
+ *
+ * Images are looked up first by canonical file path and then by a hash of
+ * the file contents, so the same image reached through two paths, or two
+ * copies of one file, also share a single GL texture. Different filter and
+ * wrap settings do not need another copy of the image: get(file, sampler)
+ * returns a view of the cached texture that binds a shared sampler object.
+ *
+ * Textures for samplers that don't use mipmaps are made without them and
+ * kept apart, but a mipmapped texture of the image serves them too.
+ *
+ * Images with a fresh BakedTexture are not decoded at all; the others are
+ * baked as they are decoded.
+ *
+ * TextureLoader decodes on worker threads and enters its uploads into the
+ * same cache, on the GL thread, through lookup(), lookupContent() and put().
+ *
+ * The cache owns its textures; clear() closes them. All methods must be
+ * called on the GL thread.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+
+public class TextureCache {
+	// ------------------ class variables ------------------------------
+	private static HashMap<String, Texture> byPath = new HashMap<String, Texture>();
+	private static HashMap<String, Texture> byContent = new HashMap<String, Texture>();
+	private static int decodes = 0; // images decoded and uploaded
+	private static int hits = 0; // requests served without decoding
+	private static final String BASE = "#base"; // key suffix of level 0 only textures
+
+	// ------------------------ get ----------------------------
+	/**
+	 * Return the mipmapped texture of the image file, decoding and uploading
+	 * it the first time it is seen.
+	 *
+	 * @param imageFile
+	 *            String file path or class path resource
+	 * @return Texture shared texture; its own parameters are the defaults of
+	 *         Texture.loadTexture
+	 * @throws IOException
+	 *             if the file can't be read or decoded
+	 */
+	public static Texture get(String imageFile) throws IOException {
+		return get(imageFile, true);
+	}
+
+	/**
+	 * Return the texture of the image file, decoding and uploading it the
+	 * first time it is seen.
+	 *
+	 * @param imageFile
+	 *            String file path or class path resource
+	 * @param mipmaps
+	 *            boolean false if level 0 is enough; a mipmapped texture of
+	 *            the image is returned if there is one
+	 * @return Texture shared texture
+	 * @throws IOException
+	 *             if the file can't be read or decoded
+	 */
+	public static Texture get(String imageFile, boolean mipmaps) throws IOException {
+		String path = canonicalPath(imageFile);
+		Texture texture = lookup(path, mipmaps);
+		if (texture != null)
+			return texture;
+
+		// a fresh baked file knows the source's hash without reading it
+		BakedTexture baked = BakedTexture.open(imageFile, BlockCompressor.forContext());
+		if (baked != null) {
+			texture = lookupContent(path, baked.getSourceHash(), mipmaps);
+			if (texture == null) {
+				texture = baked.upload(mipmaps);
+				put(path, baked.getSourceHash(), mipmaps, texture);
+			}
+			return texture;
+		}
+
+		try (UtilsLWJGL.Resource file = UtilsLWJGL.openResource(imageFile)) {
+			ByteBuffer fileBuffer = file.getData();
+			String hash = contentHash(fileBuffer);
+			texture = lookupContent(path, hash, mipmaps);
+			if (texture == null) {
+				texture = Texture.decodeTexture(fileBuffer, imageFile, hash, mipmaps);
+				put(path, hash, mipmaps, texture);
+			}
+		}
+		return texture;
+	}
+
+	/**
+	 * Return a view of the image file's texture that is sampled with the
+	 * specified filter and wrap settings. The texture has mipmaps only if
+	 * the sampler's min filter uses them.
+	 *
+	 * @param imageFile
+	 *            String file path or class path resource
+	 * @param sampler
+	 *            SamplerState to draw with
+	 * @return Texture view sharing the cached image
+	 * @throws IOException
+	 *             if the file can't be read or decoded
+	 */
+	public static Texture get(String imageFile, SamplerState sampler) throws IOException {
+		return get(imageFile, sampler.usesMipmaps()).withSampler(sampler);
+	}
+
+	// ------------------------ lookup ----------------------------
+	/**
+	 * Return the cached texture of a canonical path, or null.
+	 *
+	 * @param path
+	 *            String from canonicalPath
+	 * @param mipmaps
+	 *            boolean true if only a mipmapped texture will do
+	 * @return Texture or null
+	 */
+	static Texture lookup(String path, boolean mipmaps) {
+		Texture texture = byPath.get(path);
+		if (texture == null && !mipmaps)
+			texture = byPath.get(path + BASE);
+		if (texture != null)
+			hits++;
+		return texture;
+	}
+
+	/**
+	 * Return the cached texture with the same file contents, or null. A
+	 * texture found is entered for the path too.
+	 *
+	 * @param path
+	 *            String from canonicalPath
+	 * @param hash
+	 *            String from contentHash
+	 * @param mipmaps
+	 *            boolean true if only a mipmapped texture will do
+	 * @return Texture or null
+	 */
+	static Texture lookupContent(String path, String hash, boolean mipmaps) {
+		Texture texture = byContent.get(hash);
+		String suffix = "";
+		if (texture == null && !mipmaps)
+			texture = byContent.get(hash + (suffix = BASE));
+		if (texture != null) {
+			hits++;
+			byPath.put(path + suffix, texture);
+			System.err.printf("TextureCache: %s has the same contents as a cached image\n", path);
+		}
+		return texture;
+	}
+
+	// ------------------------ put ----------------------------
+	/**
+	 * Enter a newly uploaded texture.
+	 *
+	 * @param path
+	 *            String from canonicalPath
+	 * @param hash
+	 *            String from contentHash
+	 * @param mipmaps
+	 *            boolean true if the texture has mipmaps
+	 * @param texture
+	 *            Texture made from the file
+	 */
+	static void put(String path, String hash, boolean mipmaps, Texture texture) {
+		String suffix = mipmaps ? "" : BASE;
+		decodes++;
+		byContent.put(hash + suffix, texture);
+		byPath.put(path + suffix, texture);
+		if (mipmaps && !path.startsWith("resource:"))
+			TextureResidency.setSource(texture, path); // baked files restore it
+	}
+
+	// ------------------------ clear ----------------------------
+	/**
+	 * Close every cached texture and sampler object and forget them.
+	 */
+	public static void clear() {
+		for (Texture texture : byContent.values())
+			texture.close();
+		byContent.clear();
+		byPath.clear();
+		SamplerState.deleteAll();
+	}
+
+	// ------------------------ getters ----------------------------
+	/**
+	 * Return the number of images decoded and uploaded.
+	 *
+	 * @return int
+	 */
+	public static int getDecodeCount() {
+		return decodes;
+	}
+
+	/**
+	 * Return the number of requests that found their image in the cache.
+	 *
+	 * @return int
+	 */
+	public static int getHitCount() {
+		return hits;
+	}
+
+	// ------------------------ helpers ----------------------------
+	// files are keyed by canonical path, resources by their name
+	static String canonicalPath(String imageFile) throws IOException {
+		File file = new File(imageFile);
+		return file.isFile() ? file.getCanonicalPath() : "resource:" + imageFile;
+	}
+
+	// SHA-256 of the file's bytes, so a collision can't swap images;
+	// thread safe
+	static String contentHash(ByteBuffer data) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(data.duplicate());
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest.digest())
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException nsae) {
+			throw new RuntimeException(nsae); // every JRE has SHA-256
+		}
+	}
+}
@@ -0,0 +1,423 @@
+
+/**
+ * TextureLoader.java - loads textures without blocking the GL thread.
+ *
+ * load() returns at once with a CompletableFuture. The file is read on an
+ * I/O pool and decoded with stb on a bounded decode pool, one thread per
+ * spare core, where MipBuilder also makes its mip chain. Only the upload
+ * has to happen on the GL thread: it is queued, and the render loop calls
+ * processUploads() every frame with a time budget so a burst of finished
+ * images can't stall a frame. The future completes
+ * on the GL thread once the texture is uploaded and entered in the
+ * TextureCache.
+ *
+ * When the context has fences (GL 3.2) the mip chain is not uploaded from
+ * client memory. The slot of a PixelUploadRing is requested as soon as the
+ * image's size is known from its header; the decode worker then copies
+ * level 0 out of stb's buffer into the mapping and MipBuilder writes the
+ * other levels straight into it, baking them as they come. The GL thread
+ * only unmaps the slot and schedules the transfer, see PixelUploadRing. If
+ * the slot lost its contents meanwhile the load starts again without the
+ * ring, which then finds the file just baked.
+ *
+ * With -Dp2.compress the decode pool also encodes the chain with a
+ * BlockCompressor.
+ *
+ * An image with a fresh BakedTexture is not decoded: the I/O pool maps the
+ * baked file and the GL thread uploads its stored mip levels. Images that
+ * are decoded are baked on the decode pool for the next run.
+ *
+ * Workers wake the render loop with glfwPostEmptyEvent, since it sleeps in
+ * glfwWaitEvents while nothing changes.
+ *
+ * load() and processUploads() must be called on the GL thread.
+ */
+import static org.lwjgl.glfw.GLFW.glfwPostEmptyEvent;
+import static org.lwjgl.stb.STBImage.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.lwjgl.BufferUtils;
+
+public class TextureLoader {
+	// ------------------ class variables ------------------------------
+	private static final int DECODE_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+	// reads mostly wait on the disk, so the I/O pool is unbounded; decoding
+	// is CPU bound and must leave a core to the render loop
+	private static final ExecutorService ioPool = Executors.newCachedThreadPool(daemon("TextureLoader-io"));
+	private static final ExecutorService decodePool = Executors.newFixedThreadPool(DECODE_THREADS,
+			daemon("TextureLoader-decode"));
+
+	private static final ConcurrentLinkedQueue<Runnable> uploads = new ConcurrentLinkedQueue<Runnable>();
+	private static HashMap<String, CompletableFuture<Texture>> loading = new HashMap<String, CompletableFuture<Texture>>();
+	private static PixelUploadRing ring = null; // created by the first load
+
+	static {
+		stbi_set_flip_vertically_on_load(true); // global in stb; all loads flip
+	}
+
+	// ------------------------ load ----------------------------
+	/**
+	 * Start loading an image file as a mipmapped texture. A file already in
+	 * the TextureCache, or already being loaded, is not read again.
+	 *
+	 * @param imageFile
+	 *            String file path or class path resource
+	 * @return CompletableFuture completed on the GL thread with the shared
+	 *         Texture, or exceptionally if the file can't be read or decoded
+	 */
+	public static CompletableFuture<Texture> load(String imageFile) {
+		return load(imageFile, true);
+	}
+
+	/**
+	 * Start loading an image file.
+	 *
+	 * @param imageFile
+	 *            String file path or class path resource
+	 * @param mipmaps
+	 *            boolean false if level 0 is enough; a mipmapped texture of
+	 *            the image is used if there is one
+	 * @return CompletableFuture of the shared Texture
+	 */
+	public static CompletableFuture<Texture> load(String imageFile, final boolean mipmaps) {
+		final String path;
+		try {
+			path = TextureCache.canonicalPath(imageFile);
+		} catch (IOException iox) {
+			CompletableFuture<Texture> failed = new CompletableFuture<Texture>();
+			failed.completeExceptionally(iox);
+			return failed;
+		}
+		Texture cached = TextureCache.lookup(path, mipmaps);
+		if (cached != null)
+			return CompletableFuture.completedFuture(cached);
+		final String key = mipmaps ? path : path + "#base";
+		CompletableFuture<Texture> result = loading.get(path);
+		if (result == null)
+			result = loading.get(key);
+		if (result != null)
+			return result;
+
+		if (ring == null && PixelUploadRing.isSupported())
+			ring = new PixelUploadRing(PixelUploadRing.DEFAULT_SLOTS);
+		final PixelUploadRing pbos = ring;
+		final BlockCompressor compressor = BlockCompressor.forContext(); // null: uncompressed
+
+		final CompletableFuture<Texture> future = new CompletableFuture<Texture>();
+		start(imageFile, path, key, pbos, compressor, mipmaps, future);
+		return future;
+	}
+
+	// open the baked file or decode the image, then queue the upload; a
+	// retry after a slot lost its contents passes no ring
+	private static void start(final String imageFile, final String path, final String key,
+			final PixelUploadRing pbos, final BlockCompressor compressor, final boolean mipmaps,
+			final CompletableFuture<Texture> future) {
+		loading.put(key, future);
+		Runnable retry = () -> start(imageFile, path, key, null, compressor, mipmaps, future);
+		CompletableFuture.supplyAsync(() -> BakedTexture.open(imageFile, compressor), ioPool)
+				.thenCompose(baked -> baked != null ? CompletableFuture.completedFuture(new Decoded(baked, mipmaps))
+						: decode(imageFile, pbos, compressor, mipmaps))
+				.whenComplete((image, failure) -> {
+					uploads.add(() -> upload(path, key, image, failure, future, retry));
+					glfwPostEmptyEvent();
+				});
+	}
+
+	/**
+	 * Start loading an image file that is to be drawn with the specified
+	 * filter and wrap settings, with mipmaps only if the sampler uses them.
+	 *
+	 * @param imageFile
+	 *            String file path or class path resource
+	 * @param sampler
+	 *            SamplerState of the texture view
+	 * @return CompletableFuture of a view of the shared Texture
+	 */
+	public static CompletableFuture<Texture> load(String imageFile, final SamplerState sampler) {
+		return load(imageFile, sampler.usesMipmaps()).thenApply(texture -> texture.withSampler(sampler));
+	}
+
+	// ------------------------ processUploads ----------------------------
+	/**
+	 * Upload decoded images until the queue is empty or the budget is spent.
+	 * At least one upload is made per call, so loading always progresses.
+	 *
+	 * @param budgetNanos
+	 *            long time allowed for uploads in this frame
+	 * @return int number of uploads made
+	 */
+	public static int processUploads(long budgetNanos) {
+		long start = System.nanoTime();
+		if (ring != null)
+			ring.poll();
+		int n = 0;
+		Runnable upload;
+		while ((upload = uploads.poll()) != null) {
+			upload.run();
+			n++;
+			if (System.nanoTime() - start >= budgetNanos)
+				break;
+		}
+		return n;
+	}
+
+	/**
+	 * Return true if decoded images are waiting for processUploads, so the
+	 * render loop should not block waiting for events.
+	 *
+	 * @return boolean
+	 */
+	public static boolean hasPendingUploads() {
+		return !uploads.isEmpty() || (ring != null && ring.hasWaiting());
+	}
+
+	/**
+	 * Return true if no load is in progress or waiting to be uploaded.
+	 *
+	 * @return boolean
+	 */
+	public static boolean isIdle() {
+		return loading.isEmpty() && !hasPendingUploads();
+	}
+
+	/**
+	 * Return the pixel buffer ring for its metrics.
+	 *
+	 * @return PixelUploadRing or null if the context can't stream with PBOs
+	 */
+	public static PixelUploadRing getUploadRing() {
+		return ring;
+	}
+
+	/**
+	 * Stop the worker threads; loads in progress are abandoned.
+	 */
+	public static void shutdown() {
+		ioPool.shutdownNow();
+		decodePool.shutdownNow();
+		if (ring != null)
+			ring.delete();
+		ring = null;
+	}
+
+	// ------------------------ pipeline stages ----------------------------
+	// read, decode, build the mip chain of, compress and bake an image that
+	// has no fresh baked file. An uncompressed chain is made straight in a
+	// slot of the ring if there is one; compressed ones are small enough to
+	// upload from client memory, and so is any image whose slot can't be
+	// mapped
+	private static CompletableFuture<Decoded> decode(String imageFile, PixelUploadRing pbos,
+			BlockCompressor compressor, boolean mipmaps) {
+		return CompletableFuture.supplyAsync(() -> read(imageFile), ioPool).thenCompose(file -> {
+			int size = pbos == null ? -1 : Decoded.slotSize(file, compressor, mipmaps);
+			if (size < 0)
+				return CompletableFuture.supplyAsync(() -> new Decoded(imageFile, file, compressor, mipmaps),
+						decodePool);
+			// the slot is mapped on the GL thread, then filled by the worker
+			CompletableFuture<PixelUploadRing.Slot> slot = pbos.request(size);
+			glfwPostEmptyEvent();
+			return slot.handleAsync((mapped, failure) -> failure != null
+					? new Decoded(imageFile, file, compressor, mipmaps)
+					: new Decoded(imageFile, file, mapped, mipmaps), decodePool);
+		});
+	}
+
+	// on the I/O pool
+	private static UtilsLWJGL.Resource read(String imageFile) {
+		try {
+			return UtilsLWJGL.openResource(imageFile);
+		} catch (IOException iox) {
+			throw new CompletionException(iox);
+		}
+	}
+
+	// on the GL thread
+	private static void upload(String path, String key, Decoded image, Throwable failure,
+			CompletableFuture<Texture> future, Runnable retry) {
+		loading.remove(key);
+		if (failure != null) {
+			Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+			System.err.println("TextureLoader: unable to load " + path + ": " + cause);
+			future.completeExceptionally(cause);
+			return;
+		}
+		Texture texture = TextureCache.lookupContent(path, image.hash, image.mipmaps);
+		if (texture != null) {
+			if (image.slot != null)
+				image.slot.abandon();
+		} else if (image.slot != null && !image.slot.beginUpload()) {
+			retry.run(); // nothing kept in client memory
+			return;
+		} else {
+			UtilsLWJGL.glError("--->TextureLoader.upload");
+			if (image.baked != null)
+				texture = image.baked.upload(image.mipmaps);
+			else if (image.format == 0)
+				texture = Texture.fromCompressedChain(image.width, image.height, image.internalFormat,
+						image.levels);
+			else if (image.slot != null)
+				texture = Texture.fromMipChain(image.width, image.height, image.slot, image.levelCount,
+						image.components);
+			else
+				texture = Texture.fromMipChain(image.width, image.height, image.levels, image.components);
+			TextureCache.put(path, image.hash, image.mipmaps, texture);
+			UtilsLWJGL.glError("<---TextureLoader.upload");
+		}
+		if (image.pixels != null)
+			stbi_image_free(image.pixels);
+		future.complete(texture);
+	}
+
+	// worker threads are daemons so they don't keep the program alive
+	private static ThreadFactory daemon(final String name) {
+		return r -> {
+			Thread t = new Thread(r, name);
+			t.setDaemon(true);
+			return t;
+		};
+	}
+
+	// ========================= Decoded ==================================
+	/**
+	 * An image decoded on the decode pool, or a mapped baked file, waiting
+	 * for its upload. The file data is freed once decoded. A chain made in
+	 * client memory keeps the stb pixels as level 0 until it is uploaded; one
+	 * made in a slot frees them as soon as the slot is filled.
+	 */
+	private static class Decoded {
+		final String hash;
+		final int width, height;
+		final boolean mipmaps;
+		int levelCount, components;
+		int internalFormat, format; // format 0: compressed blocks
+		ByteBuffer pixels = null; // level 0, freed with stbi_image_free
+		ByteBuffer[] levels = null; // mip chain, from MipBuilder
+		PixelUploadRing.Slot slot = null; // mapped slot the chain was made in
+		BakedTexture baked = null; // uploaded as it is, no decoding
+
+		Decoded(BakedTexture baked, boolean mipmaps) {
+			this.baked = baked;
+			this.mipmaps = mipmaps;
+			hash = baked.getSourceHash();
+			width = baked.getWidth();
+			height = baked.getHeight();
+		}
+
+		// level 0 only textures are not baked: a baked file must have the
+		// whole chain
+		Decoded(String imageFile, UtilsLWJGL.Resource file, BlockCompressor compressor, boolean mipmaps) {
+			this.mipmaps = mipmaps;
+			try {
+				ByteBuffer data = file.getData();
+				hash = TextureCache.contentHash(data);
+				IntBuffer w = BufferUtils.createIntBuffer(1);
+				IntBuffer h = BufferUtils.createIntBuffer(1);
+				IntBuffer comp = BufferUtils.createIntBuffer(1);
+				pixels = stbi_load_from_memory(data, w, h, comp, 0);
+				if (pixels == null)
+					throw new CompletionException(new IOException(imageFile + ": " + stbi_failure_reason()));
+				width = w.get(0);
+				height = h.get(0);
+				components = comp.get(0);
+				System.err.printf("Image: %s %dx%d, %d channels\n", imageFile, width, height, components);
+				levels = mipmaps ? MipBuilder.DEFAULT.build(pixels, width, height, components)
+						: new ByteBuffer[] { pixels.duplicate() };
+				levelCount = levels.length;
+				internalFormat = Texture.storageFormat(components, compressor);
+				format = Texture.pixelFormat(components);
+				if (internalFormat != Texture.storageFormat(components, null)) {
+					levels = compressor.compress(levels, width, height, imageFile).levels;
+					format = 0;
+					stbi_image_free(pixels); // level 0 has been encoded
+					pixels = null;
+				}
+				if (mipmaps)
+					BakedTexture.bake(imageFile, hash, width, height, levels, internalFormat, format, compressor);
+			} finally {
+				file.close();
+			}
+		}
+
+		// on the decode pool: decode into a mapped slot of slotSize bytes,
+		// level 0 copied from stb's buffer and the others made in place by
+		// MipBuilder, baked as they are made
+		Decoded(String imageFile, UtilsLWJGL.Resource file, PixelUploadRing.Slot slot, boolean mipmaps) {
+			this.mipmaps = mipmaps;
+			BakedTexture.Baker baker = null;
+			try {
+				ByteBuffer data = file.getData();
+				hash = TextureCache.contentHash(data);
+				IntBuffer w = BufferUtils.createIntBuffer(1);
+				IntBuffer h = BufferUtils.createIntBuffer(1);
+				IntBuffer comp = BufferUtils.createIntBuffer(1);
+				pixels = stbi_load_from_memory(data, w, h, comp, 0);
+				if (pixels == null)
+					throw new CompletionException(new IOException(imageFile + ": " + stbi_failure_reason()));
+				width = w.get(0);
+				height = h.get(0);
+				components = comp.get(0);
+				System.err.printf("Image: %s %dx%d, %d channels\n", imageFile, width, height, components);
+				internalFormat = Texture.storageFormat(components, null);
+				format = Texture.pixelFormat(components);
+				levelCount = mipmaps ? MipBuilder.levelCount(width, height) : 1;
+				if (mipmaps)
+					baker = BakedTexture.Baker.start(imageFile, hash, width, height,
+							levelSizes(width, height, components, levelCount), internalFormat, format, null);
+				MipBuilder.DEFAULT.build(pixels, width, height, components, levelCount, slot.getBuffer(),
+						baker == null ? null : baker::level);
+				if (baker != null)
+					baker.finish();
+				this.slot = slot;
+			} catch (RuntimeException e) {
+				if (baker != null)
+					baker.abort();
+				uploads.add(slot::abandon); // unmapped on the GL thread
+				throw e;
+			} finally {
+				if (pixels != null)
+					stbi_image_free(pixels);
+				pixels = null;
+				file.close();
+			}
+		}
+
+		// bytes of the slot an image file's chain is made in, from its
+		// header; -1 if the chain is compressed or the header can't be read,
+		// which leaves the error to the client memory decode
+		static int slotSize(UtilsLWJGL.Resource file, BlockCompressor compressor, boolean mipmaps) {
+			IntBuffer w = BufferUtils.createIntBuffer(1);
+			IntBuffer h = BufferUtils.createIntBuffer(1);
+			IntBuffer comp = BufferUtils.createIntBuffer(1);
+			if (!stbi_info_from_memory(file.getData(), w, h, comp))
+				return -1;
+			int components = comp.get(0);
+			if (Texture.storageFormat(components, compressor) != Texture.storageFormat(components, null))
+				return -1;
+			int levels = mipmaps ? MipBuilder.levelCount(w.get(0), h.get(0)) : 1;
+			int size = 0;
+			for (int level : levelSizes(w.get(0), h.get(0), components, levels))
+				size += level;
+			return size;
+		}
+
+		// bytes of each level of an uncompressed chain
+		static int[] levelSizes(int width, int height, int components, int levels) {
+			int[] sizes = new int[levels];
+			for (int level = 0; level < levels; level++)
+				sizes[level] = MipBuilder.levelSize(width, level) * MipBuilder.levelSize(height, level) * components;
+			return sizes;
+		}
+	}
+}
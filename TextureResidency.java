@@ -0,0 +1,246 @@
+
+/**
+ * TextureResidency.java - keeps the textures in GPU memory within a budget.
+ *
+ * Every texture made by Texture.allocate (loaded, baked, atlas pages) is
+ * tracked with an estimate of the GPU memory it takes, and Texture.bind
+ * stamps it with the current frame. When the tracked textures exceed the
+ * budget, nextFrame() evicts the least recently bound ones: the GL texture
+ * is deleted while the Texture object stays valid. The next bind uploads it
+ * again, so nothing drawing with it needs to know.
+ *
+ * An evicted texture is restored from its BakedTexture when its source file
+ * has a fresh one, which costs no memory beyond the file mapping; otherwise
+ * its levels are read back from the GPU when it is evicted and kept in CPU
+ * memory until it is restored.
+ *
+ * A texture leaves the budget when its GLResources release action runs, so
+ * one collected without close() is taken off as well.
+ *
+ * Textures bound in the last frame are never evicted, so a scene that needs
+ * more than the budget by itself runs over it instead of uploading every
+ * frame. The budget is -Dp2.textureBudget=<megabytes>; 0, the default, is no
+ * budget. Textures made any other way, e.g. by the Texture constructor and
+ * uploadData, are not tracked and always stay resident.
+ *
+ * Like RenderState this is a holder of "global" state; all methods must be
+ * called on the GL thread.
+ */
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+
+import org.lwjgl.system.MemoryUtil;
+
+public class TextureResidency {
+	// ------------------ class variables ------------------------------
+	private static final long BUDGET = Long.getLong("p2.textureBudget", 0) << 20;
+
+	// weak, so a texture leaked without close() is still found by
+	// GLResources; Texture doesn't override equals, so keys are identities
+	private static WeakHashMap<Texture, Entry> tracked = new WeakHashMap<Texture, Entry>();
+	// the same entries by the texture's name array, which its release action
+	// holds, so a leaked texture's bytes are still taken off; arrays are
+	// identities too
+	private static HashMap<int[], Entry> byName = new HashMap<int[], Entry>();
+	private static int frame = 1;
+	private static long residentBytes = 0;
+
+	private static int hits = 0; // binds of resident textures
+	private static int misses = 0; // binds that restored an evicted texture
+	private static int evictions = 0;
+
+	// ------------------------ track ----------------------------
+	/**
+	 * Start tracking a texture made by Texture.allocate.
+	 *
+	 * @param texture
+	 *            Texture owning its GL texture, not a view
+	 * @param name
+	 *            int[] the texture's GL name, as its release action sees it
+	 */
+	static void track(Texture texture, int[] name) {
+		Entry entry = new Entry(texture.byteSize());
+		tracked.put(texture, entry);
+		byName.put(name, entry);
+		residentBytes += entry.bytes;
+		texture.lastBound = frame;
+	}
+
+	/**
+	 * Record the image file a texture was made from, so it can be restored
+	 * from the file's BakedTexture instead of a copy in memory.
+	 *
+	 * @param texture
+	 *            tracked Texture
+	 * @param imageFile
+	 *            String source image file
+	 */
+	static void setSource(Texture texture, String imageFile) {
+		Entry entry = tracked.get(texture);
+		if (entry != null)
+			entry.source = imageFile;
+	}
+
+	/**
+	 * Stop tracking a texture that is being closed, so it is not evicted
+	 * before its release action runs.
+	 *
+	 * @param texture
+	 *            Texture
+	 */
+	static void forget(Texture texture) {
+		tracked.remove(texture);
+	}
+
+	/**
+	 * Called by the release action of a tracked texture, whether it was
+	 * closed or collected without close(): stop counting its bytes and free
+	 * its copy. Must run before the GL texture is deleted.
+	 *
+	 * @param name
+	 *            int[] the name array passed to track
+	 */
+	static void released(int[] name) {
+		Entry entry = byName.remove(name);
+		if (entry == null)
+			return;
+		if (name[0] != 0)
+			residentBytes -= entry.bytes;
+		entry.release();
+	}
+
+	// ------------------------ bound ----------------------------
+	/**
+	 * Called by Texture.bind: count the bind and restore the texture if it
+	 * has been evicted.
+	 *
+	 * @param texture
+	 *            Texture being bound, not a view
+	 */
+	static void bound(Texture texture) {
+		Entry entry = tracked.get(texture);
+		if (entry == null)
+			return;
+		if (texture.getId() != 0) {
+			hits++;
+			return;
+		}
+		UtilsLWJGL.glError("--->TextureResidency.restore");
+		if (entry.baked != null) {
+			ByteBuffer[] levels = new ByteBuffer[texture.getLevelCount()];
+			for (int level = 0; level < levels.length; level++)
+				levels[level] = entry.baked.getLevel(level);
+			texture.restore(levels);
+		} else
+			texture.restore(entry.copy);
+		entry.release();
+		residentBytes += entry.bytes;
+		misses++;
+		UtilsLWJGL.glError("<---TextureResidency.restore");
+	}
+
+	// ------------------------ nextFrame ----------------------------
+	/**
+	 * Start a new frame, first evicting textures while over the budget. Call
+	 * once per frame, before drawing.
+	 */
+	public static void nextFrame() {
+		frame++;
+		if (BUDGET <= 0 || residentBytes <= BUDGET)
+			return;
+		UtilsLWJGL.glError("--->TextureResidency.nextFrame");
+		ArrayList<Texture> lru = new ArrayList<Texture>();
+		for (Texture texture : tracked.keySet())
+			if (texture.getId() != 0 && texture.lastBound < frame - 1)
+				lru.add(texture);
+		lru.sort((a, b) -> Integer.compare(a.lastBound, b.lastBound));
+		int n = 0;
+		long freed = 0;
+		for (int i = 0; i < lru.size() && residentBytes > BUDGET; i++) {
+			Texture texture = lru.get(i);
+			Entry entry = tracked.get(texture);
+			entry.baked = baked(texture, entry.source);
+			if (entry.baked == null)
+				entry.copy = texture.download();
+			texture.evict();
+			residentBytes -= entry.bytes;
+			freed += entry.bytes;
+			n++;
+		}
+		evictions += n;
+		if (n > 0)
+			System.err.printf("TextureResidency: evicted %d textures, %d KB; %d of %d KB resident"
+					+ " (%d hits, %d misses, %d evictions)\n", n, freed >> 10, residentBytes >> 10, BUDGET >> 10,
+					hits, misses, evictions);
+		UtilsLWJGL.glError("<---TextureResidency.nextFrame");
+	}
+
+	// the fresh baked file of the texture's source, if it holds the same
+	// levels
+	private static BakedTexture baked(Texture texture, String source) {
+		if (source == null)
+			return null;
+		BakedTexture baked = BakedTexture.open(source, BlockCompressor.forContext());
+		if (baked == null || baked.getWidth() != texture.getWidth() || baked.getHeight() != texture.getHeight()
+				|| baked.getInternalFormat() != texture.getInternalFormat()
+				|| baked.getLevelCount() < texture.getLevelCount())
+			return null;
+		return baked;
+	}
+
+	// ------------------------ getters ----------------------------
+	/**
+	 * Return the current frame number, as stamped on bound textures.
+	 *
+	 * @return int
+	 */
+	public static int getFrame() {
+		return frame;
+	}
+
+	/**
+	 * Return the estimated GPU bytes of the tracked textures that are
+	 * resident.
+	 *
+	 * @return long
+	 */
+	public static long getResidentBytes() {
+		return residentBytes;
+	}
+
+	public static int getHitCount() {
+		return hits;
+	}
+
+	public static int getMissCount() {
+		return misses;
+	}
+
+	public static int getEvictionCount() {
+		return evictions;
+	}
+
+	// ========================= Entry ==================================
+	// what is known about a tracked texture, and where an evicted one's
+	// levels are
+	private static class Entry {
+		final long bytes;
+		String source = null; // image file with a baked file, or null
+		BakedTexture baked = null; // while evicted, restored from this
+		ByteBuffer[] copy = null; // or this, MemoryUtil memory
+
+		Entry(long bytes) {
+			this.bytes = bytes;
+		}
+
+		void release() {
+			baked = null;
+			if (copy != null)
+				for (ByteBuffer level : copy)
+					MemoryUtil.memFree(level);
+			copy = null;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+
+/**
+ * TextureUploadBenchmark.java - times texture uploads the way they used to be
+ * done against the way Texture does them now.
+ *
+ * Before: every image decoded to RGB, level 0 specified as GL_RGBA with
+ * glTexImage2D, then glGenerateMipmap. After: the image keeps its own
+ * channels, Texture.allocate makes immutable storage of the sized format
+ * with just the levels needed, and uploadLevel sends the MipBuilder chain,
+ * or level 0 alone for a sampler without mipmaps.
+ *
+ * The images are decoded and their chains built before timing, so only the
+ * GL work is measured; glFinish ends each upload. Needs a display.
+ *
+ * usage: java TextureUploadBenchmark [repeats [imageFile ...]]
+ */
+import static org.lwjgl.glfw.GLFW.*;
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL30.glGenerateMipmap;
+import static org.lwjgl.stb.STBImage.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import org.lwjgl.BufferUtils;
+
+public class TextureUploadBenchmark {
+	// ------------------ class variables ------------------------------
+	private static final String[] IMAGES = { "Sunrise.jpg", "checkerboard.jpg", "cut_teapot.jpg", "taj_mahal.jpg" };
+
+	// ------------------------ main ----------------------------
+	/**
+	 * Run the benchmark on the shipped images or the ones named.
+	 *
+	 * @param args
+	 *            String[]
+	 * @throws IOException
+	 *             if an image or the shaders can't be read
+	 */
+	public static void main(String[] args) throws IOException {
+		int repeats = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+		String[] images = args.length > 1 ? Arrays.copyOfRange(args, 1, args.length) : IMAGES;
+
+		long windowId = UtilsLWJGL.openWindow("TextureUploadBenchmark", 64, 64);
+		LWJGL.windowId = windowId;
+		LWJGL.shaderProgram = UtilsLWJGL.makeShaderProgram("texture.vsh", "texture.fsh");
+		System.out.printf("TextureUploadBenchmark: %d repeats, texture storage %s, sRGB %s\n", repeats,
+				Texture.hasTexStorage(), Boolean.getBoolean("p2.srgb"));
+		System.out.printf("%-20s %11s %8s %10s %8s %10s %8s\n", "image", "size", "before", "after", "", "level 0",
+				"");
+
+		for (String imageFile : images) {
+			IntBuffer w = BufferUtils.createIntBuffer(1);
+			IntBuffer h = BufferUtils.createIntBuffer(1);
+			IntBuffer comp = BufferUtils.createIntBuffer(1);
+			ByteBuffer rgb, own;
+			try (UtilsLWJGL.Resource file = UtilsLWJGL.openResource(imageFile)) {
+				stbi_set_flip_vertically_on_load(true);
+				rgb = stbi_load_from_memory(file.getData(), w, h, comp, 3);
+				own = stbi_load_from_memory(file.getData(), w, h, comp, 0);
+			}
+			if (rgb == null || own == null)
+				throw new IOException(imageFile + ": " + stbi_failure_reason());
+			int width = w.get(0), height = h.get(0), components = comp.get(0);
+			ByteBuffer[] levels = MipBuilder.DEFAULT.build(own, width, height, components);
+
+			long before = 0, after = 0, base = 0;
+			for (int r = 0; r < repeats; r++) {
+				before += time(() -> before(width, height, rgb));
+				after += time(() -> after(width, height, levels, components));
+				base += time(() -> after(width, height, new ByteBuffer[] { own }, components));
+			}
+			System.out.printf("%-20s %4dx%-4d %d %8.2fms %8.2fms %7.2fx %8.2fms %7.2fx\n", imageFile, width,
+					height, components, before / 1e6 / repeats, after / 1e6 / repeats, before / (double) after,
+					base / 1e6 / repeats, before / (double) base);
+			stbi_image_free(rgb);
+			stbi_image_free(own);
+		}
+		GLResources.drain();
+		glfwDestroyWindow(windowId);
+		glfwTerminate();
+	}
+
+	// ------------------------ helpers ----------------------------
+	// nanoseconds until the GL has finished an upload, which is deleted
+	private static long time(Supplier<Texture> upload) {
+		glFinish();
+		long start = System.nanoTime();
+		Texture texture = upload.get();
+		glFinish();
+		long nanos = System.nanoTime() - start;
+		texture.close();
+		return nanos;
+	}
+
+	// what the old Texture.makeTexture did: level 0 specified by uploadData, then
+	// the chain generated by the GL. Rows that aren't a multiple of 4 bytes
+	// are given alignment 1 so they are read right at all.
+	private static Texture before(int width, int height, ByteBuffer rgb) {
+		Texture texture = new Texture(width, height, null, GL_RGBA);
+		glPixelStorei(GL_UNPACK_ALIGNMENT, (width * 3 & 3) == 0 ? 4 : 1);
+		glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, width, height, 0, GL_RGB, GL_UNSIGNED_BYTE, rgb);
+		glGenerateMipmap(GL_TEXTURE_2D);
+		return texture;
+	}
+
+	private static Texture after(int width, int height, ByteBuffer[] levels, int components) {
+		int internalFormat = Texture.storageFormat(components, null);
+		Texture texture = Texture.allocate(width, height, levels.length, internalFormat, components);
+		for (int level = 0; level < levels.length; level++)
+			texture.uploadLevel(level, Texture.pixelFormat(components), levels[level]);
+		return texture;
+	}
+}
@@ -0,0 +1,176 @@
+
+/**
+ * UniformBlocks.java - std140 uniform buffer holding a Scene's per-frame
+ * uniform data.
+ *
+ * Instead of a glUniform call per variable per shape, everything the shaders
+ * need for a frame is written once into one buffer:
+ *
+ *   offset 0:         SceneBlock  { mat4 pvs; }
+ *   offset k*stride:  ObjectBlock { mat4 model; vec4 color; vec4 params; }
+ *
+ * where params.x is the texture weight, params.y is 1 if the object has a
+ * texture and params.z is its TextureArray layer. The per-object blocks
+ * start at multiples of the driver's GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT and
+ * each shape selects its own with glBindBufferRange before drawing.
+ *
+ * Uniform buffers need OpenGL 3.1; on older contexts the Scene keeps using
+ * the individual uniform variables.
+ */
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.joml.Matrix4f;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.system.MemoryUtil;
+
+public class UniformBlocks {
+	// ------------------ class variables ------------------------------
+	static final int SCENE_BINDING = 0; // binding point of SceneBlock
+	static final int OBJECT_BINDING = 1; // binding point of ObjectBlock
+	static final int SCENE_BLOCK_SIZE = 64; // mat4
+	static final int OBJECT_BLOCK_SIZE = 64 + 16 + 16; // mat4, vec4, vec4
+
+	private static int shaderPgm = -1;
+	private static int unifUseBlocks = -1;
+
+	// ---------------------- instance variables ------------------------------
+	private int ubo = -1;
+	private int capacity = 0; // bytes allocated for ubo
+	private int objectStride = 0; // OBJECT_BLOCK_SIZE rounded to alignment
+	private int objectsOffset = 0; // start of the first object block
+	private ByteBuffer staging = null; // native copy of the frame's blocks
+
+	// ------------------ Constructors ----------------------------------
+	/**
+	 * Create the uniform buffer and bind the shader's blocks to their
+	 * binding points.
+	 */
+	public UniformBlocks() {
+		UtilsLWJGL.glError("--->UniformBlocks");
+		if (shaderPgm != LWJGL.shaderProgram)
+			setupProgram();
+
+		int align = glGetInteger(GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT);
+		objectStride = roundUp(OBJECT_BLOCK_SIZE, align);
+		objectsOffset = roundUp(SCENE_BLOCK_SIZE, align);
+		ubo = glGenBuffers();
+		UtilsLWJGL.glError("<---UniformBlocks");
+	}
+
+	// ------------------------- isSupported ----------------------------
+	/**
+	 * Return true if the current context can use uniform buffers.
+	 *
+	 * @return boolean
+	 */
+	public static boolean isSupported() {
+		return GL.getCapabilities().OpenGL31;
+	}
+
+	// ------------------------- setupProgram ----------------------------
+	/**
+	 * Connect the shader program's uniform blocks to the binding points used
+	 * by glBindBufferRange.
+	 */
+	private static void setupProgram() {
+		shaderPgm = LWJGL.shaderProgram;
+		int sceneIndex = glGetUniformBlockIndex(shaderPgm, "SceneBlock");
+		if (sceneIndex != GL_INVALID_INDEX)
+			glUniformBlockBinding(shaderPgm, sceneIndex, SCENE_BINDING);
+		int objectIndex = glGetUniformBlockIndex(shaderPgm, "ObjectBlock");
+		if (objectIndex != GL_INVALID_INDEX)
+			glUniformBlockBinding(shaderPgm, objectIndex, OBJECT_BINDING);
+		unifUseBlocks = glGetUniformLocation(shaderPgm, "uUseBlocks");
+	}
+
+	// ------------------------- setEnabled ----------------------------
+	/**
+	 * Tell the shaders whether to read the blocks or the individual uniform
+	 * variables.
+	 *
+	 * @param on
+	 *            boolean true implies read the blocks
+	 */
+	public static void setEnabled(boolean on) {
+		if (shaderPgm != LWJGL.shaderProgram)
+			setupProgram();
+		glUniform1i(unifUseBlocks, on ? 1 : 0);
+	}
+
+	// ------------------------- write ----------------------------
+	/**
+	 * Write the scene block and one object block per shape into the buffer,
+	 * then bind the scene block and the first object block. This is the only
+	 * upload of the frame. There is always room for one object block so that
+	 * ObjectBlock is backed by a buffer even when no shape is written (the
+	 * instanced path).
+	 * 
+	 * The blocks are written into a native staging buffer that is kept from
+	 * frame to frame, rather than into a mapping of the uniform buffer: the
+	 * driver may hand out a different address on every map, and LWJGL then
+	 * allocates a new ByteBuffer wrapper for it.
+	 *
+	 * @param pvs
+	 *            Matrix4f projection * view * scene
+	 * @param shapes
+	 *            shapes in the order of their block slots
+	 */
+	public void write(Matrix4f pvs, ArrayList<Shape3D> shapes) {
+		int size = objectsOffset + Math.max(1, shapes.size()) * objectStride;
+		if (size > capacity) {
+			capacity = Math.max(size, capacity * 2);
+			staging = MemoryUtil.memRealloc(staging, capacity);
+		}
+
+		pvs.get(0, staging);
+		for (int i = 0; i < shapes.size(); i++)
+			shapes.get(i).writeUniformBlock(staging, objectsOffset + i * objectStride);
+
+		// re-specifying the whole store orphans it, so the driver hands out
+		// fresh memory instead of waiting for last frame's draws to finish
+		// with the old contents
+		glBindBuffer(GL_UNIFORM_BUFFER, ubo);
+		glBufferData(GL_UNIFORM_BUFFER, capacity, GL_STREAM_DRAW);
+		staging.limit(size);
+		glBufferSubData(GL_UNIFORM_BUFFER, 0, staging);
+		staging.clear();
+		glBindBufferRange(GL_UNIFORM_BUFFER, SCENE_BINDING, ubo, 0, SCENE_BLOCK_SIZE);
+		bindObject(0);
+	}
+
+	// ------------------------- bindObject ----------------------------
+	/**
+	 * Select the object block of the slot-th shape for the next draw.
+	 *
+	 * @param slot
+	 *            int index of the shape in the list given to write
+	 */
+	public void bindObject(int slot) {
+		glBindBufferRange(GL_UNIFORM_BUFFER, OBJECT_BINDING, ubo, objectsOffset + slot * objectStride,
+				OBJECT_BLOCK_SIZE);
+	}
+
+	// ------------------------- delete ----------------------------
+	/**
+	 * Delete the uniform buffer.
+	 */
+	public void delete() {
+		glDeleteBuffers(ubo);
+		ubo = -1;
+		capacity = 0;
+		MemoryUtil.memFree(staging);
+		staging = null;
+	}
+
+	// round n up to a multiple of align
+	private static int roundUp(int n, int align) {
+		return (n + align - 1) / align * align;
+	}
+}
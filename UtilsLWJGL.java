@@ -57,8 +57,13 @@ import org.lwjgl.PointerBuffer;
 import org.lwjgl.opengl.GL11;
 
 import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLConnection;
 import java.nio.*;
 import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
 
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -500,12 +505,16 @@ public class UtilsLWJGL {
 	}
 
 	/**
-	 * Reads the specified resource and returns the raw data as a ByteBuffer.
+	 * Reads the specified resource and returns the raw data as a ByteBuffer
+	 * of its own, which the caller frees with MemoryUtil.memFree. A class
+	 * path resource whose length is known is read into a buffer of that size
+	 * rather than grown from bufferSize. openResource avoids the copy of
+	 * large files.
 	 *
 	 * @param resource
 	 *            the resource to read
 	 * @param bufferSize
-	 *            the initial buffer size
+	 *            the initial buffer size if the length isn't known
 	 *
 	 * @return the resource data
 	 *
@@ -513,46 +522,150 @@ public class UtilsLWJGL {
 	 *             if an IO error occurs
 	 */
 	public static ByteBuffer ioResourceToByteBuffer(String resource, int bufferSize) throws IOException {
-		ByteBuffer buffer;
-
 		File file = new File(resource);
 		if (file.isFile()) {
-			FileInputStream fis = new FileInputStream(file);
-			FileChannel fc = fis.getChannel();
-			buffer = MemoryUtil.memAlloc((int) fc.size() + 1);
+			try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				return readFully(fc, fileSize(fc, resource), resource);
+			}
+		}
+		URL url = Thread.currentThread().getContextClassLoader().getResource(resource);
+		if (url == null)
+			throw new FileNotFoundException(resource);
+		URLConnection connection = url.openConnection();
+		long length = connection.getContentLengthLong();
+		try (ReadableByteChannel rbc = Channels.newChannel(connection.getInputStream())) {
+			// one byte over the length, so the end is seen without growing
+			return readFully(rbc, length >= 0 && length < Integer.MAX_VALUE ? (int) length + 1 : bufferSize,
+					resource);
+		}
+	}
+
+	// read a channel to its end into a memAlloc buffer of the size, doubled
+	// whenever it fills up
+	private static ByteBuffer readFully(ReadableByteChannel channel, int size, String resource) throws IOException {
+		ByteBuffer buffer = MemoryUtil.memAlloc(Math.max(size, 1));
+		try {
+			while (channel.read(buffer) != -1)
+				if (buffer.remaining() == 0) {
+					if (channel instanceof FileChannel && buffer.capacity() == size)
+						break; // a file of the size just read
+					buffer = MemoryUtil.memRealloc(buffer, buffer.capacity() * 2);
+				}
+		} catch (IOException iox) {
+			MemoryUtil.memFree(buffer);
+			throw iox;
+		}
+		buffer.flip();
+		return buffer;
+	}
 
-			while (fc.read(buffer) != -1)
-				;
+	private static int fileSize(FileChannel fc, String resource) throws IOException {
+		long size = fc.size();
+		if (size > Integer.MAX_VALUE)
+			throw new IOException(resource + ": too large to read into a buffer");
+		return (int) size;
+	}
 
-			fc.close();
-			fis.close();
-		} else {
-			buffer = MemoryUtil.memAlloc(bufferSize);
+	// ------------------------ openResource ----------------------------
+	/** Files at least this long are mapped by openResource; below it a copy is cheaper. */
+	public static final int MAP_THRESHOLD = 64 * 1024;
+
+	/**
+	 * Open a file or class path resource for reading its bytes in place.
+	 * Files of MAP_THRESHOLD bytes or more are memory mapped, so the bytes go
+	 * from the page cache straight to stbi_load_from_memory or glShaderSource
+	 * without a copy, and no native memory is allocated for them; smaller
+	 * files and class path resources are read with ioResourceToByteBuffer.
+	 *
+	 * @param resource
+	 *            file path or class path resource
+	 * @return Resource to close when the bytes are no longer needed
+	 * @throws IOException
+	 *             if an IO error occurs
+	 */
+	public static Resource openResource(String resource) throws IOException {
+		File file = new File(resource);
+		if (file.isFile() && file.length() >= MAP_THRESHOLD) {
+			// the mapping stays valid after the channel is closed
+			try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				return new Resource(fc.map(FileChannel.MapMode.READ_ONLY, 0, fileSize(fc, resource)), true);
+			}
+		}
+		return new Resource(ioResourceToByteBuffer(resource, 8 * 1024), false);
+	}
 
-			InputStream source = Thread.currentThread().getContextClassLoader().getResourceAsStream(resource);
-			if (source == null)
-				throw new FileNotFoundException(resource);
+	// ========================= Resource ==================================
+	/**
+	 * The bytes of a file or class path resource, mapped or in native
+	 * memory. close() unmaps or frees them at once instead of leaving it to
+	 * the garbage collector; getData() must not be used after that.
+	 */
+	public static final class Resource implements AutoCloseable {
+		private static final Object UNSAFE;
+		private static final Method INVOKE_CLEANER; // Unsafe.invokeCleaner( ByteBuffer ), JDK 9+
 
+		static {
+			Object unsafe = null;
+			Method invokeCleaner = null;
 			try {
-				ReadableByteChannel rbc = Channels.newChannel(source);
+				Class<?> c = Class.forName("sun.misc.Unsafe");
+				Field f = c.getDeclaredField("theUnsafe");
+				f.setAccessible(true);
+				unsafe = f.get(null);
+				invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+			} catch (ReflectiveOperationException | RuntimeException e) {
+				// mappings are then released by the garbage collector
+			}
+			UNSAFE = unsafe;
+			INVOKE_CLEANER = invokeCleaner;
+		}
+
+		private ByteBuffer data;
+		private final boolean mapped;
+
+		Resource(ByteBuffer data, boolean mapped) {
+			this.data = data;
+			this.mapped = mapped;
+		}
+
+		/**
+		 * Return the bytes, position 0 to limit.
+		 *
+		 * @return ByteBuffer direct, read only if mapped
+		 */
+		public ByteBuffer getData() {
+			if (data == null)
+				throw new RuntimeException("Resource: used after close");
+			return data;
+		}
+
+		/**
+		 * Return true if the bytes are a file mapping.
+		 *
+		 * @return boolean
+		 */
+		public boolean isMapped() {
+			return mapped;
+		}
+
+		/**
+		 * Unmap or free the bytes; later calls do nothing.
+		 */
+		@Override
+		public void close() {
+			if (data == null)
+				return;
+			if (!mapped)
+				MemoryUtil.memFree(data);
+			else if (INVOKE_CLEANER != null) {
 				try {
-					while (true) {
-						int bytes = rbc.read(buffer);
-						if (bytes == -1)
-							break;
-						if (buffer.remaining() == 0)
-							buffer = MemoryUtil.memRealloc(buffer, buffer.capacity() * 2);
-					}
-				} finally {
-					rbc.close();
+					INVOKE_CLEANER.invoke(UNSAFE, data);
+				} catch (ReflectiveOperationException e) {
+					// left to the garbage collector
 				}
-			} finally {
-				source.close();
 			}
+			data = null;
 		}
-
-		buffer.flip();
-		return buffer;
 	}
 
 	/**
@@ -572,9 +685,9 @@ public class UtilsLWJGL {
 	public static int createShader(String resource, int type, String version) throws IOException {
 		int shader = glCreateShader(type);
 
-		// rdb note: the "magic" number 8192 is only and "initial" buffer size.
-		// The code increases the buffer if it is not large enough
-		ByteBuffer source = ioResourceToByteBuffer(resource, 8192);
+		// the source is read in place and released once the GL has it
+		Resource file = openResource(resource);
+		ByteBuffer source = file.getData();
 
 		if (version == null) {
 			PointerBuffer strings = MemoryUtil.memAllocPointer(1);
@@ -604,7 +717,9 @@ public class UtilsLWJGL {
 			glShaderSource(shader, strings, lengths);
 			MemoryUtil.memFree(lengths);
 			MemoryUtil.memFree(strings);
+			MemoryUtil.memFree(preamble);
 		}
+		file.close(); // glShaderSource copied it
 
 		glCompileShader(shader);
 		int compiled = glGetShaderi(shader, GL_COMPILE_STATUS);
@@ -0,0 +1,171 @@
+
+/**
+ * VertexLayout.java - describes how the attributes of one vertex are packed
+ * into an interleaved vertex buffer.
+ *
+ * Each attribute is identified by the name of its "in" variable in the vertex
+ * shader and has a number of float components. Attributes are stored one after
+ * another in the order they are added, so a position/normal/uv layout has a
+ * stride of 8 floats: xyz nxnynz uv, xyz nxnynz uv, ...
+ *
+ * Layouts with the same attributes are equal, so they can be part of the
+ * GeometryRegistry key.
+ */
+import static org.lwjgl.opengl.GL11.GL_FLOAT;
+import static org.lwjgl.opengl.GL20.*;
+
+import java.util.ArrayList;
+
+public class VertexLayout {
+	// ---------------------- instance variables ------------------------------
+	private ArrayList<String> names = new ArrayList<String>();
+	private ArrayList<Integer> sizes = new ArrayList<Integer>();
+	private ArrayList<Integer> offsets = new ArrayList<Integer>(); // in floats
+	private int stride = 0; // floats per vertex
+
+	// attribute ids for the shader program they were last looked up in
+	private int shaderPgm = -1;
+	private int[] attribIds = null;
+
+	// ------------------------- add ----------------------------
+	/**
+	 * Append an attribute to the layout.
+	 *
+	 * @param name
+	 *            String name of the vertex shader input variable
+	 * @param floatsPerVertex
+	 *            int # float components of the attribute
+	 * @return this layout, so that calls can be chained
+	 */
+	public VertexLayout add(String name, int floatsPerVertex) {
+		names.add(name);
+		sizes.add(floatsPerVertex);
+		offsets.add(stride);
+		stride += floatsPerVertex;
+		attribIds = null;
+		return this;
+	}
+
+	// ------------------------- pack ----------------------------
+	/**
+	 * Build the interleaved layout for separate position, normal and texture
+	 * coordinate arrays. Null arrays are left out of the layout.
+	 */
+	public static VertexLayout forArrays(int coordSize, float[] normals, int normalSize, float[] texCoords,
+			int texCoordSize) {
+		VertexLayout layout = new VertexLayout().add("vPosition", coordSize);
+		if (normals != null)
+			layout.add("vNormal", normalSize);
+		if (texCoords != null)
+			layout.add("vTexCoord", texCoordSize);
+		return layout;
+	}
+
+	/**
+	 * Interleave separate position, normal and texture coordinate arrays into
+	 * one array in the order described by forArrays. This is the compatibility
+	 * path for shapes that still specify their attributes separately.
+	 *
+	 * @return float[] interleaved vertex data
+	 */
+	public static float[] pack(float[] coords, int coordSize, float[] normals, int normalSize, float[] texCoords,
+			int texCoordSize) {
+		int nVertices = coords.length / coordSize;
+		int stride = coordSize + (normals != null ? normalSize : 0) + (texCoords != null ? texCoordSize : 0);
+		float[] data = new float[nVertices * stride];
+
+		int d = 0;
+		for (int v = 0; v < nVertices; v++) {
+			d = copy(coords, v * coordSize, coordSize, data, d);
+			if (normals != null)
+				d = copy(normals, v * normalSize, normalSize, data, d);
+			if (texCoords != null)
+				d = copy(texCoords, v * texCoordSize, texCoordSize, data, d);
+		}
+		return data;
+	}
+
+	// copy n floats, tolerating a source array that is too short
+	private static int copy(float[] src, int s, int n, float[] dst, int d) {
+		for (int i = 0; i < n; i++)
+			dst[d++] = s + i < src.length ? src[s + i] : 0;
+		return d;
+	}
+
+	// ------------------------- enable ----------------------------
+	/**
+	 * Describe every attribute of the layout to the currently bound VAO,
+	 * reading from the currently bound GL_ARRAY_BUFFER. Attributes the shader
+	 * does not use are skipped.
+	 */
+	public void enable() {
+		if (attribIds == null || shaderPgm != LWJGL.shaderProgram) {
+			shaderPgm = LWJGL.shaderProgram;
+			attribIds = new int[names.size()];
+			for (int a = 0; a < attribIds.length; a++)
+				attribIds[a] = glGetAttribLocation(shaderPgm, names.get(a));
+		}
+		int strideBytes = stride * 4;
+		for (int a = 0; a < attribIds.length; a++) {
+			if (attribIds[a] < 0)
+				continue;
+			glEnableVertexAttribArray(attribIds[a]);
+			glVertexAttribPointer(attribIds[a], sizes.get(a), GL_FLOAT, false, strideBytes, offsets.get(a) * 4L);
+		}
+	}
+
+	// ------------------------- getters ----------------------------
+	/**
+	 * Return the number of floats per vertex.
+	 *
+	 * @return int
+	 */
+	public int getStride() {
+		return stride;
+	}
+
+	/**
+	 * Return the float offset of the named attribute in a vertex, or -1 if
+	 * the layout does not have that attribute.
+	 *
+	 * @param name
+	 *            String attribute name
+	 * @return int
+	 */
+	public int getOffset(String name) {
+		int a = names.indexOf(name);
+		return a < 0 ? -1 : offsets.get(a);
+	}
+
+	/**
+	 * Return the number of components of the named attribute, or 0.
+	 *
+	 * @param name
+	 *            String attribute name
+	 * @return int
+	 */
+	public int getSize(String name) {
+		int a = names.indexOf(name);
+		return a < 0 ? 0 : sizes.get(a);
+	}
+
+	@Override
+	public int hashCode() {
+		return names.hashCode() * 31 + sizes.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof VertexLayout))
+			return false;
+		VertexLayout l = (VertexLayout) o;
+		return names.equals(l.names) && sizes.equals(l.sizes);
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int a = 0; a < names.size(); a++)
+			sb.append(a == 0 ? "" : ", ").append(names.get(a)).append(':').append(sizes.get(a));
+		return sb.append("] stride ").append(stride).toString();
+	}
+}
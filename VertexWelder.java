@@ -0,0 +1,121 @@
+
+/**
+ * VertexWelder.java - turns a triangle list into indexed geometry.
+ *
+ * Vertices whose whole interleaved tuple (position, normal, texture coords,
+ * ...) is bit-for-bit identical are merged into one, and an index array is
+ * built that refers to the merged vertices. Drawing with glDrawElements then
+ * lets the GPU's post-transform vertex cache reuse shared vertices instead of
+ * shading every triangle corner again.
+ */
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class VertexWelder {
+	// ---------------------- instance variables ------------------------------
+	private float[] vertices; // unique interleaved vertices
+	private int[] indices; // 3 per triangle
+	private int nInputVertices;
+	private int nUniqueVertices;
+
+	// ------------------ Constructors ----------------------------------
+	/**
+	 * Weld the interleaved vertex data.
+	 *
+	 * @param data
+	 *            float[] interleaved vertex data, one vertex per stride floats
+	 * @param stride
+	 *            int floats per vertex
+	 */
+	public VertexWelder(float[] data, int stride) {
+		nInputVertices = data.length / stride;
+		indices = new int[nInputVertices];
+		float[] unique = new float[nInputVertices * stride];
+
+		HashMap<Tuple, Integer> seen = new HashMap<Tuple, Integer>(nInputVertices * 2);
+		for (int v = 0; v < nInputVertices; v++) {
+			Tuple t = new Tuple(data, v * stride, stride);
+			Integer index = seen.get(t);
+			if (index == null) {
+				index = nUniqueVertices++;
+				System.arraycopy(data, v * stride, unique, index * stride, stride);
+				seen.put(t, index);
+			}
+			indices[v] = index;
+		}
+		vertices = Arrays.copyOf(unique, nUniqueVertices * stride);
+	}
+
+	// ------------------------- getters ----------------------------
+	/**
+	 * Return the unique vertices, interleaved as the input was.
+	 *
+	 * @return float[]
+	 */
+	public float[] getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * Return the index of the unique vertex for every input vertex.
+	 *
+	 * @return int[]
+	 */
+	public int[] getIndices() {
+		return indices;
+	}
+
+	/**
+	 * Return the number of vertices before welding.
+	 *
+	 * @return int
+	 */
+	public int getInputVertexCount() {
+		return nInputVertices;
+	}
+
+	/**
+	 * Return the number of vertices after welding.
+	 *
+	 * @return int
+	 */
+	public int getUniqueVertexCount() {
+		return nUniqueVertices;
+	}
+
+	// ========================= Tuple ==================================
+	/**
+	 * One vertex of the input, compared by its float bits the way
+	 * Arrays.equals compares float[]s.
+	 */
+	private static class Tuple {
+		private final float[] data;
+		private final int offset, length, hash;
+
+		Tuple(float[] data, int offset, int length) {
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+			int h = 1;
+			for (int i = 0; i < length; i++)
+				h = 31 * h + Float.floatToIntBits(data[offset + i]);
+			hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			Tuple t = (Tuple) o;
+			if (hash != t.hash || length != t.length)
+				return false;
+			for (int i = 0; i < length; i++)
+				if (Float.floatToIntBits(data[offset + i]) != Float.floatToIntBits(t.data[t.offset + i]))
+					return false;
+			return true;
+		}
+	}
+}